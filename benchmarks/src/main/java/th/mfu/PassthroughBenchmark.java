@@ -0,0 +1,100 @@
+package th.mfu;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import java.util.concurrent.TimeUnit;
+
+// Frames per second of the passthrough loop, to compare with TranscodeBenchmark: read a packet and
+// remux it into an in-memory HLS ring the way RemuxSink does, nothing decoded or encoded
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class PassthroughBenchmark {
+    @Param({"640x360", "1280x720", "1920x1080"})
+    public String resolution;
+
+    private FFmpegFrameGrabber grabber;
+    private FFmpegFrameRecorder recorder;
+    private SegmentRing ring;
+    private int videoStream;
+    private final AVPacket packet = avcodec.av_packet_alloc();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        grabber = new FFmpegFrameGrabber(SampleClips.clip(resolution));
+        grabber.start();
+        ring = new SegmentRing("benchmark", 3, 32 * 1024 * 1024, 2);
+        startRecorder();
+    }
+
+    private void startRecorder() throws Exception {
+        recorder = new FFmpegFrameRecorder(new TsSegmenter(ring, 2), grabber.getImageWidth(), grabber.getImageHeight(),
+                grabber.getAudioChannels());
+        recorder.setFormat("mpegts");
+        recorder.setOption("flush_packets", "1");
+        recorder.start(grabber.getFormatContext());
+        // Looked up once, as Ingest does, so the loop does not wrap the grabber's structs per packet
+        videoStream = -1;
+        for (int i = 0; i < grabber.getFormatContext().nb_streams(); i++) {
+            if (grabber.getFormatContext().streams(i).codecpar().codec_type() == avutil.AVMEDIA_TYPE_VIDEO) {
+                videoStream = i;
+            }
+        }
+    }
+
+    // One operation is one video packet; the audio packets in between are remuxed along with it
+    @Benchmark
+    public void remuxFrame() throws Exception {
+        while (true) {
+            AVPacket source = grabber.grabPacket();
+            if (source == null) {
+                // Loop the clip. Timestamps go back to zero, so the output restarts the way it does
+                // after a reconnect.
+                grabber.setTimestamp(0);
+                ring.handOver();
+                recorder.stop();
+                recorder.release();
+                startRecorder();
+                continue;
+            }
+            boolean video = source.stream_index() == videoStream;
+            if (avcodec.av_packet_ref(packet, source) < 0) {
+                throw new IllegalStateException("Could not reference packet");
+            }
+            recorder.recordPacket(packet);
+            avcodec.av_packet_unref(source);
+            if (video) {
+                return;
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        recorder.stop();
+        recorder.release();
+        grabber.stop();
+        grabber.release();
+        ring.close();
+        avcodec.av_packet_free(packet);
+    }
+}
@@ -0,0 +1,110 @@
+package th.mfu;
+
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+// Synthetic H.264/AAC sources for the benchmarks, generated into target/samples on first use so
+// no camera or network is needed: a moving test pattern with a 440 Hz tone and one keyframe per
+// second, as cameras usually send
+final class SampleClips {
+    static final int FRAME_RATE = 30;
+    private static final int SECONDS = 10;
+    private static final int SAMPLE_RATE = 44100;
+    private static final byte[][] BARS = {
+            {(byte) 255, (byte) 255, (byte) 255}, {0, (byte) 255, (byte) 255}, {(byte) 255, (byte) 255, 0},
+            {0, (byte) 255, 0}, {(byte) 255, 0, (byte) 255}, {0, 0, (byte) 255}, {(byte) 255, 0, 0}, {16, 16, 16}};
+
+    private SampleClips() {
+    }
+
+    // resolution is WIDTHxHEIGHT, e.g. 1280x720
+    static synchronized File clip(String resolution) throws Exception {
+        String[] size = resolution.split("x");
+        File file = new File("target/samples", "testsrc-" + resolution + ".mp4");
+        if (!file.exists()) {
+            generate(file, Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+        }
+        return file;
+    }
+
+    private static void generate(File file, int width, int height) throws Exception {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        // Written under another name first, so an interrupted run never leaves a truncated clip behind
+        File partial = new File(dir, "partial-" + file.getName());
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(partial, width, height, 1);
+        recorder.setFormat("mp4");
+        recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+        recorder.setFrameRate(FRAME_RATE);
+        recorder.setGopSize(FRAME_RATE);
+        recorder.setVideoBitrate(width * height * FRAME_RATE / 10);   // 0.1 bit per pixel, 2.8 Mbps at 720p
+        recorder.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
+        recorder.setSampleRate(SAMPLE_RATE);
+        recorder.setAudioBitrate(128000);
+        recorder.start();
+        try {
+            Frame frame = new Frame(width, height, Frame.DEPTH_UBYTE, 3);
+            ByteBuffer pixels = (ByteBuffer) frame.image[0];
+            byte[] row = new byte[frame.imageStride];
+            short[] samples = new short[SAMPLE_RATE / FRAME_RATE];
+            long sample = 0;
+            for (int n = 0; n < SECONDS * FRAME_RATE; n++) {
+                drawPattern(pixels, row, width, height, n);
+                recorder.record(frame, avutil.AV_PIX_FMT_BGR24);
+                for (int i = 0; i < samples.length; i++, sample++) {
+                    samples[i] = (short) (Math.sin(2 * Math.PI * 440 * sample / SAMPLE_RATE) * 8000);
+                }
+                recorder.recordSamples(SAMPLE_RATE, 1, ShortBuffer.wrap(samples));
+            }
+        } finally {
+            recorder.stop();
+            recorder.release();
+        }
+        if (!partial.renameTo(file)) {
+            throw new IOException("Could not create " + file);
+        }
+    }
+
+    // Colour bars scrolling diagonally, a white square moving across them and a band of noise at
+    // the bottom, so the encoder has both motion and detail to work on
+    private static void drawPattern(ByteBuffer pixels, byte[] row, int width, int height, int n) {
+        int barWidth = Math.max(1, width / BARS.length);
+        int square = height / 4;
+        int squareX = n * 8 % (width - square);
+        int squareY = height / 4;
+        int noiseTop = height * 3 / 4;
+        long seed = n * 0x9E3779B97F4A7C15L;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int offset = x * 3;
+                if (y >= noiseTop) {
+                    seed = seed * 6364136223846793005L + 1442695040888963407L;
+                    byte value = (byte) (seed >>> 56);
+                    row[offset] = value;
+                    row[offset + 1] = value;
+                    row[offset + 2] = value;
+                } else if (x >= squareX && x < squareX + square && y >= squareY && y < squareY + square) {
+                    row[offset] = (byte) 255;
+                    row[offset + 1] = (byte) 255;
+                    row[offset + 2] = (byte) 255;
+                } else {
+                    byte[] bar = BARS[(x + y + n * 4) / barWidth % BARS.length];
+                    row[offset] = bar[0];
+                    row[offset + 1] = bar[1];
+                    row[offset + 2] = bar[2];
+                }
+            }
+            pixels.position(y * row.length);
+            pixels.put(row);
+        }
+        pixels.rewind();
+    }
+}
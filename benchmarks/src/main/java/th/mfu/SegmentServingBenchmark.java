@@ -0,0 +1,100 @@
+package th.mfu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Throughput and latency of StreamController serving segments and playlists from memory through the
+// embedded Tomcat, with several readers fetching at once as players of one stream do. The latency
+// percentiles come from the SampleTime mode.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(8)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class SegmentServingBenchmark {
+    private static final String STREAM = "benchmark";
+    private static final int SEGMENTS = 3;
+
+    @Param({"256", "2048"})
+    public int segmentKb;
+
+    private ConfigurableApplicationContext context;
+    private String baseUrl;
+
+    @State(Scope.Thread)
+    public static class Reader {
+        final byte[] buffer = new byte[64 * 1024];
+        int next;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = SpringApplication.run(App.class, "--server.port=0", "--spring.main.banner-mode=off",
+                "--logging.level.root=WARN");
+        int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+        SegmentRing ring = context.getBean(HLSSegmentStore.class).open(STREAM, false);
+        byte[] payload = new byte[segmentKb * 1024];
+        new Random(1).nextBytes(payload);
+        for (int i = 0; i < SEGMENTS; i++) {
+            ByteBuffer data = ring.acquireBuffer(payload.length);
+            data.put(payload).flip();
+            ring.publish(data, 2);
+        }
+        baseUrl = "http://127.0.0.1:" + port + "/api/stream/hls/" + STREAM + "/";
+    }
+
+    @Benchmark
+    public long segment(Reader reader) throws IOException {
+        return fetch(baseUrl + "stream" + (reader.next++ % SEGMENTS) + ".ts", reader.buffer);
+    }
+
+    @Benchmark
+    public long playlist(Reader reader) throws IOException {
+        return fetch(baseUrl + "stream.m3u8", reader.buffer);
+    }
+
+    // Reading the body to the end lets the JDK keep the connection alive for the next request
+    private static long fetch(String url, byte[] buffer) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException(url + ": HTTP " + connection.getResponseCode());
+        }
+        long total = 0;
+        try (InputStream in = connection.getInputStream()) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+}
@@ -0,0 +1,101 @@
+package th.mfu;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import java.util.concurrent.TimeUnit;
+
+// Frames per second of the transcode hot loop: decode a frame, copy it through a FrameRing, encode it
+// with the settings of HLSStreamService or RTSPStreamService and mux it into an in-memory HLS ring.
+// This is the work an ingest and its EncoderSink share; -prof gc adds the allocation per frame.
+// Profiles with more than one encoder thread trade CPU time for frames per second, so compare them
+// by CPU time per frame (e.g. with -prof perfnorm) when setting their scheduler cost.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class TranscodeBenchmark {
+    @Param({"640x360", "1280x720", "1920x1080"})
+    public String resolution;
+
+    // One of the default encoding profiles
+    @Param({"density", "balanced", "quality"})
+    public String profile;
+
+    // Whose encoder settings to use: "hls" or "rtsp"
+    @Param({"hls", "rtsp"})
+    public String settings;
+
+    private FFmpegFrameGrabber grabber;
+    private FFmpegFrameRecorder recorder;
+    private SegmentRing ring;
+    private FrameRing frames;
+    private FramePipeline.Sink sink;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        grabber = new FFmpegFrameGrabber(SampleClips.clip(resolution));
+        grabber.start();
+        ring = new SegmentRing("benchmark", 3, 32 * 1024 * 1024, 2);
+        recorder = new FFmpegFrameRecorder(new TsSegmenter(ring, 2), grabber.getImageWidth(), grabber.getImageHeight(),
+                grabber.getAudioChannels());
+        recorder.setFormat("mpegts");
+        recorder.setOption("flush_packets", "1");
+        EncodingProfile encoding = EncodingProfile.parseAll(EncodingProfiles.DEFAULTS).get(profile);
+        if ("rtsp".equals(settings)) {
+            RTSPStreamService.configureEncoder(recorder, grabber, encoding);
+        } else {
+            HLSStreamService.configureTranscode(recorder, grabber, encoding, 2);
+        }
+        recorder.start();
+        frames = new FrameRing(2);
+        sink = FramePipeline.recorderSink(recorder);
+    }
+
+    // One operation is one video frame; the audio in between is decoded and encoded along with it
+    @Benchmark
+    public void transcodeFrame() throws Exception {
+        while (true) {
+            Frame frame = grabber.grab();
+            if (frame == null) {
+                // Loop the clip; the recorder sink carries its timeline over the jump
+                grabber.setTimestamp(0);
+                continue;
+            }
+            if (frame.image == null && frame.samples == null) {
+                continue;
+            }
+            frames.offer(frame, System.nanoTime());
+            FrameRing.Slot slot = frames.peek();
+            sink.record(slot.getFrame(), slot.getPixelFormat());
+            frames.release();
+            if (frame.image != null) {
+                return;
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        recorder.stop();
+        recorder.release();
+        grabber.stop();
+        grabber.release();
+        ring.close();
+    }
+}
@@ -0,0 +1,91 @@
+package th.mfu;
+
+import org.bytedeco.javacv.Frame;
+import java.util.List;
+import java.util.logging.Logger;
+
+// Adaptive-bitrate output of a frame ingest: every decoded frame is handed to one encoder per
+// rendition, each scaling and encoding on its own worker. The renditions see the same frames from
+// the same first frame on, and frames are dropped (or repeated while the scene is still) for all of
+// them at once, so their encoders count the same frames and place keyframes at the same timestamps.
+public class AbrSink implements IngestSink {
+    private static final Logger logger = Logger.getLogger(AbrSink.class.getName());
+
+    private final Ingest ingest;
+    private final List<EncoderSink> encoders;
+    private final String name;
+    private final MotionDetector motion;
+
+    // motion is null without motion detection
+    public AbrSink(Ingest ingest, List<EncoderSink> encoders, String name, MotionDetector motion) {
+        this.ingest = ingest;
+        this.encoders = encoders;
+        this.name = name;
+        this.motion = motion;
+    }
+
+    public void start() {
+        for (EncoderSink encoder : encoders) {
+            if (motion != null) {
+                encoder.keepLastPicture();
+            }
+            encoder.startEncoder();
+        }
+        ingest.attach(this);
+        logger.info("Encoding " + encoders.size() + " renditions of " + IngestRegistry.displayName(ingest.getUrl())
+                + " for " + name);
+    }
+
+    @Override
+    public void onFrame(Frame frame) {
+        if (frame.image != null && !frame.keyFrame) {
+            for (EncoderSink encoder : encoders) {
+                if (encoder.isBehind()) {
+                    // The slowest rendition sets the pace for the whole ladder
+                    for (EncoderSink other : encoders) {
+                        other.skip();
+                    }
+                    return;
+                }
+            }
+        }
+        if (motion != null && frame.image != null && motion.isRepeat(frame)) {
+            for (EncoderSink encoder : encoders) {
+                encoder.repeat(frame);
+            }
+            return;
+        }
+        for (EncoderSink encoder : encoders) {
+            encoder.onFrame(frame);
+        }
+    }
+
+    @Override
+    public void onReconnecting() {
+        for (EncoderSink encoder : encoders) {
+            encoder.onReconnecting();
+        }
+    }
+
+    @Override
+    public void onEnd(Exception error) {
+        for (EncoderSink encoder : encoders) {
+            encoder.onEnd(error);
+        }
+        closeMotion();
+    }
+
+    public void close() {
+        ingest.detach(this);
+        for (EncoderSink encoder : encoders) {
+            encoder.close();
+        }
+        closeMotion();
+    }
+
+    private void closeMotion() {
+        if (motion != null) {
+            motion.close();
+        }
+    }
+}
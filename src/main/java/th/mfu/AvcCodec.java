@@ -0,0 +1,89 @@
+package th.mfu;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+// RFC 6381 codec string of H.264 video as an encoder actually wrote it, e.g. avc1.42c01f: profile,
+// constraint flags and level come from the SPS, so they hold whichever encoder and settings made it
+final class AvcCodec {
+    private static final int TS_PACKET = 188;
+    // The SPS comes right after the access unit delimiter at the start of a keyframe
+    private static final int MAX_PES_BYTES = 1024;
+
+    private AvcCodec() {
+    }
+
+    // From the avcC box of an fMP4 init section; null if it has none
+    static String fromInitSection(ByteBuffer init) {
+        int avcC = indexOf(init, "avcC");
+        if (avcC < 0 || avcC + 8 > init.limit()) {
+            return null;
+        }
+        // configurationVersion, then AVCProfileIndication, profile_compatibility and AVCLevelIndication
+        return format(init.get(avcC + 5), init.get(avcC + 6), init.get(avcC + 7));
+    }
+
+    // From the first SPS of the first video PES in an MPEG-TS segment; null if there is none
+    static String fromTransportStream(ByteBuffer ts) {
+        byte[] pes = new byte[MAX_PES_BYTES];
+        int length = 0;
+        int videoPid = -1;
+        for (int packet = ts.position(); packet + TS_PACKET <= ts.limit(); packet += TS_PACKET) {
+            if (ts.get(packet) != 0x47) {
+                return null;
+            }
+            boolean unitStart = (ts.get(packet + 1) & 0x40) != 0;
+            int pid = (ts.get(packet + 1) & 0x1f) << 8 | ts.get(packet + 2) & 0xff;
+            int adaptation = ts.get(packet + 3) >> 4 & 3;
+            int start = packet + 4;
+            if (adaptation == 2) {
+                continue;
+            }
+            if (adaptation == 3) {
+                start += 1 + (ts.get(start) & 0xff);
+            }
+            int end = packet + TS_PACKET;
+            if (unitStart && start + 9 <= end && ts.get(start) == 0 && ts.get(start + 1) == 0 && ts.get(start + 2) == 1
+                    && (ts.get(start + 3) & 0xf0) == 0xe0) {
+                if (videoPid >= 0) {
+                    // The next video PES; the first had no SPS
+                    break;
+                }
+                videoPid = pid;
+                start += 9 + (ts.get(start + 8) & 0xff);
+            } else if (pid != videoPid) {
+                continue;
+            }
+            for (int i = start; i < end && length < pes.length; i++) {
+                pes[length++] = ts.get(i);
+            }
+            if (length == pes.length) {
+                break;
+            }
+        }
+        for (int i = 0; i + 6 < length; i++) {
+            if (pes[i] == 0 && pes[i + 1] == 0 && pes[i + 2] == 1 && (pes[i + 3] & 0x1f) == 7) {
+                return format(pes[i + 4], pes[i + 5], pes[i + 6]);
+            }
+        }
+        return null;
+    }
+
+    static int indexOf(ByteBuffer buffer, String type) {
+        int end = buffer.limit() - type.length();
+        for (int i = buffer.position(); i <= end; i++) {
+            int j = 0;
+            while (j < type.length() && buffer.get(i + j) == type.charAt(j)) {
+                j++;
+            }
+            if (j == type.length()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String format(byte profile, byte constraints, byte level) {
+        return String.format(Locale.ROOT, "avc1.%02x%02x%02x", profile & 0xff, constraints & 0xff, level & 0xff);
+    }
+}
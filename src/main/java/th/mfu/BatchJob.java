@@ -0,0 +1,141 @@
+package th.mfu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Streams started or stopped by one batch request; the items progress while the client polls the job
+public class BatchJob {
+    public enum State {
+        PENDING,
+        RUNNING,
+        // Running, or for an on-demand stream registered
+        STARTED,
+        // Registered on demand, but its source could not be probed
+        UNREACHABLE,
+        STOPPED,
+        FAILED
+    }
+
+    private final String id;
+    private final String action;
+    private final long createdMillis;
+    private final List<Item> items;
+
+    BatchJob(String id, String action, List<String> streamNames) {
+        this.id = id;
+        this.action = action;
+        this.createdMillis = System.currentTimeMillis();
+        List<Item> list = new ArrayList<>();
+        for (String streamName : streamNames) {
+            list.add(new Item(streamName));
+        }
+        this.items = Collections.unmodifiableList(list);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    // "start" or "stop"
+    public String getAction() {
+        return action;
+    }
+
+    public long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    public List<Item> getItems() {
+        return items;
+    }
+
+    public boolean isDone() {
+        for (Item item : items) {
+            if (item.getState() == State.PENDING || item.getState() == State.RUNNING) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // When the last item finished, or -1 while the job runs
+    public long getFinishedMillis() {
+        long finished = -1;
+        for (Item item : items) {
+            if (item.getFinishedMillis() < 0) {
+                return -1;
+            }
+            finished = Math.max(finished, item.getFinishedMillis());
+        }
+        return finished;
+    }
+
+    public static class Item {
+        private final String streamName;
+        private volatile State state = State.PENDING;
+        private volatile String url;
+        private volatile String node;
+        private volatile String error;
+        private volatile ProbeCache.Probe probe;
+        private volatile long startedMillis = -1;
+        private volatile long finishedMillis = -1;
+
+        Item(String streamName) {
+            this.streamName = streamName;
+        }
+
+        void running() {
+            startedMillis = System.currentTimeMillis();
+            state = State.RUNNING;
+        }
+
+        void finish(State state, String url, String error) {
+            this.url = url;
+            this.error = error;
+            finishedMillis = System.currentTimeMillis();
+            this.state = state;
+        }
+
+        void setNode(String node) {
+            this.node = node;
+        }
+
+        void setProbe(ProbeCache.Probe probe) {
+            this.probe = probe;
+        }
+
+        public String getStreamName() {
+            return streamName;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        // Cluster node the stream was sent to, null if it runs here
+        public String getNode() {
+            return node;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public ProbeCache.Probe getProbe() {
+            return probe;
+        }
+
+        public long getStartedMillis() {
+            return startedMillis;
+        }
+
+        public long getFinishedMillis() {
+            return finishedMillis;
+        }
+    }
+}
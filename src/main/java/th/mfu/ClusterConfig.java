@@ -0,0 +1,63 @@
+package th.mfu;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.CorsRegistry;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+// In cluster mode, requests for a stream another node runs are redirected there (307, so a stop keeps
+// its method). Players follow the redirect of the first playlist request, and the relative segment
+// URIs in it then resolve against the owning node, so media never passes through two nodes.
+@Configuration
+public class ClusterConfig implements WebMvcConfigurer {
+    private static final String HLS = "/api/stream/hls/";
+    private static final String DVR = "/api/stream/dvr/";
+    private static final String STREAM = "/api/stream/";
+
+    @Autowired
+    private ClusterService clusterService;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new HandlerInterceptor() {
+            @Override
+            public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+                String streamName = streamName(request);
+                NodeStatus owner = streamName != null ? clusterService.locate(streamName) : null;
+                if (owner == null) {
+                    return true;
+                }
+                String query = request.getQueryString();
+                response.setStatus(HttpServletResponse.SC_TEMPORARY_REDIRECT);
+                response.setHeader("Location", owner.getUrl() + request.getRequestURI() + (query != null ? "?" + query : ""));
+                return false;
+            }
+        }).addPathPatterns(HLS + "**", DVR + "**", STREAM + "*/snapshot").excludePathPatterns(HLS + "start", HLS + "batch/**");
+    }
+
+    // A page served by one node plays streams redirected to another
+    @Override
+    public void addCorsMappings(CorsRegistry registry) {
+        if (clusterService.isEnabled()) {
+            registry.addMapping(HLS + "**").allowedMethods("GET", "HEAD");
+            registry.addMapping(DVR + "**").allowedMethods("GET", "HEAD");
+            registry.addMapping(STREAM + "*/snapshot").allowedMethods("GET", "HEAD");
+        }
+    }
+
+    // /hls/stop takes the stream name as a parameter, the other paths start with it
+    private static String streamName(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        if (path.equals(HLS + "stop")) {
+            return request.getParameter("streamName");
+        }
+        String rest = path.startsWith(HLS) ? path.substring(HLS.length())
+                : path.startsWith(DVR) ? path.substring(DVR.length()) : path.substring(STREAM.length());
+        int slash = rest.indexOf('/');
+        return slash > 0 ? rest.substring(0, slash) : null;
+    }
+}
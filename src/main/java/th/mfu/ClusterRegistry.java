@@ -0,0 +1,30 @@
+package th.mfu;
+
+import java.util.List;
+import java.util.Map;
+
+// Where the gateway nodes of a cluster publish their capacity and load and agree on which node runs
+// which stream; selected with cluster.registry. claim() and release() must be atomic across every node
+// sharing the registry, as they decide where a stream runs.
+public interface ClusterRegistry {
+    // Replaces what the node published before
+    void publish(NodeStatus status);
+
+    void remove(String nodeId);
+
+    // Every node that has published, including ones that stopped doing so
+    List<NodeStatus> getNodes();
+
+    // Node id running the stream, or null
+    String getOwner(String streamName);
+
+    // Makes nodeId the owner if the stream is owned by expectedOwner (null: by nobody) and returns the
+    // owner afterwards, which is somebody else's if another node won the race
+    String claim(String streamName, String expectedOwner, String nodeId);
+
+    // Drops the stream's owner if it is nodeId
+    void release(String streamName, String nodeId);
+
+    // Stream name to owning node id
+    Map<String, String> getOwners();
+}
@@ -0,0 +1,295 @@
+package th.mfu;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+// Cluster mode (cluster.enabled): every node publishes its scheduler capacity and load to the
+// ClusterRegistry, /hls/start places a new stream on the node with the most headroom and forwards the
+// request there, and requests for a stream another node runs are redirected to it. A node that has
+// not published for node-timeout-ms is considered gone; its streams are placed anew when started again.
+@Service
+public class ClusterService {
+    private static final Logger logger = Logger.getLogger(ClusterService.class.getName());
+    // Set on /hls/start requests a node forwards to the one it placed the stream on
+    static final String FORWARDED_HEADER = "X-Gateway-Forwarded-By";
+    // Utilizations closer than this count as equal, and the node owning fewer streams wins
+    private static final double UTILIZATION_TIE = 0.05;
+
+    @Autowired
+    private ClusterRegistry registry;
+
+    @Autowired
+    private StreamScheduler scheduler;
+
+    @Value("${cluster.enabled:false}")
+    private boolean enabled;
+
+    // Unique per node; empty picks one
+    @Value("${cluster.node-id:}")
+    private String nodeId;
+
+    // Where other nodes and clients reach this node
+    @Value("${cluster.node-url:${hls.base-url:http://localhost:8080}}")
+    private String nodeUrl;
+
+    @Value("${cluster.node-timeout-ms:10000}")
+    private long nodeTimeoutMillis;
+
+    // How long a forwarded /hls/start may take, on top of the owner's own wait for the first segment
+    @Value("${cluster.forward-timeout-ms:30000}")
+    private long forwardTimeoutMillis;
+
+    // Forwards start requests off the request threads
+    private ExecutorService forwarder;
+
+    // The registry as of the last heartbeat, for locate(), which runs on every media request; this
+    // node's own claims and releases show up right away
+    private volatile Map<String, NodeStatus> knownNodes = new HashMap<>();
+    private volatile Map<String, String> knownOwners = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        if (nodeId == null || nodeId.trim().isEmpty()) {
+            nodeId = hostName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+        }
+        forwarder = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "cluster-forward");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat();
+        logger.info("Cluster node " + nodeId + " at " + nodeUrl + " joined with " + registry.getNodes().size() + " nodes");
+    }
+
+    // Leaving releases this node's streams, so they are placed elsewhere when started again
+    @PreDestroy
+    public void shutdown() {
+        if (!enabled) {
+            return;
+        }
+        forwarder.shutdownNow();
+        for (Map.Entry<String, String> entry : registry.getOwners().entrySet()) {
+            if (entry.getValue().equals(nodeId)) {
+                registry.release(entry.getKey(), nodeId);
+            }
+        }
+        registry.remove(nodeId);
+    }
+
+    @Scheduled(fixedDelayString = "${cluster.heartbeat-interval-ms:2000}")
+    public void heartbeat() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            registry.publish(localStatus());
+            knownNodes = liveNodes();
+            knownOwners = new ConcurrentHashMap<>(registry.getOwners());
+        } catch (RuntimeException e) {
+            logger.warning("Cluster heartbeat failed: " + e.getMessage());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public boolean isLocal(NodeStatus node) {
+        return node.getId().equals(nodeId);
+    }
+
+    // The node the stream runs on, placing it on the node with the most headroom if it runs nowhere
+    // yet or on a node that is gone. Null outside cluster mode, where everything runs locally.
+    public NodeStatus place(String streamName) {
+        if (!enabled) {
+            return null;
+        }
+        Map<String, NodeStatus> live = liveNodes();
+        String owner = registry.getOwner(streamName);
+        while (owner == null || !live.containsKey(owner)) {
+            NodeStatus target = leastLoaded(live);
+            String claimed = registry.claim(streamName, owner, target.getId());
+            if (claimed != null && claimed.equals(target.getId())) {
+                knownOwners.put(streamName, claimed);
+                logger.info("Placed stream " + streamName + " on " + target
+                        + (owner != null ? ", taking it over from " + owner : ""));
+                return target;
+            }
+            // Another node placed it first, possibly a node that joined since
+            owner = claimed;
+            if (owner != null && !live.containsKey(owner)) {
+                live = liveNodes();
+            }
+        }
+        return live.get(owner);
+    }
+
+    // The other node running the stream, null if it runs here, nowhere or outside cluster mode. Answered
+    // from the last heartbeat's view of the registry; only a stream that view does not know, e.g. one
+    // another node placed since, costs a registry read.
+    public NodeStatus locate(String streamName) {
+        if (!enabled) {
+            return null;
+        }
+        Map<String, String> owners = knownOwners;
+        String owner = owners.get(streamName);
+        if (owner == null) {
+            owner = registry.getOwner(streamName);
+            if (owner == null) {
+                return null;
+            }
+            owners.put(streamName, owner);
+        }
+        return owner.equals(nodeId) ? null : knownNodes.get(owner);
+    }
+
+    // The stream stopped, or failed to start, on this node
+    public void release(String streamName) {
+        if (enabled) {
+            registry.release(streamName, nodeId);
+            knownOwners.remove(streamName, nodeId);
+        }
+    }
+
+    // Sends an /hls/start request on to the node the stream was placed on and hands its answer back
+    public CompletableFuture<ResponseEntity<String>> forward(NodeStatus node, String pathAndQuery, String body) {
+        try {
+            return supplyForward(node, pathAndQuery, body);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            CompletableFuture<ResponseEntity<String>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private CompletableFuture<ResponseEntity<String>> supplyForward(NodeStatus node, String pathAndQuery, String body) {
+        return CompletableFuture.supplyAsync(() -> {
+            HttpURLConnection connection = null;
+            try {
+                connection = (HttpURLConnection) new URL(node.getUrl() + pathAndQuery).openConnection();
+                connection.setRequestMethod("POST");
+                connection.setConnectTimeout((int) Math.min(nodeTimeoutMillis, Integer.MAX_VALUE));
+                connection.setReadTimeout((int) Math.min(forwardTimeoutMillis, Integer.MAX_VALUE));
+                connection.setRequestProperty(FORWARDED_HEADER, nodeId);
+                if (body != null) {
+                    connection.setDoOutput(true);
+                    connection.setRequestProperty("Content-Type", "application/json");
+                    try (OutputStream out = connection.getOutputStream()) {
+                        out.write(body.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                int status = connection.getResponseCode();
+                InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+                return ResponseEntity.status(status).body(in != null ? readAll(in) : "");
+            } catch (IOException e) {
+                logger.warning("Could not forward stream start to " + node + ": " + e.getMessage());
+                return ResponseEntity.status(HttpStatus.BAD_GATEWAY).body("Node " + node.getId() + " is unreachable");
+            } finally {
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+        }, forwarder);
+    }
+
+    // Nodes that published within the timeout, this one always
+    public Map<String, NodeStatus> liveNodes() {
+        long now = System.currentTimeMillis();
+        Map<String, NodeStatus> live = new HashMap<>();
+        for (NodeStatus node : registry.getNodes()) {
+            if (now - node.getUpdatedMillis() <= nodeTimeoutMillis) {
+                live.put(node.getId(), node);
+            }
+        }
+        live.put(nodeId, localStatus());
+        return live;
+    }
+
+    public List<NodeStatus> getNodes() {
+        return enabled ? registry.getNodes() : new ArrayList<>();
+    }
+
+    public Map<String, String> getOwners() {
+        return enabled ? registry.getOwners() : new HashMap<>();
+    }
+
+    // Lowest utilization; load only shows once a stream is encoding, so between heartbeats (and for
+    // on-demand streams that do not run yet) the node owning fewer streams breaks the tie
+    private NodeStatus leastLoaded(Map<String, NodeStatus> live) {
+        Map<String, Integer> streams = new HashMap<>();
+        for (String owner : registry.getOwners().values()) {
+            streams.merge(owner, 1, Integer::sum);
+        }
+        NodeStatus best = null;
+        for (NodeStatus node : live.values()) {
+            if (best == null) {
+                best = node;
+                continue;
+            }
+            double difference = node.getUtilization() - best.getUtilization();
+            if (difference < -UTILIZATION_TIE || (difference <= UTILIZATION_TIE
+                    && streams.getOrDefault(node.getId(), 0) < streams.getOrDefault(best.getId(), 0))) {
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    private NodeStatus localStatus() {
+        return new NodeStatus(nodeId, nodeUrl, scheduler.getCapacity(), scheduler.getLoad(), System.currentTimeMillis());
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = input.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "node";
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package th.mfu;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+// Registry kept in a directory every node can reach, a local one for several nodes on one host or a
+// shared volume: nodes/<id>.properties per node, streams/<name> holding the owner's id. Files are
+// replaced by atomic renames, so readers never see half of one, and ownership changes happen under
+// a lock on registry.lock.
+@Component
+@ConditionalOnProperty(name = "cluster.registry", havingValue = "directory")
+public class DirectoryClusterRegistry implements ClusterRegistry {
+    private static final Logger logger = Logger.getLogger(DirectoryClusterRegistry.class.getName());
+
+    @Value("${cluster.registry.path:${data.path:./data}/cluster}")
+    private String path;
+
+    private Path nodes;
+    private Path streams;
+    private Path lockFile;
+
+    @PostConstruct
+    public void init() throws IOException {
+        Path root = Paths.get(path);
+        nodes = Files.createDirectories(root.resolve("nodes"));
+        streams = Files.createDirectories(root.resolve("streams"));
+        lockFile = root.resolve("registry.lock");
+        logger.info("Cluster registry in " + root.toAbsolutePath());
+    }
+
+    @Override
+    public void publish(NodeStatus status) {
+        Path file = nodes.resolve(fileName(status.getId()) + ".properties");
+        try {
+            Path temp = Files.createTempFile(nodes, ".node", ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                status.toProperties().store(out, null);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot publish " + status, e);
+        }
+    }
+
+    @Override
+    public void remove(String nodeId) {
+        try {
+            Files.deleteIfExists(nodes.resolve(fileName(nodeId) + ".properties"));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot remove node " + nodeId, e);
+        }
+    }
+
+    @Override
+    public List<NodeStatus> getNodes() {
+        List<NodeStatus> list = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(nodes, "*.properties")) {
+            for (Path file : files) {
+                Properties properties = new Properties();
+                try (InputStream in = Files.newInputStream(file)) {
+                    properties.load(in);
+                    list.add(NodeStatus.fromProperties(properties));
+                } catch (NoSuchFileException e) {
+                    // Removed meanwhile
+                } catch (RuntimeException e) {
+                    logger.warning("Skipping unreadable node file " + file + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot list cluster nodes", e);
+        }
+        return list;
+    }
+
+    @Override
+    public String getOwner(String streamName) {
+        return read(streams.resolve(fileName(streamName)));
+    }
+
+    @Override
+    public synchronized String claim(String streamName, String expectedOwner, String nodeId) {
+        Path file = streams.resolve(fileName(streamName));
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Held until the channel closes
+            channel.lock();
+            String owner = read(file);
+            if (!Objects.equals(owner, expectedOwner)) {
+                return owner;
+            }
+            Path temp = Files.createTempFile(streams, ".owner", ".tmp");
+            Files.write(temp, nodeId.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return nodeId;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot claim stream " + streamName, e);
+        }
+    }
+
+    @Override
+    public synchronized void release(String streamName, String nodeId) {
+        Path file = streams.resolve(fileName(streamName));
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.lock();
+            if (nodeId.equals(read(file))) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot release stream " + streamName, e);
+        }
+    }
+
+    @Override
+    public Map<String, String> getOwners() {
+        Map<String, String> owners = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(streams, "s-*")) {
+            for (Path file : files) {
+                String owner = read(file);
+                if (owner != null) {
+                    owners.put(streamName(file.getFileName().toString()), owner);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot list stream owners", e);
+        }
+        return owners;
+    }
+
+    private static String read(Path file) {
+        try {
+            return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read " + file, e);
+        }
+    }
+
+    // Stream names and node ids become file names that cannot leave the registry directory
+    private static String fileName(String name) {
+        try {
+            return "s-" + URLEncoder.encode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String streamName(String fileName) {
+        try {
+            return URLDecoder.decode(fileName.substring(2), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
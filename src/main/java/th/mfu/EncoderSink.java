@@ -0,0 +1,162 @@
+package th.mfu;
+
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import java.util.logging.Logger;
+
+// Transcoding output of a frame ingest. Frames are copied into the output's own FramePipeline on the
+// reader thread and encoded on the output's worker, so one slow encoder never holds up the others.
+public class EncoderSink implements IngestSink {
+    private static final Logger logger = Logger.getLogger(EncoderSink.class.getName());
+
+    private final Ingest ingest;
+    private final StreamWorker worker;
+    private final FFmpegFrameRecorder recorder;
+    private final StreamMetrics.OutputMeters meters;
+    private final boolean realTime;
+    private final boolean loop;
+    private final Runnable onFailure;
+    private final FramePipeline pipeline;
+    private final NativeMemoryTracker.Resource resource;
+    private final MotionDetector motion;
+
+    // The recorder must already be started and tracked as resource; motion, if not null, repeats the
+    // last picture while the scene is still. realTime asks a file ingest to play out at its own pace,
+    // loop to start over at its end.
+    public EncoderSink(StreamScheduler scheduler, Ingest ingest, StreamWorker worker, FFmpegFrameRecorder recorder,
+                       NativeMemoryTracker.Resource resource, StreamMetrics.OutputMeters meters, MotionDetector motion,
+                       boolean realTime, boolean loop, Runnable onFailure) {
+        this.ingest = ingest;
+        this.worker = worker;
+        this.recorder = recorder;
+        this.resource = resource;
+        this.meters = meters;
+        this.motion = motion;
+        this.realTime = realTime;
+        this.loop = loop;
+        this.onFailure = onFailure;
+        // Frames of live or paced sources may be dropped when the encoder falls behind, files are never dropped
+        this.pipeline = scheduler.pipeline(worker, realTime || ingest.isRealTime());
+        meters.bindQueue(pipeline);
+        if (motion != null) {
+            pipeline.keepLastPicture();
+        }
+        // The queued frame copies are the largest native allocation of a transcode
+        resource.include(pipeline::getBytes);
+        resource.runOn(worker);
+        resource.releaseWith(this::release);
+    }
+
+    public StreamWorker getWorker() {
+        return worker;
+    }
+
+    public void start() {
+        startEncoder();
+        ingest.attach(this);
+    }
+
+    // Starts encoding frames handed to onFrame() by another sink, such as an AbrSink, instead of the ingest
+    void startEncoder() {
+        worker.start(this::encode);
+    }
+
+    boolean isBehind() {
+        return pipeline.isBehind();
+    }
+
+    void skip() {
+        pipeline.skip();
+    }
+
+    // For an AbrSink that decides on repeats for all its renditions
+    void keepLastPicture() {
+        pipeline.keepLastPicture();
+    }
+
+    void repeat(Frame frame) {
+        pipeline.offerRepeat(frame, ingest.getReadStartNanos());
+    }
+
+    @Override
+    public void onFrame(Frame frame) {
+        if (motion != null && frame.image != null && motion.isRepeat(frame)) {
+            repeat(frame);
+            return;
+        }
+        pipeline.offer(frame, ingest.getReadStartNanos());
+    }
+
+    @Override
+    public void onReconnecting() {
+        // The encoder idles until frames arrive again; its timeline continues where it left off
+        worker.keepAlive();
+    }
+
+    @Override
+    public void onEnd(Exception error) {
+        // The encoder drains what is queued and then closes the recorder
+        pipeline.finish();
+        if (error != null) {
+            onFailure.run();
+        }
+    }
+
+    @Override
+    public boolean isRealTime() {
+        return realTime;
+    }
+
+    @Override
+    public boolean isLooping() {
+        return loop;
+    }
+
+    // Stops encoding; the worker closes the recorder
+    public void close() {
+        pipeline.stop();
+        ingest.detach(this);
+        worker.cancel();
+    }
+
+    // An orphaned output is stopped, and its recorder released here if the encoder loop never ran
+    private void release() {
+        close();
+        if (!worker.isRunning()) {
+            releaseRecorder();
+        }
+    }
+
+    private void encode() {
+        try {
+            logger.info("Encoding " + IngestRegistry.displayName(ingest.getUrl()) + " on " + worker.getName());
+            pipeline.drain(FramePipeline.recorderSink(recorder), meters);
+            logger.info("Finished encoding " + worker.getFrames() + " frames (" + worker.getDroppedFrames()
+                    + " dropped) on " + worker.getName());
+        } catch (Exception e) {
+            if (!worker.isCancelled()) {
+                logger.severe("Error encoding on " + worker.getName() + ": " + e.getMessage());
+                e.printStackTrace();
+                pipeline.stop();
+                onFailure.run();
+            }
+        } finally {
+            ingest.detach(this);
+            meters.close();
+            if (motion != null) {
+                motion.close();
+            }
+            releaseRecorder();
+        }
+    }
+
+    private void releaseRecorder() {
+        try {
+            recorder.stop();
+            recorder.release();
+        } catch (Exception e) {
+            logger.warning("Error cleaning up recorder on " + worker.getName() + ": " + e.getMessage());
+        }
+        resource.close();
+    }
+}
@@ -0,0 +1,160 @@
+package th.mfu;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Named video encoder settings a transcoding stream can ask for: which H.264 encoder, how many
+// threads and slices it may use, the x264 preset and the rate control. Parsed from entries such as
+// "density:threads=1,slices=1,rc=bitrate,bitrate=2000,cost=1"; what an entry leaves out keeps the
+// default below.
+public class EncodingProfile {
+    private static final double PIXELS_720P = 1280 * 720;
+
+    private final String name;
+    // FFmpeg encoder name; FFmpeg's default H.264 encoder when it is not available
+    private String encoder = "libopenh264";
+    // Encoder threads per stream, 0 for one per core
+    private int threads = 1;
+    private int slices = 1;
+    // x264 only, OpenH264 has no presets
+    private String preset = "ultrafast";
+    // OpenH264 rc_mode: bitrate, buffer, quality or timestamp
+    private String rateControl = "bitrate";
+    // Video bitrate in kbps at 720p, scaled by picture size for other resolutions
+    private int bitrate = 2000;
+    private boolean loopFilter = true;
+    // CPU cost relative to the scheduler's cost-per-720p
+    private double cost = 1;
+
+    private EncodingProfile(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getEncoder() {
+        return encoder;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    public double getCost() {
+        return cost;
+    }
+
+    // Video bitrate in bits per second for a picture of this size
+    public int videoBitrate(int width, int height) {
+        double pixels = width > 0 && height > 0 ? (double) width * height : PIXELS_720P;
+        return (int) Math.max(200_000, Math.round(bitrate * 1000L * pixels / PIXELS_720P));
+    }
+
+    // Video settings of an output; the bitrate is the profile's unless the caller sets its own afterwards,
+    // as renditions of an adaptive-bitrate ladder do
+    void configure(FFmpegFrameRecorder recorder, double frameRate, int gopSize) {
+        recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+        recorder.setVideoCodecName(encoder);
+        recorder.setFrameRate(frameRate);
+        recorder.setGopSize(gopSize);
+        int videoBitrate = videoBitrate(recorder.getImageWidth(), recorder.getImageHeight());
+        recorder.setVideoBitrate(videoBitrate);
+        recorder.setVideoOption("maxrate", String.valueOf(videoBitrate));
+        recorder.setVideoOption("bufsize", String.valueOf(videoBitrate * 2));
+        // Without this FFmpeg lets a single encoder spread over every core
+        recorder.setVideoOption("threads", String.valueOf(threads));
+        recorder.setVideoOption("slices", String.valueOf(slices));
+        if (encoder.equals("libx264")) {
+            recorder.setVideoOption("preset", preset);
+            recorder.setVideoOption("tune", "zerolatency");
+            recorder.setVideoOption("keyint_min", String.valueOf(gopSize));
+            recorder.setVideoOption("sc_threshold", "0");       // No extra keyframes on scene changes
+        } else {
+            recorder.setVideoOption("rc_mode", rateControl);
+            recorder.setVideoOption("loopfilter", loopFilter ? "1" : "0");
+        }
+    }
+
+    // Whether this FFmpeg build has the profile's encoder
+    boolean isAvailable() {
+        AVCodec codec = avcodec.avcodec_find_encoder_by_name(encoder);
+        return codec != null && !codec.isNull();
+    }
+
+    // Parses "name:key=value,..." entries separated by ';'
+    public static Map<String, EncodingProfile> parseAll(String spec) {
+        Map<String, EncodingProfile> profiles = new LinkedHashMap<>();
+        for (String entry : spec.split(";")) {
+            if (!entry.trim().isEmpty()) {
+                EncodingProfile profile = parse(entry.trim());
+                profiles.put(profile.getName(), profile);
+            }
+        }
+        return profiles;
+    }
+
+    static EncodingProfile parse(String entry) {
+        int colon = entry.indexOf(':');
+        String name = (colon < 0 ? entry : entry.substring(0, colon)).trim().toLowerCase(Locale.ROOT);
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Encoding profile without a name: '" + entry + "'");
+        }
+        EncodingProfile profile = new EncodingProfile(name);
+        if (colon < 0) {
+            return profile;
+        }
+        for (String setting : entry.substring(colon + 1).split(",")) {
+            String[] pair = setting.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Invalid setting '" + setting + "' in encoding profile " + name
+                        + ", expected key=value");
+            }
+            String value = pair[1].trim();
+            switch (pair[0].trim()) {
+                case "encoder":
+                    profile.encoder = value;
+                    break;
+                case "threads":
+                    profile.threads = Integer.parseInt(value);
+                    break;
+                case "slices":
+                    profile.slices = Integer.parseInt(value);
+                    break;
+                case "preset":
+                    profile.preset = value;
+                    break;
+                case "rc":
+                    profile.rateControl = value;
+                    break;
+                case "bitrate":
+                    profile.bitrate = Integer.parseInt(value);
+                    break;
+                case "loopfilter":
+                    profile.loopFilter = Boolean.parseBoolean(value);
+                    break;
+                case "cost":
+                    profile.cost = Double.parseDouble(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown setting '" + pair[0].trim() + "' in encoding profile " + name);
+            }
+        }
+        return profile;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + encoder + ", " + (threads == 0 ? "auto" : threads) + " threads, " + slices + " slices, "
+                + rateControl + " " + bitrate + " kbps at 720p, cost " + cost + ")";
+    }
+}
@@ -0,0 +1,78 @@
+package th.mfu;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+// The encoding profiles a transcoding stream can be started with. Unless configured otherwise, the
+// default is the profile with the lowest cost, i.e. the one that fits the most streams per core.
+@Component
+public class EncodingProfiles {
+    private static final Logger logger = Logger.getLogger(EncodingProfiles.class.getName());
+    // Cost is CPU time per frame relative to density: one thread and one slice per stream scale across
+    // cores by running more streams, while encoder threads add synchronisation and slices cost
+    // compression, so both finish a frame sooner for a little more CPU in total
+    static final String DEFAULTS = "density:threads=1,slices=1,rc=bitrate,bitrate=2000,cost=1.0;"
+            + "balanced:threads=2,slices=2,rc=bitrate,bitrate=2000,cost=1.1;"
+            + "quality:threads=0,slices=4,rc=quality,bitrate=3000,cost=1.25";
+
+    @Value("${encoding.profiles:" + DEFAULTS + "}")
+    private String spec;
+
+    // Profile of streams that do not ask for one; empty picks the cheapest
+    @Value("${encoding.profile.default:}")
+    private String defaultName;
+
+    private Map<String, EncodingProfile> profiles;
+    private EncodingProfile defaultProfile;
+
+    @PostConstruct
+    public void init() {
+        profiles = EncodingProfile.parseAll(spec);
+        if (profiles.isEmpty()) {
+            throw new IllegalStateException("No encoding profiles configured");
+        }
+        for (EncodingProfile profile : profiles.values()) {
+            if (!profile.isAvailable()) {
+                logger.warning("Encoder " + profile.getEncoder() + " of profile " + profile.getName()
+                        + " is not available, FFmpeg's default H.264 encoder is used instead");
+            }
+        }
+        if (defaultName != null && !defaultName.trim().isEmpty()) {
+            defaultProfile = get(defaultName);
+        } else {
+            for (EncodingProfile profile : profiles.values()) {
+                if (defaultProfile == null || profile.getCost() < defaultProfile.getCost()) {
+                    defaultProfile = profile;
+                }
+            }
+        }
+        logger.info("Encoding profiles: " + profiles.values() + ", default: " + defaultProfile.getName());
+    }
+
+    // The named profile, or the default one for a null or empty name
+    public EncodingProfile get(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            return defaultProfile;
+        }
+        EncodingProfile profile = profiles.get(name.trim().toLowerCase(Locale.ROOT));
+        if (profile == null) {
+            throw new IllegalArgumentException("Unknown encoding profile '" + name + "', expected one of " + profiles.keySet());
+        }
+        return profile;
+    }
+
+    public EncodingProfile getDefault() {
+        return defaultProfile;
+    }
+
+    public Collection<EncodingProfile> getAll() {
+        return Collections.unmodifiableCollection(new ArrayList<>(profiles.values()));
+    }
+}
@@ -0,0 +1,299 @@
+package th.mfu;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+// Receives fragmented MP4 from the recorder's AVIO write callback. ftyp+moov become the
+// init section, and every moof+mdat fragment becomes an LL-HLS part in the stream's SegmentRing.
+public class Fmp4Segmenter extends OutputStream {
+    private static final int SAMPLE_IS_NON_SYNC = 0x00010000;
+
+    private final SegmentRing ring;
+    private final double targetDuration;
+
+    // Bytes not yet consumed as complete top-level boxes
+    private byte[] pending = new byte[256 * 1024];
+    private int length;
+    private boolean initPublished;
+    private int fragmentStart = -1;
+
+    private final Map<Integer, Track> tracks = new HashMap<>();
+    private Track reference;
+    private double segmentElapsed;
+    private boolean segmentOpen;
+    private boolean closed;
+
+    public Fmp4Segmenter(SegmentRing ring, double targetDuration) {
+        this.ring = ring;
+        this.targetDuration = targetDuration;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        pending[length++] = (byte) b;
+        parse();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, pending, length, len);
+        length += len;
+        parse();
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            ring.finish();
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > pending.length) {
+            byte[] larger = new byte[Math.max(pending.length * 2, length + extra)];
+            System.arraycopy(pending, 0, larger, 0, length);
+            pending = larger;
+        }
+    }
+
+    private void parse() {
+        int offset = 0;
+        while (length - offset >= 8) {
+            long size = readUInt32(pending, offset);
+            String type = boxType(pending, offset + 4);
+            int header = 8;
+            if (size == 1) {
+                if (length - offset < 16) {
+                    break;
+                }
+                size = readUInt64(pending, offset + 8);
+                header = 16;
+            }
+            if (size < header || length - offset < size) {
+                break;
+            }
+            onBox(type, offset, (int) size, header);
+            offset += (int) size;
+        }
+
+        // Keep the init section and an incomplete fragment together at the front of the buffer
+        int keep = !initPublished ? 0 : fragmentStart >= 0 ? fragmentStart : offset;
+        if (keep > 0) {
+            System.arraycopy(pending, keep, pending, 0, length - keep);
+            length -= keep;
+            if (fragmentStart >= 0) {
+                fragmentStart -= keep;
+            }
+        }
+    }
+
+    private void onBox(String type, int offset, int size, int header) {
+        if ("moov".equals(type)) {
+            parseMoov(offset + header, offset + size);
+        } else if ("moof".equals(type)) {
+            if (!initPublished) {
+                ByteBuffer init = ByteBuffer.allocateDirect(offset);
+                init.put(pending, 0, offset).flip();
+                ring.setInitSection(init);
+                initPublished = true;
+            }
+            fragmentStart = offset;
+        } else if ("mdat".equals(type) && fragmentStart >= 0) {
+            onFragment(fragmentStart, offset + size);
+            fragmentStart = -1;
+        }
+    }
+
+    private void onFragment(int start, int end) {
+        Fragment fragment = new Fragment();
+        int moofSize = (int) readUInt32(pending, start);
+        parseMoof(start + 8, start + moofSize, fragment);
+
+        if (!segmentOpen && !fragment.independent) {
+            // Wait for the first random access point, like the MPEG-TS segmenter does
+            return;
+        }
+        int size = end - start;
+        ByteBuffer data = ring.acquireBuffer(size);
+        data.put(pending, start, size).flip();
+
+        // A new segment starts at the first random access part once the target duration is reached
+        boolean startsSegment = fragment.independent && (!segmentOpen || segmentElapsed >= targetDuration);
+        if (startsSegment) {
+            segmentElapsed = 0;
+            segmentOpen = true;
+        }
+        segmentElapsed += fragment.duration;
+        ring.publishPart(data, fragment.duration, fragment.independent, startsSegment);
+    }
+
+    // The init section is parsed again on every write until the first fragment arrives
+    private void parseMoov(int offset, int end) {
+        tracks.clear();
+        reference = null;
+        while (offset + 8 <= end) {
+            int size = (int) readUInt32(pending, offset);
+            String type = boxType(pending, offset + 4);
+            if (size < 8) {
+                return;
+            }
+            if ("trak".equals(type)) {
+                Track track = new Track();
+                parseTrak(offset + 8, offset + size, track);
+                tracks.put(track.id, track);
+                if (reference == null || (track.video && !reference.video)) {
+                    reference = track;
+                }
+            } else if ("mvex".equals(type)) {
+                parseMvex(offset + 8, offset + size);
+            }
+            offset += size;
+        }
+    }
+
+    private void parseTrak(int offset, int end, Track track) {
+        while (offset + 8 <= end) {
+            int size = (int) readUInt32(pending, offset);
+            String type = boxType(pending, offset + 4);
+            if (size < 8) {
+                return;
+            }
+            int body = offset + 8;
+            if ("tkhd".equals(type)) {
+                int version = pending[body] & 0xFF;
+                track.id = (int) readUInt32(pending, body + (version == 1 ? 20 : 12));
+            } else if ("mdia".equals(type)) {
+                parseTrak(body, offset + size, track);
+            } else if ("mdhd".equals(type)) {
+                int version = pending[body] & 0xFF;
+                track.timescale = readUInt32(pending, body + (version == 1 ? 20 : 12));
+            } else if ("hdlr".equals(type)) {
+                track.video = "vide".equals(boxType(pending, body + 8));
+            }
+            offset += size;
+        }
+    }
+
+    private void parseMvex(int offset, int end) {
+        while (offset + 8 <= end) {
+            int size = (int) readUInt32(pending, offset);
+            if (size < 8) {
+                return;
+            }
+            if ("trex".equals(boxType(pending, offset + 4))) {
+                int body = offset + 8;
+                Track track = tracks.get((int) readUInt32(pending, body + 4));
+                if (track != null) {
+                    track.defaultDuration = readUInt32(pending, body + 12);
+                    track.defaultFlags = (int) readUInt32(pending, body + 20);
+                }
+            }
+            offset += size;
+        }
+    }
+
+    private void parseMoof(int offset, int end, Fragment fragment) {
+        while (offset + 8 <= end) {
+            int size = (int) readUInt32(pending, offset);
+            if (size < 8) {
+                break;
+            }
+            if ("traf".equals(boxType(pending, offset + 4))) {
+                parseTraf(offset + 8, offset + size, fragment);
+            }
+            offset += size;
+        }
+        if (reference == null || !reference.video) {
+            // Audio-only output: every part can be decoded on its own
+            fragment.independent = true;
+        }
+    }
+
+    // Durations and sync flags are only taken from the reference (video) track
+    private void parseTraf(int offset, int end, Fragment fragment) {
+        Track track = null;
+        long defaultDuration = 0;
+        int defaultFlags = 0;
+        while (offset + 8 <= end) {
+            int size = (int) readUInt32(pending, offset);
+            String type = boxType(pending, offset + 4);
+            if (size < 8) {
+                break;
+            }
+            int body = offset + 8;
+            int flags = (int) readUInt32(pending, body) & 0xFFFFFF;
+            if ("tfhd".equals(type)) {
+                track = tracks.get((int) readUInt32(pending, body + 4));
+                if (track == null || track != reference) {
+                    return;
+                }
+                defaultDuration = track.defaultDuration;
+                defaultFlags = track.defaultFlags;
+                int p = body + 8;
+                if ((flags & 0x01) != 0) p += 8;
+                if ((flags & 0x02) != 0) p += 4;
+                if ((flags & 0x08) != 0) { defaultDuration = readUInt32(pending, p); p += 4; }
+                if ((flags & 0x10) != 0) p += 4;
+                if ((flags & 0x20) != 0) defaultFlags = (int) readUInt32(pending, p);
+            } else if ("trun".equals(type) && track != null) {
+                int count = (int) readUInt32(pending, body + 4);
+                int p = body + 8;
+                if ((flags & 0x01) != 0) p += 4;
+                int firstFlags = -1;
+                if ((flags & 0x04) != 0) { firstFlags = (int) readUInt32(pending, p); p += 4; }
+                long ticks = 0;
+                for (int i = 0; i < count && p <= end; i++) {
+                    long duration = defaultDuration;
+                    int sampleFlags = defaultFlags;
+                    if ((flags & 0x100) != 0) { duration = readUInt32(pending, p); p += 4; }
+                    if ((flags & 0x200) != 0) p += 4;
+                    if ((flags & 0x400) != 0) { sampleFlags = (int) readUInt32(pending, p); p += 4; }
+                    if ((flags & 0x800) != 0) p += 4;
+                    if (i == 0 && fragment.samples == 0) {
+                        int first = firstFlags >= 0 ? firstFlags : sampleFlags;
+                        fragment.independent = (first & SAMPLE_IS_NON_SYNC) == 0;
+                    }
+                    ticks += duration;
+                }
+                fragment.samples += count;
+                if (track.timescale > 0) {
+                    fragment.duration += ticks / (double) track.timescale;
+                }
+            }
+            offset += size;
+        }
+    }
+
+    private static long readUInt32(byte[] b, int offset) {
+        return ((b[offset] & 0xFFL) << 24) | ((b[offset + 1] & 0xFFL) << 16)
+                | ((b[offset + 2] & 0xFFL) << 8) | (b[offset + 3] & 0xFFL);
+    }
+
+    private static long readUInt64(byte[] b, int offset) {
+        return (readUInt32(b, offset) << 32) | readUInt32(b, offset + 4);
+    }
+
+    private static String boxType(byte[] b, int offset) {
+        return new String(b, offset, 4, StandardCharsets.US_ASCII);
+    }
+
+    private static class Track {
+        int id;
+        long timescale;
+        boolean video;
+        long defaultDuration;
+        int defaultFlags;
+    }
+
+    private static class Fragment {
+        double duration;
+        boolean independent;
+        int samples;
+    }
+}
@@ -0,0 +1,191 @@
+package th.mfu;
+
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+// Connects the grab stage of a stream (the ingest's reader thread: network read, demux and decode)
+// to one encode/mux stage through a FrameRing, so a slow encode no longer stalls the socket read.
+//
+// Drop policy for live sources: once the ring is past its high-water mark, non-key video frames are
+// dropped; key frames and audio wait briefly for space and are dropped only if the ring stays full.
+// Non-live sources (files) are never dropped, the grab stage just waits for the encoder.
+//
+// A pipeline that keeps its last picture also takes repeats, frames whose picture is not copied and
+// that the encoder records as the last picture again, see MotionDetector.
+public class FramePipeline {
+    private static final Logger logger = Logger.getLogger(FramePipeline.class.getName());
+    private static final long FULL_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final long CONSUMER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_TIMESTAMP_GAP_MICROS = TimeUnit.SECONDS.toMicros(3);
+
+    public interface Sink {
+        void record(Frame frame, int pixelFormat) throws Exception;
+    }
+
+    private final StreamWorker worker;
+    private final FrameRing ring;
+    private final int highWater;
+    private final boolean live;
+    // The last picture recorded, for repeats; null unless keepLastPicture() was called
+    private volatile FrameRing.Slot kept;
+    private volatile Thread consumer;
+    private volatile boolean stopped;
+    private volatile boolean finished;
+
+    FramePipeline(StreamWorker worker, int capacity, boolean live) {
+        this.worker = worker;
+        this.ring = new FrameRing(capacity);
+        this.highWater = ring.capacity() * 3 / 4;
+        this.live = live;
+    }
+
+    // Producer: queues a copy of the frame, or drops it according to the policy above
+    public boolean offer(Frame frame, long readStartNanos) {
+        if (enqueue(frame, readStartNanos, false)) {
+            return true;
+        }
+        skip();
+        return false;
+    }
+
+    // Producer: queues the frame's timing only, for the encoder to record its last picture again
+    public boolean offerRepeat(Frame frame, long readStartNanos) {
+        if (enqueue(frame, readStartNanos, true)) {
+            return true;
+        }
+        skip();
+        return false;
+    }
+
+    // Before the consumer starts: keep the last recorded picture, so repeats can be offered
+    public void keepLastPicture() {
+        kept = new FrameRing.Slot();
+    }
+
+    // Producer: counts a frame that was dropped without being offered
+    public void skip() {
+        if (!stopped && !worker.isCancelled()) {
+            long dropped = worker.dropped();
+            if (dropped == 1 || dropped % 100 == 0) {
+                logger.warning("Encoder behind on " + worker.getName() + ", dropped " + dropped + " frames so far");
+            }
+        }
+    }
+
+    public int size() {
+        return ring.size();
+    }
+
+    // Direct memory of the queued frame copies
+    public long getBytes() {
+        FrameRing.Slot picture = kept;
+        return ring.getBytes() + (picture != null ? picture.getBytes() : 0);
+    }
+
+    // True once a live pipeline is past its high-water mark and drops non-key video frames
+    public boolean isBehind() {
+        return live && ring.size() >= highWater;
+    }
+
+    // Producer: no more frames will be offered; the consumer drains what is queued and returns
+    public void finish() {
+        finished = true;
+        LockSupport.unpark(consumer);
+    }
+
+    // Consumer: stops accepting frames, e.g. after the encoder failed, so the producer never waits on it
+    public void stop() {
+        stopped = true;
+    }
+
+    // Consumer: records queued frames on the calling thread until finish() or the worker is cancelled
+    public void drain(Sink sink, StreamMetrics.OutputMeters meters) throws Exception {
+        consumer = Thread.currentThread();
+        FrameRing.Slot last = kept;
+        try {
+            while (!worker.isCancelled()) {
+                FrameRing.Slot slot = ring.peek();
+                if (slot == null) {
+                    if (finished) {
+                        // Everything the producer queued before finishing is visible by now
+                        slot = ring.peek();
+                        if (slot == null) {
+                            return;
+                        }
+                    } else {
+                        LockSupport.parkNanos(this, CONSUMER_PARK_NANOS);
+                        continue;
+                    }
+                }
+                long encodeStart = System.nanoTime();
+                if (!slot.isRepeat()) {
+                    sink.record(slot.getFrame(), slot.getPixelFormat());
+                    if (last != null && slot.getFrame().image != null) {
+                        slot.keepPicture(last);
+                    }
+                    meters.recorded(slot.getReadStartNanos(), encodeStart);
+                } else if (last.getFrame().image != null) {
+                    // Nothing to repeat if the first picture was dropped
+                    Frame picture = last.getFrame();
+                    picture.timestamp = slot.getFrame().timestamp;
+                    sink.record(picture, last.getPixelFormat());
+                    meters.recorded(slot.getReadStartNanos(), encodeStart);
+                }
+                ring.release();
+                worker.progress();
+            }
+        } finally {
+            stopped = true;
+        }
+    }
+
+    private boolean enqueue(Frame frame, long readStartNanos, boolean repeat) {
+        if (stopped || finished) {
+            return false;
+        }
+        boolean droppable = live && frame.image != null && !frame.keyFrame;
+        if (droppable && ring.size() >= highWater) {
+            return false;
+        }
+        long deadline = System.nanoTime() + FULL_WAIT_NANOS;
+        while (!ring.offer(frame, readStartNanos, repeat)) {
+            if (stopped || worker.isCancelled() || droppable || (live && System.nanoTime() - deadline > 0)) {
+                return false;
+            }
+            LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+        }
+        LockSupport.unpark(consumer);
+        return true;
+    }
+
+    // Keeps the encoder's clock on the source timeline, so dropped frames leave a gap instead of
+    // shortening the video against the audio. When the source clock jumps, as it does after a
+    // reconnect, the output continues from its current frame instead.
+    public static Sink recorderSink(FFmpegFrameRecorder recorder) {
+        return new Sink() {
+            private long firstTimestamp = -1;
+            private long lastTimestamp = -1;
+
+            @Override
+            public void record(Frame frame, int pixelFormat) throws Exception {
+                if (frame.image != null) {
+                    if (firstTimestamp < 0 || frame.timestamp < lastTimestamp
+                            || frame.timestamp - lastTimestamp > MAX_TIMESTAMP_GAP_MICROS) {
+                        firstTimestamp = frame.timestamp
+                                - Math.round(recorder.getFrameNumber() * 1000000.0 / recorder.getFrameRate());
+                    }
+                    lastTimestamp = frame.timestamp;
+                    int frameNumber = (int) Math.round((frame.timestamp - firstTimestamp) * recorder.getFrameRate() / 1000000.0);
+                    if (frameNumber > recorder.getFrameNumber()) {
+                        recorder.setFrameNumber(frameNumber);
+                    }
+                }
+                recorder.record(frame, pixelFormat);
+            }
+        };
+    }
+}
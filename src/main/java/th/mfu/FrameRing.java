@@ -0,0 +1,261 @@
+package th.mfu;
+
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.javacv.Frame;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_NONE;
+
+// Bounded single-producer/single-consumer queue of decoded frames. The grabber reuses its frame
+// buffers on every grab, so each slot keeps its own copy; slot buffers are allocated once and reused.
+public class FrameRing {
+    private final Slot[] slots;
+    private final int mask;
+    // Only the producer advances tail and only the consumer advances head
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    public FrameRing(int capacity) {
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    // Direct memory held by the slots' image copies, which are allocated as the ring first fills up and
+    // then kept; read without synchronization, for accounting only
+    public long getBytes() {
+        long bytes = 0;
+        for (Slot slot : slots) {
+            bytes += slot.getBytes();
+        }
+        return bytes;
+    }
+
+    // Producer: copies the frame into the next free slot, or returns false when the ring is full.
+    // readStartNanos is when reading the frame from the source began.
+    public boolean offer(Frame frame, long readStartNanos) {
+        return offer(frame, readStartNanos, false);
+    }
+
+    // Producer: as offer(), but a repeat keeps only the frame's timing and leaves its picture uncopied,
+    // for the consumer to record the last picture it kept instead
+    public boolean offer(Frame frame, long readStartNanos, boolean repeat) {
+        long t = tail.get();
+        if (t - head.get() >= slots.length) {
+            return false;
+        }
+        Slot slot = slots[(int) (t & mask)];
+        slot.copyFrom(frame, repeat);
+        slot.readStartNanos = readStartNanos;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // Consumer: the oldest frame, which stays valid until release(), or null when empty
+    public Slot peek() {
+        long h = head.get();
+        return h == tail.get() ? null : slots[(int) (h & mask)];
+    }
+
+    public void release() {
+        head.lazySet(head.get() + 1);
+    }
+
+    public static class Slot {
+        private final Frame frame = new Frame();
+        // Kept across frames of either kind, so an audio frame between two pictures does not cost the
+        // slot its image buffers; the flags say what the current frame has
+        private Buffer[] image;
+        private Buffer[] samples;
+        private boolean hasImage;
+        private boolean hasSamples;
+        private int pixelFormat = AV_PIX_FMT_NONE;
+        private long readStartNanos;
+        private boolean repeat;
+
+        // The frame shows only the buffers the copied frame had
+        public Frame getFrame() {
+            frame.image = hasImage ? image : null;
+            frame.samples = hasSamples ? samples : null;
+            return frame;
+        }
+
+        // The recorder otherwise reads the pixel format from the grabber's AVFrame
+        public int getPixelFormat() {
+            return pixelFormat;
+        }
+
+        public long getReadStartNanos() {
+            return readStartNanos;
+        }
+
+        // The slot's picture is stale and stands for a repeat of the last one, see offer()
+        public boolean isRepeat() {
+            return repeat;
+        }
+
+        // Direct memory of the slot's image copy
+        long getBytes() {
+            long bytes = 0;
+            Buffer[] buffers = image;
+            if (buffers != null) {
+                for (Buffer buffer : buffers) {
+                    if (buffer != null && buffer.isDirect()) {
+                        bytes += (long) buffer.capacity() * elementSize(buffer);
+                    }
+                }
+            }
+            return bytes;
+        }
+
+        // Consumer: hands this slot's picture to kept without copying it; the slot takes kept's old
+        // buffers, which the next copy into it reuses
+        void keepPicture(Slot kept) {
+            Buffer[] buffers = kept.image;
+            kept.image = image;
+            image = buffers;
+            hasImage = false;
+            kept.hasImage = true;
+            kept.hasSamples = false;
+            kept.frame.imageWidth = frame.imageWidth;
+            kept.frame.imageHeight = frame.imageHeight;
+            kept.frame.imageDepth = frame.imageDepth;
+            kept.frame.imageChannels = frame.imageChannels;
+            kept.frame.imageStride = frame.imageStride;
+            kept.pixelFormat = pixelFormat;
+        }
+
+        void copyFrom(Frame source, boolean repeat) {
+            this.repeat = repeat;
+            frame.keyFrame = source.keyFrame;
+            frame.pictType = source.pictType;
+            frame.streamIndex = source.streamIndex;
+            frame.type = source.type;
+            frame.timestamp = source.timestamp;
+
+            frame.imageWidth = source.imageWidth;
+            frame.imageHeight = source.imageHeight;
+            frame.imageDepth = source.imageDepth;
+            frame.imageChannels = source.imageChannels;
+            frame.imageStride = source.imageStride;
+            if (repeat) {
+                hasImage = false;
+                hasSamples = false;
+                return;
+            }
+            // Images stay in direct memory so the recorder can read them without another copy
+            hasImage = source.image != null;
+            if (hasImage) {
+                image = copy(source.image, image, true);
+            }
+            pixelFormat = hasImage && source.opaque instanceof AVFrame
+                    ? ((AVFrame) source.opaque).format() : AV_PIX_FMT_NONE;
+
+            frame.sampleRate = source.sampleRate;
+            frame.audioChannels = source.audioChannels;
+            // Samples go on the heap, which the recorder copies into its own buffers without allocating
+            hasSamples = source.samples != null;
+            if (hasSamples) {
+                samples = copy(source.samples, samples, false);
+            }
+        }
+
+        private static Buffer[] copy(Buffer[] source, Buffer[] target, boolean direct) {
+            if (target == null || target.length != source.length) {
+                target = new Buffer[source.length];
+            }
+            for (int i = 0; i < source.length; i++) {
+                target[i] = copy(source[i], target[i], direct);
+            }
+            return target;
+        }
+
+        private static Buffer copy(Buffer source, Buffer target, boolean direct) {
+            int length = source.remaining();
+            if (target == null || !sameType(source, target) || target.capacity() < length) {
+                target = allocate(source, Math.max(length, target != null ? target.capacity() : 0), direct);
+            }
+            target.clear();
+            // The source's position is put back instead of copying from a duplicate(), which would
+            // allocate a view per frame; other sinks of the ingest read the same frame after us
+            int position = source.position();
+            if (source instanceof ByteBuffer) {
+                ((ByteBuffer) target).put((ByteBuffer) source);
+            } else if (source instanceof ShortBuffer) {
+                ((ShortBuffer) target).put((ShortBuffer) source);
+            } else if (source instanceof IntBuffer) {
+                ((IntBuffer) target).put((IntBuffer) source);
+            } else if (source instanceof FloatBuffer) {
+                ((FloatBuffer) target).put((FloatBuffer) source);
+            } else if (source instanceof DoubleBuffer) {
+                ((DoubleBuffer) target).put((DoubleBuffer) source);
+            } else {
+                throw new IllegalArgumentException("Unsupported buffer type: " + source.getClass());
+            }
+            source.position(position);
+            target.flip();
+            return target;
+        }
+
+        private static Buffer allocate(Buffer like, int length, boolean direct) {
+            int elementSize = elementSize(like);
+            if (!direct) {
+                switch (elementSize) {
+                    case 1: return ByteBuffer.allocate(length);
+                    case 2: return ShortBuffer.allocate(length);
+                    case 4: return like instanceof IntBuffer ? IntBuffer.allocate(length) : FloatBuffer.allocate(length);
+                    default: return DoubleBuffer.allocate(length);
+                }
+            }
+            ByteBuffer bytes = ByteBuffer.allocateDirect(length * elementSize).order(ByteOrder.nativeOrder());
+            switch (elementSize) {
+                case 1: return bytes;
+                case 2: return bytes.asShortBuffer();
+                case 4: return like instanceof IntBuffer ? bytes.asIntBuffer() : bytes.asFloatBuffer();
+                default: return bytes.asDoubleBuffer();
+            }
+        }
+
+        private static boolean sameType(Buffer a, Buffer b) {
+            return (a instanceof ByteBuffer && b instanceof ByteBuffer)
+                    || (a instanceof ShortBuffer && b instanceof ShortBuffer)
+                    || (a instanceof IntBuffer && b instanceof IntBuffer)
+                    || (a instanceof FloatBuffer && b instanceof FloatBuffer)
+                    || (a instanceof DoubleBuffer && b instanceof DoubleBuffer);
+        }
+
+        private static int elementSize(Buffer buffer) {
+            if (buffer instanceof ByteBuffer) {
+                return 1;
+            } else if (buffer instanceof ShortBuffer) {
+                return 2;
+            } else if (buffer instanceof IntBuffer || buffer instanceof FloatBuffer) {
+                return 4;
+            } else if (buffer instanceof DoubleBuffer) {
+                return 8;
+            }
+            throw new IllegalArgumentException("Unsupported buffer type: " + buffer.getClass());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package th.mfu;
+
+import java.nio.ByteBuffer;
+
+public class HLSPart {
+    private final int index;
+    private final double duration;
+    private final boolean independent;
+    private final ByteBuffer data;
+
+    HLSPart(int index, double duration, boolean independent, ByteBuffer data) {
+        this.index = index;
+        this.duration = duration;
+        this.independent = independent;
+        this.data = data;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public double getDuration() {
+        return duration;
+    }
+
+    public boolean isIndependent() {
+        return independent;
+    }
+
+    public int size() {
+        return data.remaining();
+    }
+
+    int capacity() {
+        return data.capacity();
+    }
+
+    // Independent view so concurrent readers do not share a position
+    public ByteBuffer data() {
+        return data.asReadOnlyBuffer();
+    }
+
+    ByteBuffer buffer() {
+        return data;
+    }
+}
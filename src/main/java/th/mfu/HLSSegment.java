@@ -0,0 +1,100 @@
+package th.mfu;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A media segment; MPEG-TS segments hold a single part, LL-HLS segments grow part by part
+public class HLSSegment {
+    private final SegmentRing ring;
+    private final long sequence;
+    private final String extension;
+    private final int discontinuity;
+    private final List<HLSPart> parts = new CopyOnWriteArrayList<>();
+    private volatile double duration;
+    private volatile boolean complete;
+    // The ring holds one reference, every request being served holds another
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    HLSSegment(SegmentRing ring, long sequence, String extension, int discontinuity) {
+        this.ring = ring;
+        this.sequence = sequence;
+        this.extension = extension;
+        this.discontinuity = discontinuity;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    // Number of discontinuities before this segment, i.e. its EXT-X-DISCONTINUITY-SEQUENCE
+    public int getDiscontinuity() {
+        return discontinuity;
+    }
+
+    public double getDuration() {
+        return duration;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public String getName() {
+        return "stream" + sequence + extension;
+    }
+
+    public String getPartName(int index) {
+        return "stream" + sequence + "." + index + extension;
+    }
+
+    public List<HLSPart> getParts() {
+        return parts;
+    }
+
+    public int size() {
+        int size = 0;
+        for (HLSPart part : parts) {
+            size += part.size();
+        }
+        return size;
+    }
+
+    int capacity() {
+        int capacity = 0;
+        for (HLSPart part : parts) {
+            capacity += part.capacity();
+        }
+        return capacity;
+    }
+
+    void addPart(HLSPart part) {
+        parts.add(part);
+        duration += part.getDuration();
+    }
+
+    void complete(double duration) {
+        this.duration = duration;
+        this.complete = true;
+    }
+
+    boolean retain() {
+        while (true) {
+            int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            for (HLSPart part : parts) {
+                ring.recycle(part.buffer());
+            }
+        }
+    }
+}
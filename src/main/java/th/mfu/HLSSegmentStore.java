@@ -0,0 +1,133 @@
+package th.mfu;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+@Component
+public class HLSSegmentStore {
+    private final ConcurrentHashMap<String, SegmentRing> rings = new ConcurrentHashMap<>();
+    // Master playlists of adaptive-bitrate streams, whose renditions are kept as "<stream>/<rendition>"
+    private final ConcurrentHashMap<String, byte[]> masterPlaylists = new ConcurrentHashMap<>();
+    // The segment buffers of every ring count towards its stream's native memory
+    private final ConcurrentHashMap<SegmentRing, NativeMemoryTracker.Resource> resources = new ConcurrentHashMap<>();
+
+    @Autowired
+    private NativeMemoryTracker nativeMemory;
+
+    @Value("${hls.segment.duration:2}")
+    private int segmentDuration;
+
+    @Value("${hls.list.size:3}")
+    private int listSize;
+
+    @Value("${hls.memory.max-bytes-per-stream:33554432}")
+    private long maxBytesPerStream;
+
+    // LL-HLS PART-TARGET in seconds
+    @Value("${hls.ll.part-duration:0.3}")
+    private double partDuration;
+
+    public SegmentRing open(String streamName) {
+        return open(streamName, false);
+    }
+
+    // Replaces any previous window for the same stream name
+    public SegmentRing open(String streamName, boolean lowLatency) {
+        SegmentRing ring = new SegmentRing(streamName, listSize, maxBytesPerStream, segmentDuration,
+                lowLatency ? partDuration : 0);
+        // A ring left behind by a stream that failed is dropped, unless a new one took its name
+        NativeMemoryTracker.Resource resource = nativeMemory.track(owner(streamName), "segments", streamName, 0,
+                () -> {
+                    if (rings.remove(streamName, ring)) {
+                        close(ring);
+                    }
+                });
+        resource.include(ring::getBytes);
+        resources.put(ring, resource);
+        SegmentRing previous = rings.put(streamName, ring);
+        if (previous != null) {
+            close(previous);
+        }
+        return ring;
+    }
+
+    public SegmentRing get(String streamName) {
+        return rings.get(streamName);
+    }
+
+    public void putMasterPlaylist(String streamName, byte[] playlist) {
+        masterPlaylists.put(streamName, playlist);
+    }
+
+    // Replaces the master playlist only if it is still the given one, so a stream that was stopped or
+    // restarted meanwhile is left alone
+    public boolean replaceMasterPlaylist(String streamName, byte[] expected, byte[] playlist) {
+        return masterPlaylists.replace(streamName, expected, playlist);
+    }
+
+    public byte[] getMasterPlaylist(String streamName) {
+        return masterPlaylists.get(streamName);
+    }
+
+    public List<SegmentRing> getRenditions(String streamName) {
+        String prefix = streamName + "/";
+        List<SegmentRing> renditions = new ArrayList<>();
+        for (Map.Entry<String, SegmentRing> entry : rings.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                renditions.add(entry.getValue());
+            }
+        }
+        return renditions;
+    }
+
+    // Removes the stream and, for an adaptive-bitrate stream, all of its renditions
+    public void remove(String streamName) {
+        SegmentRing ring = rings.remove(streamName);
+        if (ring != null) {
+            close(ring);
+        }
+        if (masterPlaylists.remove(streamName) != null) {
+            String prefix = streamName + "/";
+            for (String name : rings.keySet()) {
+                if (name.startsWith(prefix)) {
+                    remove(name);
+                }
+            }
+        }
+    }
+
+    private void close(SegmentRing ring) {
+        ring.close();
+        NativeMemoryTracker.Resource resource = resources.remove(ring);
+        if (resource != null) {
+            resource.close();
+        }
+    }
+
+    // Renditions "<stream>/<rendition>" belong to their stream
+    private static String owner(String ringName) {
+        int slash = ringName.indexOf('/');
+        return slash < 0 ? ringName : ringName.substring(0, slash);
+    }
+
+    public long getMaxBytesPerStream() {
+        return maxBytesPerStream;
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (SegmentRing ring : rings.values()) {
+            total += ring.getBytes();
+        }
+        return total;
+    }
+
+    public int getSegmentDuration() {
+        return segmentDuration;
+    }
+}
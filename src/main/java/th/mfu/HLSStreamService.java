@@ -2,143 +2,574 @@ package th.mfu;
 
 import org.bytedeco.ffmpeg.global.avcodec;
 import org.bytedeco.javacv.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import java.io.File;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 @Service
 public class HLSStreamService {
     private static final Logger logger = Logger.getLogger(HLSStreamService.class.getName());
-    
-    public String startHLSStream(String rtspUrl, String streamName) {
+    private static final int AUDIO_BITRATE = 128000;
+
+    @Autowired
+    private HLSSegmentStore segmentStore;
+
+    @Autowired
+    private StreamScheduler scheduler;
+
+    @Autowired
+    private IngestRegistry ingestRegistry;
+
+    @Autowired
+    private StreamMetrics metrics;
+
+    @Autowired
+    private EncodingProfiles encodingProfiles;
+
+    @Autowired
+    private SegmentArchive segmentArchive;
+
+    @Autowired
+    private NativeMemoryTracker nativeMemory;
+
+    @Autowired
+    private MotionService motionService;
+
+    // Closes the output of each running stream
+    private final ConcurrentHashMap<String, Runnable> activeSinks = new ConcurrentHashMap<>();
+    // On-demand streams, running or dormant
+    private final ConcurrentHashMap<String, StreamDefinition> definitions = new ConcurrentHashMap<>();
+    // Starts on-demand streams off the request threads
+    private ExecutorService activator;
+
+    // Where clients reach this gateway, for the playlist URLs /hls/start answers with
+    @Value("${hls.base-url:http://localhost:8080}")
+    private String baseUrl;
+
+    // Used when the request does not say whether to copy or transcode
+    @Value("${hls.passthrough.default:true}")
+    private boolean passthroughByDefault;
+
+    // Adaptive-bitrate ladder as height:kbps entries; renditions taller than the source are skipped
+    @Value("${hls.abr.renditions:1080:5000,720:2800,360:800}")
+    private String abrRenditions;
+
+    // Used when the request does not say whether to start now or on the first playlist request
+    @Value("${hls.on-demand.default:true}")
+    private boolean onDemandByDefault;
+
+    // An on-demand stream whose segments have not been fetched for this long is stopped
+    @Value("${hls.on-demand.idle-timeout-ms:60000}")
+    private long idleTimeoutMillis;
+
+    // Used when the request does not say whether to record the stream to the DVR archive
+    @Value("${dvr.record.default:false}")
+    private boolean recordByDefault;
+
+    // Used when the request does not say whether to throttle encoding while the scene is still
+    @Value("${motion.detect.default:false}")
+    private boolean motionByDefault;
+
+    @PostConstruct
+    public void init() {
+        activator = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "hls-activator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        activator.shutdownNow();
+    }
+
+    // Registers a stream that starts with its first playlist request (onDemand, or the server default)
+    // or starts it right away. Either way the returned URL is the stream's playlist. A recorded stream
+    // always starts right away, as the archive must not depend on somebody watching. Unset options take
+    // the server defaults; motion throttles the encoding of a transcode while its scene is still, see
+    // MotionDetector.
+    public String registerHLSStream(StreamRequest request) {
+        String streamName = request.getStreamName();
+        boolean recording = request.getRecord() != null ? request.getRecord() : recordByDefault;
+        boolean detecting = request.getMotion() != null ? request.getMotion() : motionByDefault;
+        // An unknown profile or a name that cannot be archived is refused before anything is replaced
+        encodingProfiles.get(request.getProfile());
+        if (recording) {
+            segmentArchive.checkName(streamName);
+        }
+        if (recording || !(request.getOnDemand() != null ? request.getOnDemand() : onDemandByDefault)) {
+            // A stream started this way runs until it is stopped, even if it was on-demand before
+            definitions.remove(streamName);
+            return start(request, recording, detecting);
+        }
+        stopHLSStream(streamName);
+        definitions.put(streamName, new StreamDefinition(request, true, detecting));
+        logger.info("Registered on-demand HLS stream " + streamName + " for: " + request.getRtspUrl());
+        return hlsUrl(streamName);
+    }
+
+    // Starts a dormant on-demand stream; the future completes once it runs, or with the reason it could
+    // not be started. Null when there is no such stream.
+    public CompletableFuture<Void> activate(String streamName) {
+        StreamDefinition definition = definitions.get(streamName);
+        if (definition == null) {
+            return null;
+        }
+        if (isRunning(streamName)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> activation = new CompletableFuture<>();
+        CompletableFuture<Void> pending = definition.claimActivation(activation);
+        if (pending != null) {
+            // Somebody else's request is starting it already
+            return pending;
+        }
+        activator.execute(() -> {
+            try {
+                logger.info("Activating on-demand HLS stream " + streamName);
+                start(definition.getRequest(), false, definition.isMotion());
+                if (definitions.get(streamName) != definition) {
+                    // Stopped or registered anew while it was starting
+                    closeSink(streamName);
+                    segmentStore.remove(streamName);
+                }
+                activation.complete(null);
+            } catch (RuntimeException e) {
+                activation.completeExceptionally(e);
+            } finally {
+                definition.activationDone();
+            }
+        });
+        return activation;
+    }
+
+    // Completes with true once the running stream has its first segment (for LL-HLS its first part) in
+    // every playlist, so the player can load right away; with false if there is no such stream or it
+    // ended before that
+    public CompletableFuture<Boolean> whenReady(String streamName) {
+        List<SegmentRing> rings = new ArrayList<>();
+        SegmentRing single = segmentStore.get(streamName);
+        if (single != null) {
+            rings.add(single);
+        } else if (segmentStore.getMasterPlaylist(streamName) != null) {
+            rings.addAll(segmentStore.getRenditions(streamName));
+        }
+        if (rings.isEmpty()) {
+            return CompletableFuture.completedFuture(false);
+        }
+        List<CompletableFuture<Boolean>> ready = new ArrayList<>();
+        for (SegmentRing ring : rings) {
+            CompletableFuture<Boolean> playlist = new CompletableFuture<>();
+            // A ring that is closed or ended counts as available, but has no playlist
+            ring.whenAvailable(-1, -1, () -> playlist.complete(ring.getPlaylist() != null));
+            ready.add(playlist);
+        }
+        return CompletableFuture.allOf(ready.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> ready.stream().allMatch(CompletableFuture::join));
+    }
+
+    // A viewer fetched a segment, which keeps an on-demand stream running
+    public void touch(String streamName) {
+        StreamDefinition definition = definitions.get(streamName);
+        if (definition != null) {
+            definition.touch();
+        }
+    }
+
+    // Source URL a stream was registered with, null if it was started without registering
+    public String getSourceUrl(String streamName) {
+        StreamDefinition definition = definitions.get(streamName);
+        return definition != null ? definition.getUrl() : null;
+    }
+
+    public boolean isDormant(String streamName) {
+        return definitions.containsKey(streamName) && !isRunning(streamName);
+    }
+
+    private boolean isRunning(String streamName) {
+        return segmentStore.get(streamName) != null || segmentStore.getMasterPlaylist(streamName) != null;
+    }
+
+    // Stops on-demand streams nobody has fetched segments of for the idle timeout. Their outputs close
+    // their recorders and detach from the ingest, which releases the grabber once it has no other
+    // outputs; the definitions stay, so the next viewer starts them again.
+    @Scheduled(fixedDelayString = "${hls.on-demand.reap-interval-ms:5000}")
+    public void reapIdleStreams() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, StreamDefinition> entry : definitions.entrySet()) {
+            String streamName = entry.getKey();
+            StreamDefinition definition = entry.getValue();
+            synchronized (definition) {
+                if (definition.isActivating() || !isRunning(streamName)
+                        || now - definition.getLastAccess() < idleTimeoutMillis) {
+                    continue;
+                }
+                logger.info("Stopping idle on-demand HLS stream " + streamName + ": no segment fetched for "
+                        + (now - definition.getLastAccess()) + " ms");
+                closeSink(streamName);
+                segmentStore.remove(streamName);
+            }
+        }
+    }
+
+    private String start(StreamRequest request, boolean record, boolean motion) {
+        String rtspUrl = request.getRtspUrl();
+        String streamName = request.getStreamName();
+        EncodingProfile encoding = encodingProfiles.get(request.getProfile());
+        Ingest ingest = null;
+        StreamWorker worker = null;
+        NativeMemoryTracker.Resource output = null;
+        boolean attached = false;
         try {
             logger.info("Starting HLS stream for: " + rtspUrl + " with stream name: " + streamName);
-            
-            FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(rtspUrl);
-            grabber.setOption("rtsp_transport", "tcp");
-            grabber.setOption("stimeout", "2000000");
-            grabber.start();
-            logger.info("RTSP grabber started successfully");
-            logger.info("Video dimensions: " + grabber.getImageWidth() + "x" + grabber.getImageHeight());
-            logger.info("Audio channels: " + grabber.getAudioChannels());
-            logger.info("Sample rate: " + grabber.getSampleRate());
-
-            // make sure directory exists
-            File outputDir = new File("/tmp/hls/" + streamName);
-            if (!outputDir.exists()) {
-                boolean created = outputDir.mkdirs();
-                logger.info("Created output directory: " + outputDir.getAbsolutePath() + " - Success: " + created);
-            } else {
-                logger.info("Output directory already exists: " + outputDir.getAbsolutePath());
+            // Replace a stream running under the same name
+            closeSink(streamName);
+            segmentStore.remove(streamName);
+
+            // Every output of the same source shares one pull from it; an ABR ladder always transcodes
+            boolean ladder = request.getAbr() != null && request.getAbr();
+            boolean copyRequested = !ladder
+                    && (request.getPassthrough() != null ? request.getPassthrough() : passthroughByDefault);
+            ingest = ingestRegistry.acquire(rtspUrl, copyRequested);
+            FFmpegFrameGrabber grabber = ingest.getGrabber();
+            boolean copy = ingest.isPacketIngest();
+            if (copyRequested && !copy) {
+                logger.info("Source codecs are not H.264/AAC, falling back to transcoding for: " + streamName);
             }
-            
-            String hlsOutput = outputDir.getAbsolutePath() + "/stream.m3u8";
-            logger.info("HLS output path: " + hlsOutput);
 
-            FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(hlsOutput,
-                    grabber.getImageWidth(),
-                    grabber.getImageHeight(),
+            boolean ll = request.getLowLatency() != null && request.getLowLatency();
+            if (ladder) {
+                startAbrStream(ingest, streamName, ll, encoding, record, motion);
+                attached = true;
+                return hlsUrl(streamName);
+            }
+
+            long encoderBytes = copy ? 0 : NativeMemoryTracker.encoderBytes(grabber.getImageWidth(), grabber.getImageHeight());
+            nativeMemory.checkBudget(streamName, encoderBytes + segmentStore.getMaxBytesPerStream());
+            SegmentRing ring = segmentStore.open(streamName, ll);
+            if (record) {
+                segmentArchive.record(ring);
+            }
+            FFmpegFrameRecorder recorder = newRecorder(ring, ll, grabber.getImageWidth(), grabber.getImageHeight(),
                     grabber.getAudioChannels());
+            output = nativeMemory.track(streamName, copy ? "remux" : "encoder",
+                    grabber.getImageWidth() + "x" + grabber.getImageHeight(), encoderBytes, () -> releaseQuietly(recorder));
+
+            Runnable onFailure = () -> segmentStore.remove(streamName);
+            if (copy) {
+                // Stream copy: codec parameters are taken from the input streams, nothing is encoded
+                recorder.start(ingest.getFormatContext());
+                logger.info("HLS recorder started in passthrough mode");
+                if (motion) {
+                    // Nothing is decoded to look at, and copying costs less than any throttled transcode
+                    logger.info("Motion detection needs a transcode, not used for passthrough stream " + streamName);
+                }
 
-            // Optimized HLS and encoding settings for faster buffering
-            recorder.setFormat("hls");
-            recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
-            
-            // Only set audio codec if there are audio channels
-            if (grabber.getAudioChannels() > 0) {
-                logger.info("Configuring audio: channels=" + grabber.getAudioChannels() + ", sampleRate=" + grabber.getSampleRate());
-                recorder.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
-                recorder.setSampleRate(grabber.getSampleRate());
-                recorder.setAudioBitrate(128000);
-            } else {
-                logger.info("No audio channels detected, skipping audio configuration");
+                StreamMetrics.OutputMeters meters = metrics.output(streamName, "hls", null);
+                meters.bindRing(ring);
+                RemuxSink sink = new RemuxSink(ingest, recorder, output, streamName, meters, onFailure,
+                        restartRecorders(ring, ll, ingest));
+                sink.start();
+                attached = true;
+                activeSinks.put(streamName, sink::close);
+                return hlsUrl(streamName);
             }
-            
-            // Optimized HLS settings for low latency and fast buffering
-            recorder.setOption("hls_time", "2");                    // Shorter segments (2 seconds)
-            recorder.setOption("hls_list_size", "3");               // Smaller playlist (3 segments)
-            recorder.setOption("hls_flags", "delete_segments+append_list+independent_segments");
-            recorder.setOption("hls_segment_type", "mpegts");       // Use MPEG-TS for better compatibility
-            recorder.setOption("hls_allow_cache", "0");             // Disable caching for live streams
-            
-            // Video encoding optimizations for speed
-            recorder.setOption("preset", "ultrafast");              // Fastest encoding preset
-            recorder.setOption("tune", "zerolatency");              // Zero latency tuning
-            // Note: Removed profile setting as it's not compatible with OpenH264
-            recorder.setOption("crf", "23");                        // Constant rate factor for quality
-            recorder.setOption("maxrate", "2M");                    // Maximum bitrate
-            recorder.setOption("bufsize", "4M");                    // Buffer size
-            
-            // Frame rate and GOP settings
-            recorder.setFrameRate(30);
-            recorder.setGopSize(60);                                // 2-second GOP (30fps * 2s)
-            
-            // Additional low-latency options
-            recorder.setOption("fflags", "+genpts+igndts");         // Generate PTS, ignore DTS
-            recorder.setOption("avoid_negative_ts", "make_zero");   // Avoid negative timestamps
-            recorder.setOption("fps_mode", "cfr");                  // Constant frame rate
+
+            // Wait for (or be refused) a share of the host before the encoder is set up
+            worker = scheduler.admit(workerName(streamName),
+                    scheduler.estimateCost(grabber.getImageWidth(), grabber.getImageHeight(), encoding));
+            worker.onReclaim(onFailure);
+
+            configureTranscode(recorder, grabber, encoding, segmentStore.getSegmentDuration());
             recorder.start();
-            logger.info("HLS recorder started successfully");
+            logger.info("HLS recorder started successfully with encoding profile " + encoding);
 
-            // Start streaming in a separate thread
-            new Thread(() -> streamToHLS(grabber, recorder, streamName)).start();
-            logger.info("Streaming thread started");
+            StreamMetrics.OutputMeters meters = metrics.output(streamName, "hls", worker);
+            meters.bindRing(ring);
+            EncoderSink sink = new EncoderSink(scheduler, ingest, worker, recorder, output, meters,
+                    motion ? motionService.detector(streamName) : null, false, false, onFailure);
+            sink.start();
+            attached = true;
+            activeSinks.put(streamName, sink::close);
+            logger.info("Streaming worker started");
 
-            // Return HTTP URL instead of file path
-            String httpUrl = "http://localhost:8080/api/stream/hls/" + streamName + "/stream.m3u8";
-            logger.info("Returning HLS HTTP URL: " + httpUrl);
-            return httpUrl;
+            return hlsUrl(streamName);
         } catch (Exception e) {
+            if (!attached) {
+                if (worker != null) {
+                    worker.abort();
+                }
+                // A recorder that failed to start, or was refused capacity, is released with its segments
+                if (output != null) {
+                    output.release();
+                    segmentStore.remove(streamName);
+                }
+                if (ingest != null) {
+                    ingestRegistry.release(ingest);
+                }
+            }
+            if (e instanceof StreamRejectedException) {
+                logger.warning(e.getMessage());
+                throw (StreamRejectedException) e;
+            }
             logger.severe("Failed to start HLS stream: " + e.getMessage());
             e.printStackTrace();
             throw new RuntimeException("Failed to start HLS stream", e);
         }
     }
 
-    private void streamToHLS(FFmpegFrameGrabber grabber, FFmpegFrameRecorder recorder, String streamName) {
+    // Decodes once and encodes every rendition of the ladder on its own worker, in parallel
+    private void startAbrStream(Ingest ingest, String streamName, boolean ll, EncodingProfile encoding, boolean record,
+                                boolean motion) throws Exception {
+        FFmpegFrameGrabber grabber = ingest.getGrabber();
+        List<Rendition> renditions = Rendition.ladder(abrRenditions, grabber.getImageWidth(), grabber.getImageHeight());
+        long ladderBytes = 0;
+        for (Rendition rendition : renditions) {
+            ladderBytes += NativeMemoryTracker.encoderBytes(rendition.getWidth(), rendition.getHeight())
+                    + segmentStore.getMaxBytesPerStream();
+        }
+        nativeMemory.checkBudget(streamName, ladderBytes);
+        // Every rendition encodes at the source frame rate with the same fixed GOP of one segment,
+        // so keyframes and segment boundaries line up across the ladder
+        double frameRate = frameRate(grabber);
+        int gopSize = gopSize(frameRate, segmentStore.getSegmentDuration());
+
+        List<EncoderSink> encoders = new ArrayList<>();
+        // The encoders are added below; a failing rendition takes the whole ladder down
+        // One detector decides for the whole ladder
+        MotionDetector detector = motion ? motionService.detector(streamName) : null;
+        AbrSink abrSink = new AbrSink(ingest, encoders, streamName, detector);
+        Runnable onFailure = () -> {
+            abrSink.close();
+            segmentStore.remove(streamName);
+        };
+        List<StreamWorker> workers = new ArrayList<>();
+        List<NativeMemoryTracker.Resource> recorders = new ArrayList<>();
+        List<StreamMetrics.OutputMeters> outputMeters = new ArrayList<>();
+        List<SegmentRing> rings = new ArrayList<>();
         try {
-            logger.info("Starting to stream frames to HLS for: " + streamName);
-            Frame frame;
-            int frameCount = 0;
-            while ((frame = grabber.grab()) != null) {
-                recorder.record(frame);
-                frameCount++;
-                if (frameCount % 100 == 0) {
-                    logger.info("Processed " + frameCount + " frames for stream: " + streamName);
+            for (Rendition rendition : renditions) {
+                StreamWorker worker = scheduler.admit(workerName(streamName) + "-" + rendition.getName(),
+                        scheduler.estimateCost(rendition.getWidth(), rendition.getHeight(), encoding));
+                workers.add(worker);
+                worker.onReclaim(onFailure);
+
+                SegmentRing ring = segmentStore.open(streamName + "/" + rendition.getName(), ll);
+                rings.add(ring);
+                if (record) {
+                    segmentArchive.record(ring);
                 }
+                FFmpegFrameRecorder recorder = newRecorder(ring, ll, rendition.getWidth(), rendition.getHeight(),
+                        grabber.getAudioChannels());
+                NativeMemoryTracker.Resource output = nativeMemory.track(streamName, "encoder", rendition.getName(),
+                        NativeMemoryTracker.encoderBytes(rendition.getWidth(), rendition.getHeight()),
+                        () -> releaseQuietly(recorder));
+                recorders.add(output);
+                configureEncoder(recorder, grabber);
+                // The profile decides how the rendition is encoded, the ladder at what bitrate
+                encoding.configure(recorder, frameRate, gopSize);
+                recorder.setVideoBitrate(rendition.getVideoBitrate());
+                recorder.setVideoOption("maxrate", String.valueOf(rendition.getVideoBitrate()));
+                recorder.setVideoOption("bufsize", String.valueOf(rendition.getVideoBitrate() * 2));
+                recorder.start();
+                logger.info("Rendition " + rendition.getName() + ": " + rendition.getWidth() + "x" + rendition.getHeight()
+                        + " at " + rendition.getVideoBitrate() / 1000 + " kbps");
+
+                StreamMetrics.OutputMeters meters = metrics.output(ring.getStreamName(), "hls", worker);
+                outputMeters.add(meters);
+                meters.bindRing(ring);
+                encoders.add(new EncoderSink(scheduler, ingest, worker, recorder, output, meters, null, false, false,
+                        onFailure));
             }
-            logger.info("Finished streaming " + frameCount + " frames for: " + streamName);
         } catch (Exception e) {
-            logger.severe("Error during HLS streaming for " + streamName + ": " + e.getMessage());
-            e.printStackTrace();
-            stopHLSStream(streamName);
-        } finally {
-            try {
-                if (recorder != null) {
-                    recorder.stop();
-                    recorder.release();
-                }
-                if (grabber != null) {
-                    grabber.stop();
-                    grabber.release();
+            for (StreamWorker worker : workers) {
+                worker.abort();
+            }
+            for (NativeMemoryTracker.Resource recorder : recorders) {
+                recorder.release();
+            }
+            for (StreamMetrics.OutputMeters meters : outputMeters) {
+                meters.close();
+            }
+            if (detector != null) {
+                detector.close();
+            }
+            // There is no master playlist yet, so removing the stream would not find its renditions
+            for (SegmentRing ring : rings) {
+                segmentStore.remove(ring.getStreamName());
+            }
+            throw e;
+        }
+
+        boolean audio = grabber.getAudioChannels() > 0;
+        byte[] master = masterPlaylist(renditions, rings, frameRate, audio);
+        segmentStore.putMasterPlaylist(streamName, master);
+        try {
+            abrSink.start();
+        } catch (RuntimeException e) {
+            // The encoders are running already; closing them releases their recorders
+            abrSink.close();
+            segmentStore.remove(streamName);
+            throw e;
+        }
+        activeSinks.put(streamName, abrSink::close);
+        // Registered before whenReady() can be, so /hls/start answers with the codecs in place
+        AtomicInteger pending = new AtomicInteger(rings.size());
+        for (SegmentRing ring : rings) {
+            ring.whenAvailable(-1, -1, () -> {
+                if (pending.decrementAndGet() == 0) {
+                    segmentStore.replaceMasterPlaylist(streamName, master,
+                            masterPlaylist(renditions, rings, frameRate, audio));
                 }
-            } catch (Exception e) {
-                logger.warning("Error cleaning up resources: " + e.getMessage());
+            });
+        }
+    }
+
+    // CODECS is only listed once every rendition has shown its profile and level, which depend on the
+    // encoder and its settings; until then players have to probe the renditions themselves
+    private static byte[] masterPlaylist(List<Rendition> renditions, List<SegmentRing> rings, double frameRate,
+                                         boolean audio) {
+        StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-INDEPENDENT-SEGMENTS\n");
+        int audioBitrate = audio ? AUDIO_BITRATE : 0;
+        boolean codecs = true;
+        for (SegmentRing ring : rings) {
+            codecs &= ring.getVideoCodec() != null;
+        }
+        for (int i = 0; i < renditions.size(); i++) {
+            Rendition rendition = renditions.get(i);
+            // TS/fMP4 framing adds a few percent on top of the encoder bitrates
+            long average = Math.round((rendition.getVideoBitrate() + audioBitrate) * 1.05);
+            long peak = Math.round((rendition.getVideoBitrate() + audioBitrate) * 1.25);
+            playlist.append("#EXT-X-STREAM-INF:BANDWIDTH=").append(peak)
+                    .append(",AVERAGE-BANDWIDTH=").append(average)
+                    .append(",RESOLUTION=").append(rendition.getWidth()).append('x').append(rendition.getHeight())
+                    .append(",FRAME-RATE=").append(String.format(Locale.ROOT, "%.3f", frameRate));
+            if (codecs) {
+                playlist.append(",CODECS=\"").append(rings.get(i).getVideoCodec()).append(audio ? ",mp4a.40.2" : "")
+                        .append('"');
             }
+            playlist.append('\n').append(rendition.getName()).append("/stream.m3u8\n");
         }
+        return playlist.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Segments are cut in memory from the muxer output instead of being written to disk
+    private FFmpegFrameRecorder newRecorder(SegmentRing ring, boolean ll, int width, int height, int audioChannels) {
+        OutputStream segmenter = ll
+                ? new Fmp4Segmenter(ring, segmentStore.getSegmentDuration())
+                : new TsSegmenter(ring, segmentStore.getSegmentDuration());
+
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(segmenter, width, height, audioChannels);
+
+        if (ll) {
+            // LL-HLS: fMP4 fragments are cut at every keyframe and whenever the part duration is reached
+            recorder.setFormat("mp4");
+            recorder.setOption("movflags", "empty_moov+default_base_moof+frag_keyframe");
+            recorder.setOption("frag_duration", String.valueOf(Math.round(ring.getPartTarget() * 2 / 3 * 1000000)));
+            logger.info("Low-latency HLS enabled, part target " + ring.getPartTarget() + "s");
+        } else {
+            recorder.setFormat("mpegts");
+        }
+        recorder.setOption("flush_packets", "1");               // Hand every packet to the segmenter right away
+        return recorder;
+    }
+
+    // For recorders that never got to write; nothing is flushed
+    private static void releaseQuietly(FFmpegFrameRecorder recorder) {
+        try {
+            recorder.release();
+        } catch (Exception e) {
+            logger.warning("Error releasing recorder: " + e.getMessage());
+        }
+    }
+
+    // Recorders that continue a passthrough output after its source was reopened. The segmenter of the
+    // old recorder hands the ring over when it closes, so the playlist goes on after a discontinuity.
+    private Supplier<FFmpegFrameRecorder> restartRecorders(SegmentRing ring, boolean ll, Ingest ingest) {
+        return () -> {
+            ring.handOver();
+            FFmpegFrameGrabber grabber = ingest.getGrabber();
+            return newRecorder(ring, ll, grabber.getImageWidth(), grabber.getImageHeight(), grabber.getAudioChannels());
+        };
+    }
+
+    // Settings of a single-rendition transcode; package-private so the benchmarks encode with them too.
+    // The source frame rate is kept and every segment starts with a keyframe.
+    static void configureTranscode(FFmpegFrameRecorder recorder, FFmpegFrameGrabber grabber, EncodingProfile encoding,
+                                   double segmentDuration) {
+        configureEncoder(recorder, grabber);
+        double frameRate = frameRate(grabber);
+        encoding.configure(recorder, frameRate, gopSize(frameRate, segmentDuration));
+    }
+
+    static void configureEncoder(FFmpegFrameRecorder recorder, FFmpegFrameGrabber grabber) {
+        // Only set audio codec if there are audio channels
+        if (grabber.getAudioChannels() > 0) {
+            logger.info("Configuring audio: channels=" + grabber.getAudioChannels() + ", sampleRate=" + grabber.getSampleRate());
+            recorder.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
+            recorder.setSampleRate(grabber.getSampleRate());
+            recorder.setAudioBitrate(AUDIO_BITRATE);
+        } else {
+            logger.info("No audio channels detected, skipping audio configuration");
+        }
+        
+        // Additional low-latency options
+        recorder.setOption("fflags", "+genpts+igndts");         // Generate PTS, ignore DTS
+        recorder.setOption("avoid_negative_ts", "make_zero");   // Avoid negative timestamps
+        recorder.setOption("fps_mode", "cfr");                  // Constant frame rate
+    }
+
+    private static double frameRate(FFmpegFrameGrabber grabber) {
+        return grabber.getFrameRate() > 0 ? grabber.getFrameRate() : 30;
+    }
+
+    // One keyframe per segment
+    private static int gopSize(double frameRate, double segmentDuration) {
+        return (int) Math.max(1, Math.round(frameRate * segmentDuration));
+    }
+
+    private static String workerName(String streamName) {
+        return "hls-" + streamName;
+    }
+
+    // Return HTTP URL instead of file path
+    private String hlsUrl(String streamName) {
+        String httpUrl = baseUrl + "/api/stream/hls/" + streamName + "/stream.m3u8";
+        logger.info("Returning HLS HTTP URL: " + httpUrl);
+        return httpUrl;
     }
 
     public void stopHLSStream(String streamName) {
-        // Clean up HLS segments
-        File hlsDir = new File("/tmp/hls/" + streamName);
-        if (hlsDir.exists()) {
-            File[] files = hlsDir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    file.delete();
-                }
-            }
-            hlsDir.delete();
+        definitions.remove(streamName);
+        // The output detaches from its ingest, which closes the source once nobody else uses it
+        closeSink(streamName);
+        // Drop the in-memory segments
+        segmentStore.remove(streamName);
+    }
+
+    private void closeSink(String streamName) {
+        Runnable close = activeSinks.remove(streamName);
+        if (close != null) {
+            close.run();
         }
+        // Anything the stream still holds once its outputs had time to shut down is released
+        nativeMemory.ended(streamName);
     }
 }
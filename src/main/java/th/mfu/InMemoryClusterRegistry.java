@@ -0,0 +1,53 @@
+package th.mfu;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Registry of a single process: a one-node cluster, or several nodes in one JVM in tests
+@Component
+@ConditionalOnProperty(name = "cluster.registry", havingValue = "memory", matchIfMissing = true)
+public class InMemoryClusterRegistry implements ClusterRegistry {
+    private final ConcurrentHashMap<String, NodeStatus> nodes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> owners = new ConcurrentHashMap<>();
+
+    @Override
+    public void publish(NodeStatus status) {
+        nodes.put(status.getId(), status);
+    }
+
+    @Override
+    public void remove(String nodeId) {
+        nodes.remove(nodeId);
+    }
+
+    @Override
+    public List<NodeStatus> getNodes() {
+        return new ArrayList<>(nodes.values());
+    }
+
+    @Override
+    public String getOwner(String streamName) {
+        return owners.get(streamName);
+    }
+
+    @Override
+    public String claim(String streamName, String expectedOwner, String nodeId) {
+        return owners.compute(streamName, (name, owner) -> Objects.equals(owner, expectedOwner) ? nodeId : owner);
+    }
+
+    @Override
+    public void release(String streamName, String nodeId) {
+        owners.remove(streamName, nodeId);
+    }
+
+    @Override
+    public Map<String, String> getOwners() {
+        return new HashMap<>(owners);
+    }
+}
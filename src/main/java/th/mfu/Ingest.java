@@ -0,0 +1,426 @@
+package th.mfu;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+// One pull from a source, shared by every output that wants it. Packet ingests hand compressed
+// packets to passthrough outputs; frame ingests decode once and hand frames to transcoding outputs.
+// The source is closed when the last sink detaches or when it ends. A live source that drops is
+// reopened with backoff while its outputs wait; a file starts over while an output loops it.
+public class Ingest {
+    private static final Logger logger = Logger.getLogger(Ingest.class.getName());
+
+    private final IngestRegistry registry;
+    private final String key;
+    private final String url;
+    // Replaced by the reader when a live source is reopened or a looped file starts over
+    private volatile FFmpegFrameGrabber grabber;
+    // AVMEDIA_TYPE_* of the grabber's streams, so packets are classified without touching its structs
+    private volatile int[] mediaTypes;
+    private final boolean packets;
+    private final boolean live;
+    private final StreamWorker worker;
+    private final StreamMetrics.SourceMeters meters;
+    private final NativeMemoryTracker.Resource resource;
+
+    private final List<IngestSink> sinks = new ArrayList<>();
+    private volatile IngestSink[] snapshot = new IngestSink[0];
+    // Held by the reader while it hands one packet or frame to the sinks
+    private final Object dispatchLock = new Object();
+    private boolean started;
+    private boolean ended;
+    private volatile boolean paced;
+    private volatile boolean looping;
+    private volatile boolean reconnecting;
+    // Paces paced files; only used on the reader thread
+    private final PlayoutClock clock = new PlayoutClock();
+    private long loops;
+    // When the read of the frame or packet being dispatched began; only used on the reader thread
+    private long readStartNanos;
+    // Guarded by the registry
+    int references;
+
+    Ingest(IngestRegistry registry, String key, String url, FFmpegFrameGrabber grabber, boolean packets, StreamWorker worker,
+           StreamMetrics metrics, NativeMemoryTracker nativeMemory) {
+        this.registry = registry;
+        this.key = key;
+        this.url = url;
+        this.grabber = grabber;
+        this.mediaTypes = mediaTypes(grabber);
+        this.packets = packets;
+        // Sources without a known length are live
+        this.live = grabber.getLengthInTime() <= 0;
+        this.worker = worker;
+        this.meters = metrics.source(this);
+        // Whichever grabber is current when the ingest closes is released
+        this.resource = nativeMemory.track(IngestRegistry.displayName(url), "source", packets ? "demux" : "decode",
+                NativeMemoryTracker.sourceBytes(grabber.getImageWidth(), grabber.getImageHeight(), !packets), this::close);
+        resource.runOn(worker);
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    // Only for reading stream properties; the reader thread owns the grabber
+    public FFmpegFrameGrabber getGrabber() {
+        return grabber;
+    }
+
+    // Passthrough outputs start their recorder from the source's streams
+    public AVFormatContext getFormatContext() {
+        return grabber.getFormatContext();
+    }
+
+    // AVMEDIA_TYPE_* of a stream of the current format context
+    public int getMediaType(int streamIndex) {
+        int[] types = mediaTypes;
+        return streamIndex < types.length ? types[streamIndex] : avutil.AVMEDIA_TYPE_UNKNOWN;
+    }
+
+    public boolean isPacketIngest() {
+        return packets;
+    }
+
+    public boolean isLive() {
+        return live;
+    }
+
+    public boolean isReconnecting() {
+        return reconnecting;
+    }
+
+    public boolean isLooping() {
+        return looping;
+    }
+
+    // Transcoding outputs of a paced file may drop frames just like those of a live source
+    public boolean isRealTime() {
+        return live || paced;
+    }
+
+    public synchronized int getSinkCount() {
+        return sinks.size();
+    }
+
+    public StreamWorker getWorker() {
+        return worker;
+    }
+
+    // For sinks, while they handle a packet or frame: when reading it from the source began
+    public long getReadStartNanos() {
+        return readStartNanos;
+    }
+
+    // Adds an output; the reader starts with the first one so no packet is read before anyone wants it
+    public void attach(IngestSink sink) {
+        synchronized (this) {
+            if (ended) {
+                throw new IllegalStateException("Source has ended: " + IngestRegistry.displayName(url));
+            }
+            sinks.add(sink);
+            snapshot = sinks.toArray(new IngestSink[0]);
+            if (sink.isRealTime()) {
+                paced = true;
+            }
+            if (sink.isLooping()) {
+                looping = true;
+            }
+            if (started) {
+                return;
+            }
+            started = true;
+        }
+        worker.start(this::read);
+    }
+
+    // Removes an output; once this returns the reader no longer calls it. Returns false if it was not attached.
+    public boolean detach(IngestSink sink) {
+        boolean removed;
+        synchronized (this) {
+            removed = sinks.remove(sink);
+            snapshot = sinks.toArray(new IngestSink[0]);
+        }
+        if (removed) {
+            // Wait for a dispatch that may still be using the sink
+            synchronized (dispatchLock) {
+                registry.release(this);
+            }
+        }
+        return removed;
+    }
+
+    // Called by the registry once nobody references this ingest any more
+    void stop() {
+        resource.end();
+        boolean running;
+        synchronized (this) {
+            running = started && !ended;
+            ended = true;
+        }
+        if (running) {
+            // The reader leaves its loop at the next packet and closes the grabber itself
+            worker.cancel();
+        } else if (!started) {
+            worker.abort();
+            close();
+        }
+    }
+
+    private void read() {
+        Exception error = null;
+        try {
+            logger.info("Reading " + (packets ? "packets" : "frames") + " from " + IngestRegistry.displayName(url));
+            while (true) {
+                Exception failure = null;
+                try {
+                    if (packets) {
+                        readPackets();
+                    } else {
+                        readFrames();
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    failure = e;
+                }
+                if (failure == null && !live && looping && !worker.isCancelled() && rewind()) {
+                    continue;
+                }
+                // Files end where they end; a live source that closes or fails has dropped
+                if (worker.isCancelled() || !live || !reconnect(failure)) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    break;
+                }
+            }
+            logger.info("Finished reading " + worker.getFrames() + " " + (packets ? "packets" : "frames")
+                    + " from " + IngestRegistry.displayName(url) + (loops > 0 ? " in " + (loops + 1) + " loops" : "")
+                    + (clock.getRestarts() > 0 ? ", pacing restarted " + clock.getRestarts() + " times" : ""));
+        } catch (InterruptedException e) {
+            // Cancelled while pacing or waiting to reconnect
+        } catch (Exception e) {
+            if (!worker.isCancelled()) {
+                logger.severe("Error reading " + IngestRegistry.displayName(url) + ": " + e.getMessage());
+                error = e;
+            }
+        } finally {
+            IngestSink[] remaining;
+            synchronized (this) {
+                ended = true;
+                remaining = sinks.toArray(new IngestSink[0]);
+                sinks.clear();
+                snapshot = new IngestSink[0];
+            }
+            registry.ended(this);
+            for (IngestSink sink : remaining) {
+                end(sink, error);
+            }
+            close();
+        }
+    }
+
+    // Reopens a live source that dropped, waiting a jittered, doubling delay before every attempt so
+    // cameras that dropped together do not reconnect in lockstep. Returns false once the give-up time
+    // has passed, or when nobody is attached any more.
+    private boolean reconnect(Exception cause) throws InterruptedException {
+        long giveUpMillis = registry.getReconnectGiveUpMillis();
+        if (giveUpMillis <= 0) {
+            return false;
+        }
+        String name = IngestRegistry.displayName(url);
+        logger.warning("Lost " + name + (cause != null ? ": " + cause.getMessage() : "") + ", reconnecting");
+        reconnecting = true;
+        try {
+            long deadline = System.currentTimeMillis() + giveUpMillis;
+            long delay = registry.getReconnectInitialMillis();
+            for (int attempt = 1; ; attempt++) {
+                long wait = ThreadLocalRandom.current().nextLong(delay / 2, delay + 1);
+                if (System.currentTimeMillis() + wait > deadline) {
+                    logger.warning("Giving up on " + name + " after " + (attempt - 1) + " reconnect attempts");
+                    return false;
+                }
+                keepOutputsAlive();
+                Thread.sleep(wait);
+                if (worker.isCancelled() || getSinkCount() == 0) {
+                    return false;
+                }
+                keepOutputsAlive();
+                FFmpegFrameGrabber reopened;
+                try {
+                    reopened = registry.open(url);
+                } catch (Exception e) {
+                    logger.warning("Reconnect attempt " + attempt + " to " + name + " failed: " + e.getMessage());
+                    delay = Math.min(delay * 2, registry.getReconnectMaxMillis());
+                    continue;
+                }
+                switchTo(reopened);
+                meters.reconnected();
+                logger.info("Reconnected to " + name + " after " + attempt + " attempts");
+                return true;
+            }
+        } finally {
+            reconnecting = false;
+        }
+    }
+
+    // Starts a looped file over from a fresh grabber, so outputs see the same restart as after a
+    // reconnect. Returns false when nobody is attached any more.
+    private boolean rewind() throws Exception {
+        if (getSinkCount() == 0) {
+            return false;
+        }
+        switchTo(registry.open(url));
+        loops++;
+        logger.fine("Looping " + IngestRegistry.displayName(url) + " (" + loops + ")");
+        return true;
+    }
+
+    // The old grabber stays open until the new one is in place, so its streams remain valid for readers
+    private void switchTo(FFmpegFrameGrabber reopened) {
+        FFmpegFrameGrabber previous = grabber;
+        mediaTypes = mediaTypes(reopened);
+        grabber = reopened;
+        IngestRegistry.closeQuietly(previous);
+        clock.reset();
+        synchronized (dispatchLock) {
+            for (IngestSink sink : snapshot) {
+                try {
+                    sink.onDiscontinuity();
+                } catch (Exception e) {
+                    fail(sink, e);
+                }
+            }
+        }
+    }
+
+    private static int[] mediaTypes(FFmpegFrameGrabber grabber) {
+        AVFormatContext context = grabber.getFormatContext();
+        int[] types = new int[context.nb_streams()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = context.streams(i).codecpar().codec_type();
+        }
+        return types;
+    }
+
+    // Waiting for the source is not a stall, neither for the reader nor for the outputs it feeds
+    private void keepOutputsAlive() {
+        worker.keepAlive();
+        for (IngestSink sink : snapshot) {
+            sink.onReconnecting();
+        }
+    }
+
+    private void readPackets() throws Exception {
+        int[] types = mediaTypes;
+        long[] lastDts = new long[types.length];
+        Arrays.fill(lastDts, avutil.AV_NOPTS_VALUE);
+        AVPacket packet;
+        while (!worker.isCancelled() && (packet = readPacket()) != null) {
+            int index = packet.stream_index();
+            int type = index < types.length ? types[index] : avutil.AVMEDIA_TYPE_UNKNOWN;
+            boolean media = type == avutil.AVMEDIA_TYPE_VIDEO || type == avutil.AVMEDIA_TYPE_AUDIO;
+            // The muxer rejects non-increasing DTS, which RTSP sources produce now and then
+            boolean outOfOrder = media && packet.dts() != avutil.AV_NOPTS_VALUE
+                    && lastDts[index] != avutil.AV_NOPTS_VALUE && packet.dts() <= lastDts[index];
+            if (media && !outOfOrder) {
+                if (packet.dts() != avutil.AV_NOPTS_VALUE) {
+                    lastDts[index] = packet.dts();
+                }
+                synchronized (dispatchLock) {
+                    for (IngestSink sink : snapshot) {
+                        try {
+                            sink.onPacket(packet);
+                        } catch (Exception e) {
+                            fail(sink, e);
+                        }
+                    }
+                }
+                worker.progress();
+            }
+            // Every sink records its own reference, so the reader's copy is always released here
+            avcodec.av_packet_unref(packet);
+        }
+    }
+
+    private void readFrames() throws Exception {
+        Frame frame;
+        while (!worker.isCancelled() && (frame = readFrame()) != null) {
+            if (frame.image == null && frame.samples == null) {
+                continue;
+            }
+            if (paced) {
+                clock.await(frame.timestamp, frame.image == null);
+            }
+            synchronized (dispatchLock) {
+                for (IngestSink sink : snapshot) {
+                    try {
+                        sink.onFrame(frame);
+                    } catch (Exception e) {
+                        fail(sink, e);
+                    }
+                }
+            }
+            worker.progress();
+        }
+    }
+
+    private AVPacket readPacket() throws Exception {
+        readStartNanos = System.nanoTime();
+        AVPacket packet = grabber.grabPacket();
+        if (packet != null) {
+            meters.grabbed(readStartNanos);
+        }
+        return packet;
+    }
+
+    private Frame readFrame() throws Exception {
+        readStartNanos = System.nanoTime();
+        Frame frame = grabber.grab();
+        if (frame != null) {
+            meters.grabbed(readStartNanos);
+        }
+        return frame;
+    }
+
+    // One broken output must not take the others down with it
+    private void fail(IngestSink sink, Exception e) {
+        logger.warning("Detaching output of " + IngestRegistry.displayName(url) + " after error: " + e.getMessage());
+        if (detach(sink)) {
+            end(sink, e);
+        }
+    }
+
+    private void end(IngestSink sink, Exception error) {
+        try {
+            sink.onEnd(error);
+        } catch (Exception e) {
+            logger.warning("Error ending output of " + IngestRegistry.displayName(url) + ": " + e.getMessage());
+        }
+    }
+
+    private void close() {
+        meters.close();
+        try {
+            grabber.stop();
+            grabber.release();
+        } catch (Exception e) {
+            logger.warning("Error releasing grabber for " + IngestRegistry.displayName(url) + ": " + e.getMessage());
+        }
+        resource.close();
+    }
+}
@@ -0,0 +1,208 @@
+package th.mfu;
+
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+// Reference-counted ingests keyed by source URL, so every output of one camera shares a single pull.
+// Passthrough outputs share a packet ingest and transcoding outputs share a frame ingest.
+@Component
+public class IngestRegistry {
+    private static final Logger logger = Logger.getLogger(IngestRegistry.class.getName());
+
+    @Autowired
+    private StreamScheduler scheduler;
+
+    @Autowired
+    private StreamMetrics metrics;
+
+    @Autowired
+    private ProbeCache probeCache;
+
+    @Autowired
+    private NativeMemoryTracker nativeMemory;
+
+    // Stream analysis of a source whose probe is cached; enough to see its parameters, not to guess them
+    @Value("${stream.probe.cached-analyze-duration-us:200000}")
+    private long cachedAnalyzeMicros;
+
+    @Value("${stream.probe.cached-probe-bytes:65536}")
+    private long cachedProbeBytes;
+
+    // A live source that drops is reopened after a jittered delay starting at initial-ms and doubling
+    // up to max-ms; its outputs end once give-up-ms pass without a connection (0 never reconnects)
+    @Value("${stream.ingest.reconnect-initial-ms:500}")
+    private long reconnectInitialMillis;
+
+    @Value("${stream.ingest.reconnect-max-ms:10000}")
+    private long reconnectMaxMillis;
+
+    @Value("${stream.ingest.reconnect-give-up-ms:60000}")
+    private long reconnectGiveUpMillis;
+
+    private final Map<String, Ingest> ingests = new HashMap<>();
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    // Returns a running ingest for the source, or opens one; the caller must attach a sink to it or
+    // release() it. A passthrough request gets a frame ingest when the source codecs cannot be copied.
+    public Ingest acquire(String url, boolean passthrough) throws Exception {
+        synchronized (this) {
+            Ingest existing = ingests.get(key(url, passthrough));
+            if (existing == null && passthrough) {
+                // A frame ingest already showed that this source cannot be copied
+                Ingest frames = ingests.get(key(url, false));
+                if (frames != null && !isPassthroughCompatible(frames.getGrabber())) {
+                    existing = frames;
+                }
+            }
+            if (existing != null) {
+                existing.references++;
+                logger.info("Sharing ingest of " + displayName(url) + " (" + existing.references + " users)");
+                return existing;
+            }
+        }
+
+        FFmpegFrameGrabber grabber = open(url);
+        boolean packets = passthrough && isPassthroughCompatible(grabber);
+        String key = key(url, packets);
+        // Demuxing costs next to nothing; decoding is part of each transcoding output's cost. Ingest
+        // workers are numbered because the scheduler replaces a running worker of the same name.
+        StreamWorker worker;
+        try {
+            worker = scheduler.admit("ingest-" + sequence.incrementAndGet() + "-" + displayName(url),
+                    scheduler.estimateCost(grabber.getImageWidth(), grabber.getImageHeight(), true));
+        } catch (StreamRejectedException e) {
+            closeQuietly(grabber);
+            throw e;
+        }
+        synchronized (this) {
+            Ingest existing = ingests.get(key);
+            if (existing == null) {
+                Ingest ingest = new Ingest(this, key, url, grabber, packets, worker, metrics, nativeMemory);
+                ingest.references = 1;
+                ingests.put(key, ingest);
+                return ingest;
+            }
+            // Another request opened the same source meanwhile
+            existing.references++;
+            worker.abort();
+            closeQuietly(grabber);
+            return existing;
+        }
+    }
+
+    // Connects to the source; also used by an ingest to reopen a live source that dropped. A source
+    // with a cached probe gets a short stream analysis, and the full one only if that finds something
+    // else than the cache, e.g. because the camera was reconfigured.
+    FFmpegFrameGrabber open(String url) throws Exception {
+        long start = System.nanoTime();
+        ProbeCache.Probe cached = probeCache.get(url);
+        FFmpegFrameGrabber grabber = connect(url, cached != null);
+        if (cached != null && !cached.matches(grabber)) {
+            logger.info("Source " + displayName(url) + " differs from its cached probe (" + cached + "), analysing it fully");
+            closeQuietly(grabber);
+            grabber = connect(url, false);
+        }
+        probeCache.put(url, grabber);
+        logger.info("Opened " + displayName(url) + " in " + (System.nanoTime() - start) / 1000000 + " ms"
+                + (cached != null ? " from its cached probe" : "") + ": " + grabber.getImageWidth() + "x" + grabber.getImageHeight()
+                + ", video codec: " + grabber.getVideoCodecName() + ", audio codec: " + grabber.getAudioCodecName()
+                + ", audio channels: " + grabber.getAudioChannels() + ", sample rate: " + grabber.getSampleRate());
+        return grabber;
+    }
+
+    private FFmpegFrameGrabber connect(String url, boolean quick) throws Exception {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(url);
+        grabber.setOption("rtsp_transport", "tcp");
+        grabber.setOption("stimeout", "2000000");
+        if (quick) {
+            grabber.setOption("analyzeduration", String.valueOf(cachedAnalyzeMicros));
+            grabber.setOption("probesize", String.valueOf(cachedProbeBytes));
+        }
+        try {
+            // start() holds a JVM-wide lock through the whole connect and stream analysis, which made
+            // concurrent opens wait for each other; FFmpeg itself has not needed one since 4.0
+            grabber.startUnsafe();
+        } catch (Exception e) {
+            closeQuietly(grabber);
+            throw e;
+        }
+        return grabber;
+    }
+
+    // The source's cached probe; without one the source is opened and closed again, which also shows
+    // that it can be reached
+    public ProbeCache.Probe probe(String url) throws Exception {
+        ProbeCache.Probe cached = probeCache.get(url);
+        if (cached != null) {
+            return cached;
+        }
+        FFmpegFrameGrabber grabber = open(url);
+        closeQuietly(grabber);
+        return probeCache.get(url);
+    }
+
+    long getReconnectInitialMillis() {
+        return reconnectInitialMillis;
+    }
+
+    long getReconnectMaxMillis() {
+        return reconnectMaxMillis;
+    }
+
+    long getReconnectGiveUpMillis() {
+        return reconnectGiveUpMillis;
+    }
+
+    // Drops a reference taken by acquire(); the source is closed with the last one
+    public synchronized void release(Ingest ingest) {
+        if (--ingest.references > 0) {
+            return;
+        }
+        ingests.remove(ingest.getKey(), ingest);
+        logger.info("Closing ingest of " + displayName(ingest.getUrl()));
+        ingest.stop();
+    }
+
+    synchronized void ended(Ingest ingest) {
+        ingests.remove(ingest.getKey(), ingest);
+    }
+
+    public synchronized List<Ingest> getIngests() {
+        return new ArrayList<>(ingests.values());
+    }
+
+    // HLS players only need H.264 video and, if present, AAC audio
+    static boolean isPassthroughCompatible(FFmpegFrameGrabber grabber) {
+        if (grabber.getVideoCodec() != avcodec.AV_CODEC_ID_H264) {
+            return false;
+        }
+        return grabber.getAudioChannels() == 0 || grabber.getAudioCodec() == avcodec.AV_CODEC_ID_AAC;
+    }
+
+    // Source URL without credentials, for logs and thread names
+    static String displayName(String url) {
+        return url.replaceFirst("://[^/@]*@", "://");
+    }
+
+    private static String key(String url, boolean packets) {
+        return (packets ? "packets|" : "frames|") + url;
+    }
+
+    static void closeQuietly(FFmpegFrameGrabber grabber) {
+        try {
+            grabber.stop();
+            grabber.release();
+        } catch (Exception e) {
+            logger.warning("Error releasing grabber: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package th.mfu;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.javacv.Frame;
+
+// An output attached to a shared Ingest. The callbacks run on the ingest's reader thread and
+// must not keep the packet or frame, which the reader reuses as soon as they return.
+public interface IngestSink {
+    // Compressed packets, delivered by passthrough (packet) ingests
+    default void onPacket(AVPacket packet) throws Exception {
+    }
+
+    // Decoded frames, delivered by transcoding (frame) ingests
+    default void onFrame(Frame frame) throws Exception {
+    }
+
+    // A live source dropped and is being reopened; called before every attempt, so outputs that wait
+    // for frames meanwhile are not reclaimed as stalled
+    default void onReconnecting() {
+    }
+
+    // The source was reopened after a drop, or a looped file started over: what follows comes from a
+    // new grabber, with its own stream parameters and timestamps
+    default void onDiscontinuity() throws Exception {
+    }
+
+    // The source ended, or failed when error is set; not called for sinks that detached themselves
+    void onEnd(Exception error);
+
+    // File sources are played out in real time while a sink that asks for it is attached
+    default boolean isRealTime() {
+        return false;
+    }
+
+    // File sources start over at their end while a sink that asks for it is attached
+    default boolean isLooping() {
+        return false;
+    }
+}
@@ -0,0 +1,201 @@
+package th.mfu;
+
+import org.bytedeco.javacv.Frame;
+import java.nio.ByteBuffer;
+
+// Scene activity of one transcoded stream, judged on the ingest's reader thread before frames are
+// queued for the encoder. Every analyze interval the picture is reduced to a grid of cells, each the
+// sum of approximate luma (B + 2G + R) over a few sampled pixels, and the scene is moving while enough
+// cells changed since the previous analysis. Once it has been still for the hold time the encoder gets
+// the last picture it encoded again instead of the new one, apart from one fresh picture per static
+// interval. A repeated picture encodes to skipped macroblocks at a fraction of the CPU, and unlike a
+// dropped frame it keeps the encoder's frame count, so keyframes and segment boundaries stay in place.
+public class MotionDetector {
+    private final MotionService service;
+    private final String streamName;
+    private final int gridWidth;
+    private final int pixelThreshold;
+    private final double areaThreshold;
+    private final long analyzeMicros;
+    private final long holdMicros;
+    private final long staticMicros;
+
+    // Grid of the current picture size; the arrays are reused by every analysis
+    private int width = -1;
+    private int height;
+    private int channels;
+    private int cell;
+    private int step;
+    private int samples;
+    private int cols;
+    private int rows;
+    private int limit;
+    private int[] current;
+    private int[] previous;
+    private byte[] row;
+    private boolean primed;
+
+    // Source timestamps in microseconds, only used on the reader thread
+    private boolean started;
+    private long lastAnalyzed;
+    private long lastMotion;
+    private long lastFresh;
+
+    // Written by the reader thread only
+    private volatile boolean motion = true;
+    private volatile double activity;
+    private volatile long motionEvents;
+    private volatile long repeatedFrames;
+
+    MotionDetector(MotionService service, String streamName, int gridWidth, int pixelThreshold, double areaThreshold,
+                   long analyzeMillis, long holdMillis, long staticMillis) {
+        this.service = service;
+        this.streamName = streamName;
+        this.gridWidth = Math.max(1, gridWidth);
+        this.pixelThreshold = pixelThreshold;
+        this.areaThreshold = areaThreshold;
+        this.analyzeMicros = analyzeMillis * 1000;
+        this.holdMicros = holdMillis * 1000;
+        this.staticMicros = staticMillis * 1000;
+    }
+
+    public String getStreamName() {
+        return streamName;
+    }
+
+    // Reader thread: true if the frame's picture is to be replaced by the last one the encoder got
+    public boolean isRepeat(Frame frame) {
+        long timestamp = frame.timestamp;
+        if (!started || timestamp < lastAnalyzed) {
+            // First frame, or the source timeline started over after a reconnect or at the end of a file
+            started = true;
+            primed = false;
+            lastMotion = timestamp;
+            lastAnalyzed = timestamp - analyzeMicros;
+        }
+        if (timestamp - lastAnalyzed >= analyzeMicros) {
+            lastAnalyzed = timestamp;
+            double changed = analyze(frame);
+            if (changed >= 0) {
+                activity = changed;
+                if (changed >= areaThreshold) {
+                    lastMotion = timestamp;
+                    if (!motion) {
+                        motion = true;
+                        motionEvents++;
+                        service.changed(this);
+                    }
+                } else if (motion && timestamp - lastMotion >= holdMicros) {
+                    motion = false;
+                    service.changed(this);
+                }
+            }
+        }
+        if (motion || timestamp < lastFresh || timestamp - lastFresh >= staticMicros) {
+            lastFresh = timestamp;
+            return false;
+        }
+        repeatedFrames++;
+        return true;
+    }
+
+    // Fraction of grid cells that changed by more than the pixel threshold since the previous analysis,
+    // or -1 when there is nothing to compare with or the picture is not 8-bit BGR or grey
+    private double analyze(Frame frame) {
+        if (frame.imageDepth != Frame.DEPTH_UBYTE || !(frame.image[0] instanceof ByteBuffer)
+                || (frame.imageChannels != 1 && frame.imageChannels < 3)) {
+            return -1;
+        }
+        if (frame.imageWidth != width || frame.imageHeight != height || frame.imageChannels != channels) {
+            resize(frame.imageWidth, frame.imageHeight, frame.imageChannels);
+        }
+        if (current.length == 0) {
+            // Smaller than one cell
+            return -1;
+        }
+        ByteBuffer image = ((ByteBuffer) frame.image[0]).duplicate();
+        int length = cols * cell * channels;
+        int pixel = step * channels;
+        int first = step / 2 * channels;
+        for (int r = 0; r < rows; r++) {
+            int base = r * cols;
+            for (int c = 0; c < cols; c++) {
+                current[base + c] = 0;
+            }
+            for (int s = 0; s < samples; s++) {
+                int y = r * cell + step / 2 + s * step;
+                image.position(y * frame.imageStride);
+                image.get(row, 0, length);
+                for (int c = 0; c < cols; c++) {
+                    int x = c * cell * channels + first;
+                    int sum = 0;
+                    if (channels == 1) {
+                        for (int k = 0; k < samples; k++, x += pixel) {
+                            sum += (row[x] & 0xff) << 2;
+                        }
+                    } else {
+                        for (int k = 0; k < samples; k++, x += pixel) {
+                            sum += (row[x] & 0xff) + ((row[x + 1] & 0xff) << 1) + (row[x + 2] & 0xff);
+                        }
+                    }
+                    current[base + c] += sum;
+                }
+            }
+        }
+
+        int[] cells = current;
+        current = previous;
+        previous = cells;
+        if (!primed) {
+            primed = true;
+            return -1;
+        }
+        int changed = 0;
+        for (int i = 0; i < cells.length; i++) {
+            int difference = cells[i] - current[i];
+            changed += difference > limit || difference < -limit ? 1 : 0;
+        }
+        return (double) changed / cells.length;
+    }
+
+    // Cells are square, about width / grid-width pixels wide, and sampled on a grid of at most 7 x 7 pixels
+    private void resize(int width, int height, int channels) {
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        cell = Math.max(1, width / gridWidth);
+        step = Math.max(1, cell / 4);
+        samples = cell / step;
+        cols = width / cell;
+        rows = height / cell;
+        // Luma sums are 4 x Y per pixel
+        limit = pixelThreshold * 4 * samples * samples;
+        current = new int[rows * cols];
+        previous = new int[rows * cols];
+        row = new byte[cols * cell * channels];
+        primed = false;
+    }
+
+    public boolean isMotion() {
+        return motion;
+    }
+
+    // Fraction of the picture that changed at the last analysis
+    public double getActivity() {
+        return activity;
+    }
+
+    // Times the scene started moving after being still
+    public long getMotionEvents() {
+        return motionEvents;
+    }
+
+    public long getRepeatedFrames() {
+        return repeatedFrames;
+    }
+
+    // The output ended
+    public void close() {
+        service.closed(this);
+    }
+}
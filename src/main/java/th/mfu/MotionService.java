@@ -0,0 +1,129 @@
+package th.mfu;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+// Motion detection of transcoded streams, see MotionDetector: creates their detectors, exports their
+// meters and hands every change between a moving and a still scene to the listeners, such as the
+// motion WebSocket feed.
+@Service
+public class MotionService {
+    private static final Logger logger = Logger.getLogger(MotionService.class.getName());
+
+    @Autowired
+    private StreamMetrics metrics;
+
+    // Cells across the picture; finer grids see smaller objects but also more noise
+    @Value("${motion.grid-width:64}")
+    private int gridWidth;
+
+    // Change of a cell's average luma (0-255) that counts as movement
+    @Value("${motion.pixel-threshold:12}")
+    private int pixelThreshold;
+
+    // Fraction of the cells that must change for the scene to be moving
+    @Value("${motion.area-threshold:0.005}")
+    private double areaThreshold;
+
+    @Value("${motion.analyze-interval-ms:200}")
+    private long analyzeMillis;
+
+    // Full frame rate continues this long after the last movement
+    @Value("${motion.hold-ms:5000}")
+    private long holdMillis;
+
+    // A still scene still gets a fresh picture this often, e.g. for a clock in the picture
+    @Value("${motion.static-interval-ms:1000}")
+    private long staticMillis;
+
+    private final ConcurrentHashMap<String, MotionDetector> detectors = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<MotionDetector, StreamMetrics.MotionMeters> meters = new ConcurrentHashMap<>();
+    // Called on the ingests' reader threads, so listeners must not block
+    private final List<Consumer<Event>> listeners = new CopyOnWriteArrayList<>();
+
+    // A detector for a transcode of the stream; replaces the one of an earlier run under the same name
+    public MotionDetector detector(String streamName) {
+        MotionDetector detector = new MotionDetector(this, streamName, gridWidth, pixelThreshold, areaThreshold,
+                analyzeMillis, holdMillis, staticMillis);
+        meters.put(detector, metrics.motion(detector));
+        detectors.put(streamName, detector);
+        return detector;
+    }
+
+    public List<MotionDetector> getDetectors() {
+        return new ArrayList<>(detectors.values());
+    }
+
+    public void addListener(Consumer<Event> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<Event> listener) {
+        listeners.remove(listener);
+    }
+
+    void changed(MotionDetector detector) {
+        logger.info((detector.isMotion() ? "Motion in " : "Scene still in ") + detector.getStreamName()
+                + String.format(" (%.1f%% changed)", detector.getActivity() * 100));
+        publish(new Event(detector, false));
+    }
+
+    void closed(MotionDetector detector) {
+        StreamMetrics.MotionMeters closed = meters.remove(detector);
+        if (closed == null) {
+            return;
+        }
+        closed.close();
+        detectors.remove(detector.getStreamName(), detector);
+        publish(new Event(detector, true));
+    }
+
+    private void publish(Event event) {
+        for (Consumer<Event> listener : listeners) {
+            listener.accept(event);
+        }
+    }
+
+    // A stream's scene started or stopped moving, or its output ended
+    public static class Event {
+        private final String stream;
+        private final boolean motion;
+        private final double activity;
+        private final boolean ended;
+        private final long time = System.currentTimeMillis();
+
+        Event(MotionDetector detector, boolean ended) {
+            this.stream = detector.getStreamName();
+            this.motion = detector.isMotion() && !ended;
+            this.activity = detector.getActivity();
+            this.ended = ended;
+        }
+
+        public String getStream() {
+            return stream;
+        }
+
+        public boolean isMotion() {
+            return motion;
+        }
+
+        public double getActivity() {
+            return activity;
+        }
+
+        public boolean isEnded() {
+            return ended;
+        }
+
+        public long getTime() {
+            return time;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package th.mfu;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.util.UriComponentsBuilder;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+// ws://host/api/stream/motion, optionally ?stream=a,b: a JSON text message whenever the scene of a
+// stream with motion detection starts or stops moving, or its output ends, e.g.
+// {"stream":"lobby","motion":true,"activity":0.031,"ended":false,"time":1700000000000}. The current
+// state of every matching stream is sent on connect. In cluster mode each node reports its own streams.
+@Component
+public class MotionWebSocketHandler extends TextWebSocketHandler {
+    private static final Logger logger = Logger.getLogger(MotionWebSocketHandler.class.getName());
+    static final String PATH = "/api/stream/motion";
+    private static final String WATCHER = "watcher";
+    // Events are small and rare; a client this far behind is not reading them
+    private static final int MAX_QUEUED = 256;
+
+    @Autowired
+    private MotionService motionService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${hls.serve.write-timeout-ms:30000}")
+    private long writeTimeoutMillis;
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+        Set<String> streams = new HashSet<>();
+        List<String> filters = UriComponentsBuilder.fromUri(session.getUri()).build().getQueryParams().get("stream");
+        if (filters != null) {
+            for (String filter : filters) {
+                for (String name : filter.split(",")) {
+                    if (!name.trim().isEmpty()) {
+                        streams.add(name.trim());
+                    }
+                }
+            }
+        }
+        RemoteEndpoint.Async remote = ((NativeWebSocketSession) session).getNativeSession(Session.class).getAsyncRemote();
+        remote.setSendTimeout(writeTimeoutMillis);
+        Watcher watcher = new Watcher(session, remote, streams);
+        session.getAttributes().put(WATCHER, watcher);
+        motionService.addListener(watcher);
+        for (MotionDetector detector : motionService.getDetectors()) {
+            watcher.accept(new MotionService.Event(detector, false));
+        }
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        Watcher watcher = (Watcher) session.getAttributes().get(WATCHER);
+        if (watcher != null) {
+            motionService.removeListener(watcher);
+            watcher.close();
+        }
+    }
+
+    // Sends one message at a time without blocking the reader thread that publishes the event
+    private class Watcher implements Consumer<MotionService.Event>, SendHandler {
+        private final WebSocketSession session;
+        private final RemoteEndpoint.Async remote;
+        // Empty for every stream
+        private final Set<String> streams;
+        // Guarded by this
+        private final ArrayDeque<String> queue = new ArrayDeque<>();
+        private boolean sending;
+        private boolean closed;
+
+        Watcher(WebSocketSession session, RemoteEndpoint.Async remote, Set<String> streams) {
+            this.session = session;
+            this.remote = remote;
+            this.streams = streams;
+        }
+
+        @Override
+        public void accept(MotionService.Event event) {
+            if (!streams.isEmpty() && !streams.contains(event.getStream())) {
+                return;
+            }
+            String message;
+            try {
+                message = objectMapper.writeValueAsString(event);
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException(e);
+            }
+            boolean slow = false;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (!sending) {
+                    sending = true;
+                } else if (queue.size() < MAX_QUEUED) {
+                    queue.addLast(message);
+                    return;
+                } else {
+                    closed = true;
+                    slow = true;
+                    queue.clear();
+                }
+            }
+            if (slow) {
+                logger.warning("Motion feed client " + session.getRemoteAddress() + " is not reading, disconnecting it");
+                closeSession(CloseStatus.POLICY_VIOLATION.withReason("Client too slow"));
+                return;
+            }
+            send(message);
+        }
+
+        private void send(String message) {
+            try {
+                remote.sendText(message, this);
+            } catch (RuntimeException e) {
+                // The session closed under us
+                onResult(new SendResult(e));
+            }
+        }
+
+        @Override
+        public void onResult(SendResult result) {
+            String next;
+            synchronized (this) {
+                next = result.isOK() && !closed ? queue.pollFirst() : null;
+                sending = next != null;
+                if (!result.isOK()) {
+                    closed = true;
+                    queue.clear();
+                }
+            }
+            if (next != null) {
+                send(next);
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            queue.clear();
+        }
+
+        private void closeSession(CloseStatus status) {
+            try {
+                session.close(status);
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+}
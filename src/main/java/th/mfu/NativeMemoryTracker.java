@@ -0,0 +1,252 @@
+package th.mfu;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bytedeco.javacpp.Pointer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+// Keeps track of the native objects every stream holds: grabbers, recorders, queued frame copies and
+// segment buffers. FFmpeg allocates with av_malloc, which JavaCPP's Pointer.totalBytes() does not see,
+// and the process RSS does not shrink when a stream is released, so codec memory is estimated from the
+// picture size (measured with OpenH264 and FFmpeg's H.264 decoder); frame and segment buffers are
+// counted exactly. New streams are refused once the tracked total would exceed
+// stream.native.budget-bytes. Objects a stream still holds stream.native.orphan-grace-ms after it
+// ended are released by the sweep, unless a worker thread is still inside them.
+@Component
+public class NativeMemoryTracker {
+    private static final Logger logger = Logger.getLogger(NativeMemoryTracker.class.getName());
+    private static final long MB = 1024 * 1024;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 0 = no budget
+    @Value("${stream.native.budget-bytes:0}")
+    private long budgetBytes;
+
+    @Value("${stream.native.orphan-grace-ms:30000}")
+    private long orphanGraceMillis;
+
+    private final Set<Resource> resources = ConcurrentHashMap.newKeySet();
+    private final AtomicLong orphansReleased = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("gateway.native.memory", this, NativeMemoryTracker::getTrackedBytes)
+                .tag("area", "tracked").description("Native memory tracked per stream, partly estimated")
+                .baseUnit("bytes").register(meterRegistry);
+        FunctionCounter.builder("gateway.native.orphans", orphansReleased, AtomicLong::get)
+                .description("Native objects released after the stream holding them ended").register(meterRegistry);
+    }
+
+    // Estimated codec memory of an encoder for pictures of this size, reference and lookahead frames included
+    public static long encoderBytes(int width, int height) {
+        return 10L * width * height + 2 * MB;
+    }
+
+    // Estimated memory of a source's demuxer and decoder (with the converted picture) or demuxer only
+    public static long sourceBytes(int width, int height, boolean decoding) {
+        return decoding ? 3L * width * height + MB / 2 : MB / 2;
+    }
+
+    // Starts tracking a native object of owner (a stream, or a source); release frees it if its owner
+    // never does. The owner calls close() on the returned resource once it has released the object itself.
+    public Resource track(String owner, String kind, String description, long estimatedBytes, Runnable release) {
+        Resource resource = new Resource(owner, kind, description, estimatedBytes, release);
+        resources.add(resource);
+        return resource;
+    }
+
+    // The owner is gone; whatever it still holds after the grace period is released by sweep()
+    public void ended(String owner) {
+        for (Resource resource : resources) {
+            if (resource.owner.equals(owner)) {
+                resource.end();
+            }
+        }
+    }
+
+    // Refuses a stream whose estimated native memory does not fit the budget any more
+    public void checkBudget(String streamName, long estimatedBytes) {
+        if (budgetBytes <= 0) {
+            return;
+        }
+        long tracked = getTrackedBytes();
+        if (tracked + estimatedBytes > budgetBytes) {
+            throw new StreamRejectedException("Native memory budget exhausted (" + tracked / MB + " MB in use, "
+                    + estimatedBytes / MB + " MB more for " + streamName + ", budget " + budgetBytes / MB + " MB)");
+        }
+    }
+
+    public long getTrackedBytes() {
+        long bytes = 0;
+        for (Resource resource : resources) {
+            bytes += resource.getBytes();
+        }
+        return bytes;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public long getOrphansReleased() {
+        return orphansReleased.get();
+    }
+
+    public List<Resource> getResources() {
+        return new ArrayList<>(resources);
+    }
+
+    // JavaCPP's own figures, for comparison with the tracked total
+    public long getJavaCppBytes() {
+        return Pointer.totalBytes();
+    }
+
+    public long getPhysicalBytes() {
+        return Pointer.physicalBytes();
+    }
+
+    @Scheduled(fixedDelayString = "${stream.native.sweep-interval-ms:10000}")
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        for (Resource resource : resources) {
+            long ended = resource.endedMillis;
+            if (ended < 0 || now - ended < orphanGraceMillis) {
+                continue;
+            }
+            StreamWorker worker = resource.worker;
+            if (worker != null && worker.isRunning()) {
+                // Freeing it under a thread that is still inside FFmpeg would crash the process
+                if (!resource.warned) {
+                    resource.warned = true;
+                    logger.warning(resource + " is still in use by " + worker.getName() + " after its stream ended");
+                }
+                continue;
+            }
+            logger.warning("Releasing orphaned " + resource + ", " + (now - ended) + " ms after its stream ended");
+            orphansReleased.incrementAndGet();
+            resource.release();
+        }
+    }
+
+    public class Resource {
+        private final String owner;
+        private final String kind;
+        private final String description;
+        private final long estimatedBytes;
+        private final long createdMillis = System.currentTimeMillis();
+        // Exactly counted buffers that come with the object, e.g. its queued frames
+        private final List<LongSupplier> buffers = new CopyOnWriteArrayList<>();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile Runnable release;
+        private volatile StreamWorker worker;
+        private volatile long endedMillis = -1;
+        private volatile boolean warned;
+
+        Resource(String owner, String kind, String description, long estimatedBytes, Runnable release) {
+            this.owner = owner;
+            this.kind = kind;
+            this.description = description;
+            this.estimatedBytes = estimatedBytes;
+            this.release = release;
+        }
+
+        public void include(LongSupplier bytes) {
+            buffers.add(bytes);
+        }
+
+        // The object is used on this worker's thread, so it is not released while that still runs
+        public void runOn(StreamWorker worker) {
+            this.worker = worker;
+        }
+
+        // For owners that replace the object, such as a remux restarted after a reconnect
+        public void releaseWith(Runnable release) {
+            this.release = release;
+        }
+
+        // Ends tracking of one object without its whole owner, e.g. a source closed by its last stream
+        public void end() {
+            if (endedMillis < 0) {
+                endedMillis = System.currentTimeMillis();
+            }
+        }
+
+        // The owner released the object
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                resources.remove(this);
+            }
+        }
+
+        // Releases the object if its owner has not; for failed starts and orphans
+        public void release() {
+            if (closed.get()) {
+                return;
+            }
+            try {
+                release.run();
+            } catch (RuntimeException e) {
+                logger.warning("Error releasing " + this + ": " + e.getMessage());
+            }
+            close();
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public String getKind() {
+            return kind;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public long getEstimatedBytes() {
+            return estimatedBytes;
+        }
+
+        public long getBufferBytes() {
+            long bytes = 0;
+            for (LongSupplier buffer : buffers) {
+                bytes += buffer.getAsLong();
+            }
+            return bytes;
+        }
+
+        public long getBytes() {
+            return estimatedBytes + getBufferBytes();
+        }
+
+        public long getCreatedMillis() {
+            return createdMillis;
+        }
+
+        // When its owner ended, or -1
+        public long getEndedMillis() {
+            return endedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " of " + owner + (description != null ? " (" + description + ")" : "");
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package th.mfu;
+
+import java.util.Properties;
+
+// What a gateway node last published about itself to the cluster registry
+public class NodeStatus {
+    private final String id;
+    // Base URL other nodes and clients reach this node's API at, e.g. http://gw2:8080
+    private final String url;
+    // Scheduler capacity and load in cores
+    private final double capacity;
+    private final double load;
+    private final long updatedMillis;
+
+    public NodeStatus(String id, String url, double capacity, double load, long updatedMillis) {
+        this.id = id;
+        this.url = url;
+        this.capacity = capacity;
+        this.load = load;
+        this.updatedMillis = updatedMillis;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public double getCapacity() {
+        return capacity;
+    }
+
+    public double getLoad() {
+        return load;
+    }
+
+    public long getUpdatedMillis() {
+        return updatedMillis;
+    }
+
+    // Share of the node's capacity in use
+    public double getUtilization() {
+        return capacity > 0 ? load / capacity : 1;
+    }
+
+    Properties toProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("id", id);
+        properties.setProperty("url", url);
+        properties.setProperty("capacity", String.valueOf(capacity));
+        properties.setProperty("load", String.valueOf(load));
+        properties.setProperty("updated", String.valueOf(updatedMillis));
+        return properties;
+    }
+
+    static NodeStatus fromProperties(Properties properties) {
+        return new NodeStatus(properties.getProperty("id"), properties.getProperty("url"),
+                Double.parseDouble(properties.getProperty("capacity")), Double.parseDouble(properties.getProperty("load")),
+                Long.parseLong(properties.getProperty("updated")));
+    }
+
+    @Override
+    public String toString() {
+        return id + " (" + url + ")";
+    }
+}
@@ -0,0 +1,66 @@
+package th.mfu;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Releases the frames of a file at the pace of their own timestamps, audio and video alike, as a
+// camera would deliver them. Due times are kept on System.nanoTime() and waited for by parking, so
+// a frame goes out within a fraction of a millisecond instead of a sleep's granularity. A reader
+// that falls behind catches up by not waiting until it is on time again; one that falls too far
+// behind, or meets a timestamp jump such as a file starting over, restarts the clock at the frame
+// at hand instead of bursting through the backlog.
+class PlayoutClock {
+    // Further behind than this the clock restarts rather than catching up
+    private static final long MAX_LAG_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Timestamps moving more than this either way are a discontinuity, not a gap to wait out
+    private static final long MAX_JUMP_MICROS = TimeUnit.SECONDS.toMicros(3);
+    // Files interleave audio a little ahead of video; released this early, an audio frame never holds
+    // up the video frames stored after it, and receivers buffer that much audio anyway
+    private static final long AUDIO_LEAD_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private long baseTimestamp;
+    private long baseNanos;
+    private long lastTimestamp;
+    private boolean running;
+    private long restarts;
+
+    // Waits until the frame with this timestamp, in microseconds, is due
+    void await(long timestamp, boolean audio) throws InterruptedException {
+        long now = System.nanoTime();
+        // Audio and video interleave, so timestamps may step back a little between streams
+        if (!running || timestamp < lastTimestamp - MAX_JUMP_MICROS || timestamp > lastTimestamp + MAX_JUMP_MICROS) {
+            start(timestamp, now);
+            return;
+        }
+        lastTimestamp = Math.max(lastTimestamp, timestamp);
+        long due = baseNanos + (timestamp - baseTimestamp) * 1000 - (audio ? AUDIO_LEAD_NANOS : 0);
+        if (now - due > MAX_LAG_NANOS) {
+            restarts++;
+            start(timestamp, now);
+            return;
+        }
+        for (long wait = due - now; wait > 0; wait = due - System.nanoTime()) {
+            LockSupport.parkNanos(this, wait);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    // The next frame starts the clock over, e.g. after the source was reopened
+    void reset() {
+        running = false;
+    }
+
+    // How often the reader fell so far behind that the clock had to start over
+    long getRestarts() {
+        return restarts;
+    }
+
+    private void start(long timestamp, long now) {
+        baseTimestamp = timestamp;
+        lastTimestamp = timestamp;
+        baseNanos = now;
+        running = true;
+    }
+}
@@ -0,0 +1,212 @@
+package th.mfu;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+// What opening each source found out: codecs, picture size, frame rate and audio layout. FFmpeg's
+// stream analysis takes most of the time to open a source; a source probed before is opened with a
+// short analysis instead, and fully again only if that does not find what the cache says. The cache
+// is kept in a file, so the streams of a restarted gateway come back quickly. Sources are keyed by
+// their URL without credentials, which never reach the file.
+@Component
+public class ProbeCache {
+    private static final Logger logger = Logger.getLogger(ProbeCache.class.getName());
+
+    // Empty keeps the cache in memory only
+    @Value("${stream.probe.cache-path:${data.path:./data}/probe-cache.properties}")
+    private String path;
+
+    // Older probes are not trusted, a camera may have been reconfigured meanwhile
+    @Value("${stream.probe.cache-ttl-hours:168}")
+    private long ttlHours;
+
+    private final ConcurrentHashMap<String, Probe> probes = new ConcurrentHashMap<>();
+    private Path file;
+
+    @PostConstruct
+    public void init() {
+        if (path == null || path.trim().isEmpty()) {
+            return;
+        }
+        file = Paths.get(path);
+        if (!Files.isRegularFile(file)) {
+            // Said now rather than on every save, or a cache that never persists goes unnoticed
+            Path directory = file.toAbsolutePath().getParent();
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException e) {
+                // Reported below
+            }
+            if (!Files.isWritable(directory)) {
+                logger.warning("Probe cache directory " + directory + " is not writable, probes will not survive a restart");
+            }
+            return;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            logger.warning("Cannot read probe cache " + file + ": " + e.getMessage());
+            return;
+        }
+        for (String url : properties.stringPropertyNames()) {
+            try {
+                probes.put(url, Probe.parse(properties.getProperty(url)));
+            } catch (RuntimeException e) {
+                logger.warning("Skipping probe of " + url + ": " + e.getMessage());
+            }
+        }
+        logger.info("Loaded " + probes.size() + " cached source probes from " + file);
+    }
+
+    // The source's last probe, or null if it has none that is recent enough
+    public Probe get(String url) {
+        Probe probe = probes.get(IngestRegistry.displayName(url));
+        if (probe == null || System.currentTimeMillis() - probe.probedAt > TimeUnit.HOURS.toMillis(ttlHours)) {
+            return null;
+        }
+        return probe;
+    }
+
+    // Remembers what an opened grabber found
+    public void put(String url, FFmpegFrameGrabber grabber) {
+        Probe probe = new Probe(grabber.getVideoCodecName(), grabber.getImageWidth(), grabber.getImageHeight(),
+                grabber.getFrameRate(), grabber.getAudioCodecName(), grabber.getAudioChannels(),
+                grabber.getSampleRate(), System.currentTimeMillis());
+        Probe previous = probes.put(IngestRegistry.displayName(url), probe);
+        // Refreshed on disk before it would expire there
+        if (previous == null || !previous.matches(grabber)
+                || probe.probedAt - previous.probedAt > TimeUnit.HOURS.toMillis(ttlHours) / 2) {
+            save();
+        }
+    }
+
+    public Map<String, Probe> getAll() {
+        return new ConcurrentHashMap<>(probes);
+    }
+
+    // Written only when a probe is new or changed; the file is replaced as a whole
+    private synchronized void save() {
+        if (file == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        for (Map.Entry<String, Probe> entry : probes.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue().format());
+        }
+        try {
+            Path directory = file.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, ".probe-cache", ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                properties.store(out, "Source probes, see ProbeCache");
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warning("Cannot write probe cache " + file + ": " + e.getMessage());
+        }
+    }
+
+    public static class Probe {
+        private final String videoCodec;
+        private final int width;
+        private final int height;
+        private final double frameRate;
+        // Null without audio
+        private final String audioCodec;
+        private final int audioChannels;
+        private final int sampleRate;
+        private final long probedAt;
+
+        Probe(String videoCodec, int width, int height, double frameRate, String audioCodec, int audioChannels,
+              int sampleRate, long probedAt) {
+            this.videoCodec = videoCodec;
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.audioCodec = audioChannels > 0 ? audioCodec : null;
+            this.audioChannels = audioChannels;
+            this.sampleRate = sampleRate;
+            this.probedAt = probedAt;
+        }
+
+        // Whether a grabber opened with a short analysis found the same streams
+        boolean matches(FFmpegFrameGrabber grabber) {
+            return grabber.getImageWidth() == width && grabber.getImageHeight() == height
+                    && Math.abs(grabber.getFrameRate() - frameRate) < 0.01
+                    && String.valueOf(videoCodec).equals(String.valueOf(grabber.getVideoCodecName()))
+                    && grabber.getAudioChannels() == audioChannels
+                    && (audioChannels == 0 || (String.valueOf(audioCodec).equals(String.valueOf(grabber.getAudioCodecName()))
+                            && grabber.getSampleRate() == sampleRate));
+        }
+
+        public String getVideoCodec() {
+            return videoCodec;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public double getFrameRate() {
+            return frameRate;
+        }
+
+        public String getAudioCodec() {
+            return audioCodec;
+        }
+
+        public int getAudioChannels() {
+            return audioChannels;
+        }
+
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        public long getProbedAt() {
+            return probedAt;
+        }
+
+        // videoCodec,width,height,frameRate,audioCodec,audioChannels,sampleRate,probedAt
+        String format() {
+            return String.format(Locale.ROOT, "%s,%d,%d,%.3f,%s,%d,%d,%d", videoCodec, width, height, frameRate,
+                    audioCodec != null ? audioCodec : "", audioChannels, sampleRate, probedAt);
+        }
+
+        static Probe parse(String value) {
+            String[] fields = value.split(",", -1);
+            if (fields.length != 8) {
+                throw new IllegalArgumentException("Invalid probe '" + value + "'");
+            }
+            return new Probe(fields[0], Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                    Double.parseDouble(fields[3]), fields[4].isEmpty() ? null : fields[4], Integer.parseInt(fields[5]),
+                    Integer.parseInt(fields[6]), Long.parseLong(fields[7]));
+        }
+
+        @Override
+        public String toString() {
+            return videoCodec + " " + width + "x" + height + " " + String.format(Locale.ROOT, "%.2f", frameRate) + " fps"
+                    + (audioChannels > 0 ? ", " + audioCodec + " " + audioChannels + " ch " + sampleRate + " Hz" : "");
+        }
+    }
+}
@@ -1,18 +1,37 @@
 package th.mfu;
 
-import org.bytedeco.ffmpeg.avcodec.AVPacket;
 import org.bytedeco.javacv.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import org.bytedeco.ffmpeg.global.avcodec;
 import org.bytedeco.ffmpeg.global.avutil;
-import org.bytedeco.ffmpeg.global.avformat;
 import javax.annotation.PostConstruct;
 
 @Service
 public class RTSPStreamService {
-    private final ConcurrentHashMap<String, FFmpegFrameGrabber> activeStreams = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, FFmpegFrameRecorder> activeRecorders = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, EncoderSink> activeSinks = new ConcurrentHashMap<>();
+
+    @Autowired
+    private StreamScheduler scheduler;
+
+    @Autowired
+    private IngestRegistry ingestRegistry;
+
+    @Autowired
+    private StreamMetrics metrics;
+
+    @Autowired
+    private EncodingProfiles encodingProfiles;
+
+    @Autowired
+    private NativeMemoryTracker nativeMemory;
+
+    // Republished files start over at their end, so they can stand in for cameras that never stop
+    @Value("${rtsp.loop-files:true}")
+    private boolean loopFiles;
 
     @PostConstruct
     public void init() {
@@ -22,10 +41,30 @@ public class RTSPStreamService {
     }
 
     public String startStream(String inputUrl, int port, String streamName) {
+        return startStream(inputUrl, port, streamName, null);
+    }
+
+    // profile names the encoding profile, null for the default one
+    public String startStream(String inputUrl, int port, String streamName, String profile) {
+        EncodingProfile encoding = encodingProfiles.get(profile);
+        Ingest ingest = null;
+        StreamWorker worker = null;
+        NativeMemoryTracker.Resource output = null;
+        EncoderSink sink = null;
         try {
             System.out.println("Starting stream from " + inputUrl);
-            FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputUrl);
-            grabber.start();
+            // Replace a stream running under the same name
+            stopStream(streamName);
+
+            // Shares the decoded frames with any other output pulling the same source
+            ingest = ingestRegistry.acquire(inputUrl, false);
+            FFmpegFrameGrabber grabber = ingest.getGrabber();
+
+            // Republishing always re-encodes, so it is admitted at full transcode cost
+            long encoderBytes = NativeMemoryTracker.encoderBytes(grabber.getImageWidth(), grabber.getImageHeight());
+            nativeMemory.checkBudget(workerName(streamName), encoderBytes);
+            worker = scheduler.admit(workerName(streamName),
+                    scheduler.estimateCost(grabber.getImageWidth(), grabber.getImageHeight(), encoding));
 
             // Use MediaMTX service name for Docker Compose network
             String mediamtxHost = System.getenv("MEDIAMTX_HOST");
@@ -40,14 +79,14 @@ public class RTSPStreamService {
                     grabber.getImageHeight(),
                     grabber.getAudioChannels()
                     );
-            
-            // Configure grabber for ultra-low latency
-            grabber.setOption("fflags", "nobuffer+fastseek+genpts");  // reduce internal buffering
-            grabber.setOption("flags", "low_delay");
-            grabber.setOption("framedrop", "false");
-            grabber.setOption("analyzeduration", "1000000");  // 1 second analysis
-            grabber.setOption("probesize", "1000000");        // 1MB probe size
-            grabber.setOption("sync", "ext");                 // External sync
+            output = nativeMemory.track(workerName(streamName), "encoder",
+                    grabber.getImageWidth() + "x" + grabber.getImageHeight(), encoderBytes, () -> {
+                        try {
+                            recorder.release();
+                        } catch (Exception e) {
+                            System.out.println("Error releasing recorder of " + streamName + ": " + e.getMessage());
+                        }
+                    });
             
             // Configure recorder for RTSP client with optimized settings
             recorder.setFormat("rtsp");
@@ -56,91 +95,68 @@ public class RTSPStreamService {
             recorder.setOption("muxdelay", "0.1");            // Minimal mux delay
             recorder.setOption("muxpreload", "0.1");          // Minimal mux preload
             
-            // --- Video Configuration ---
-            recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
-            recorder.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
-            recorder.setFrameRate(grabber.getFrameRate()); // match original FPS
-            recorder.setGopSize((int) grabber.getFrameRate()); // 1s keyframe
-            recorder.setVideoOption("preset", "ultrafast");
-            recorder.setVideoOption("tune", "zerolatency");
-            // Note: Removed profile setting as it's not compatible with OpenH264
-            recorder.setVideoOption("crf", "23");             // Constant rate factor
-            recorder.setVideoOption("maxrate", "2M");         // Max bitrate
-            recorder.setVideoOption("bufsize", "4M");         // Buffer size
-            recorder.setVideoOption("keyint_min", "30");      // Minimum keyframe interval
-            recorder.setVideoOption("sc_threshold", "0");     // Disable scene change detection
-
-            // --- Audio Configuration ---
-            recorder.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
-            recorder.setAudioBitrate(128_000);
-            recorder.setSampleRate(grabber.getSampleRate());
-            recorder.setAudioOption("aac_coder", "fast");     // Use fast AAC encoder
-            recorder.setAudioOption("aac_latm", "0");         // Disable LATM
-            recorder.setAudioOption("aac_mux_latm", "0");     // Disable LATM muxing
-
+            configureEncoder(recorder, grabber, encoding);
             recorder.start();
 
-            activeStreams.put(streamName, grabber);
-            activeRecorders.put(streamName, recorder);
-
-            // Start streaming in a separate thread
-            new Thread(() -> streamFramesRealTime(streamName)).start();
+            // A republished file is played out in real time, like a camera would deliver it. A failing
+            // sink unregisters only itself, not a replacement started under the same name since.
+            AtomicReference<EncoderSink> self = new AtomicReference<>();
+            sink = new EncoderSink(scheduler, ingest, worker, recorder, output,
+                    metrics.output(streamName, "rtsp", worker), null, true, loopFiles,
+                    () -> activeSinks.remove(streamName, self.get()));
+            self.set(sink);
+            // Registered first, so a sink that fails right away is unregistered again
+            activeSinks.put(streamName, sink);
+            sink.start();
 
             return outputUrl;
         } catch (Exception e) {
+            if (sink != null) {
+                activeSinks.remove(streamName, sink);
+            }
+            if (worker != null) {
+                worker.abort();
+            }
+            // The recorder is released even if it failed to start
+            if (output != null) {
+                output.release();
+            }
+            if (ingest != null) {
+                ingestRegistry.release(ingest);
+            }
+            if (e instanceof StreamRejectedException) {
+                throw (StreamRejectedException) e;
+            }
             throw new RuntimeException("Failed to start RTSP stream", e);
         }
     }
 
-     private void streamFramesRealTime(String streamName) {
-        FFmpegFrameGrabber grabber = activeStreams.get(streamName);
-        FFmpegFrameRecorder recorder = activeRecorders.get(streamName);
-
-        try {
-            long startTime = System.currentTimeMillis();
-            Frame frame;
-            int frameIndex = 0;
-            double frameRate = grabber.getFrameRate();
-
-            while ((frame = grabber.grab()) != null) {
-                if (frame.image != null) {
-                    // Calculate the expected time for this frame
-                    long waitTime = (long)((frameIndex / frameRate) * 1000) - (System.currentTimeMillis() - startTime);
-                    if (waitTime > 0) Thread.sleep(waitTime);
-                    frameIndex++;
-                }
-                recorder.record(frame);
-            }
-        } catch (Exception e) {
-            stopStream(streamName);
-        }
+    private static String workerName(String streamName) {
+        return "rtsp-" + streamName;
     }
 
-    private void streamFrames(String streamName) {
-        FFmpegFrameGrabber grabber = activeStreams.get(streamName);
-        FFmpegFrameRecorder recorder = activeRecorders.get(streamName);
-
-        try {
-            Frame frame;
-            while ((frame = grabber.grab()) != null) {
-                recorder.record(frame);
-            }
-        } catch (Exception e) {
-            stopStream(streamName);
-        }
+    // Encoder settings of a republished stream; package-private so the benchmarks encode with them too
+    static void configureEncoder(FFmpegFrameRecorder recorder, FFmpegFrameGrabber grabber, EncodingProfile encoding) {
+        // --- Video Configuration ---
+        recorder.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+        double frameRate = grabber.getFrameRate() > 0 ? grabber.getFrameRate() : 30;    // match original FPS
+        encoding.configure(recorder, frameRate, (int) Math.max(1, Math.round(frameRate)));  // 1s keyframe
+
+        // --- Audio Configuration ---
+        recorder.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
+        recorder.setAudioBitrate(128_000);
+        recorder.setSampleRate(grabber.getSampleRate());
+        recorder.setAudioOption("aac_coder", "fast");     // Use fast AAC encoder
+        recorder.setAudioOption("aac_latm", "0");         // Disable LATM
+        recorder.setAudioOption("aac_mux_latm", "0");     // Disable LATM muxing
     }
 
     public void stopStream(String streamName) {
-        try {
-            FFmpegFrameGrabber grabber = activeStreams.remove(streamName);
-            FFmpegFrameRecorder recorder = activeRecorders.remove(streamName);
-
-            if (grabber != null)
-                grabber.stop();
-            if (recorder != null)
-                recorder.stop();
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to stop RTSP stream", e);
+        // The encoder stops at its next frame and closes the recorder itself
+        EncoderSink sink = activeSinks.remove(streamName);
+        if (sink != null) {
+            sink.close();
         }
+        nativeMemory.ended(workerName(streamName));
     }
 }
@@ -0,0 +1,124 @@
+package th.mfu;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+// Passthrough output of a packet ingest: every packet is muxed as is, on the ingest's reader thread
+public class RemuxSink implements IngestSink {
+    private static final Logger logger = Logger.getLogger(RemuxSink.class.getName());
+
+    private final Ingest ingest;
+    private FFmpegFrameRecorder recorder;
+    private final String name;
+    private final StreamMetrics.OutputMeters meters;
+    private final Runnable onFailure;
+    private final Supplier<FFmpegFrameRecorder> restartRecorder;
+    private final NativeMemoryTracker.Resource resource;
+    // recordPacket() consumes the packet it is given, so each sink muxes its own reference
+    private final AVPacket packet = avcodec.av_packet_alloc();
+    private long packetCount;
+    private boolean keyFrameSeen;
+    private boolean closed;
+
+    // The recorder must already be started from the ingest's format context and tracked as resource;
+    // restartRecorder makes an unstarted one for the same output, to continue it after the source was reopened
+    public RemuxSink(Ingest ingest, FFmpegFrameRecorder recorder, NativeMemoryTracker.Resource resource, String name,
+                     StreamMetrics.OutputMeters meters, Runnable onFailure, Supplier<FFmpegFrameRecorder> restartRecorder) {
+        this.ingest = ingest;
+        this.recorder = recorder;
+        this.resource = resource;
+        this.name = name;
+        this.meters = meters;
+        this.onFailure = onFailure;
+        this.restartRecorder = restartRecorder;
+        // Closing detaches first, so whichever recorder is current is released once the reader is done with it
+        resource.releaseWith(this::close);
+    }
+
+    public void start() {
+        try {
+            ingest.attach(this);
+        } catch (RuntimeException e) {
+            closeRecorder();
+            throw e;
+        }
+        logger.info("Remuxing " + IngestRegistry.displayName(ingest.getUrl()) + " to " + name);
+    }
+
+    @Override
+    public void onPacket(AVPacket source) throws Exception {
+        if (!keyFrameSeen) {
+            // An output joining a running ingest starts at the next keyframe, audio included
+            boolean video = ingest.getMediaType(source.stream_index()) == avutil.AVMEDIA_TYPE_VIDEO;
+            if (!video || (source.flags() & avcodec.AV_PKT_FLAG_KEY) == 0) {
+                return;
+            }
+            keyFrameSeen = true;
+        }
+        if (avcodec.av_packet_ref(packet, source) < 0) {
+            throw new IllegalStateException("Could not reference packet for " + name);
+        }
+        long encodeStart = System.nanoTime();
+        recorder.recordPacket(packet);
+        meters.recorded(ingest.getReadStartNanos(), encodeStart);
+        packetCount++;
+        if (packetCount % 1000 == 0) {
+            logger.info("Remuxed " + packetCount + " packets for stream: " + name);
+        }
+    }
+
+    // The recorder rescales packets with the streams it was started from, which went away with the
+    // old grabber, so the output continues with a recorder started from the new one
+    @Override
+    public synchronized void onDiscontinuity() throws Exception {
+        if (closed) {
+            return;
+        }
+        FFmpegFrameRecorder next = restartRecorder.get();
+        releaseRecorder();
+        recorder = next;
+        keyFrameSeen = false;
+        recorder.start(ingest.getFormatContext());
+        logger.info("Restarted remuxing for " + name + " after the source was reopened");
+    }
+
+    @Override
+    public void onEnd(Exception error) {
+        closeRecorder();
+        if (error != null) {
+            onFailure.run();
+        }
+    }
+
+    // Detaches from the ingest; the recorder is closed once the reader no longer uses it
+    public void close() {
+        if (ingest.detach(this)) {
+            closeRecorder();
+        }
+    }
+
+    private synchronized void closeRecorder() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        logger.info("Finished remuxing " + packetCount + " packets for: " + name);
+        meters.close();
+        releaseRecorder();
+        avcodec.av_packet_free(packet);
+        resource.close();
+    }
+
+    private void releaseRecorder() {
+        try {
+            recorder.stop();
+            recorder.release();
+        } catch (Exception e) {
+            logger.warning("Error cleaning up recorder for " + name + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package th.mfu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// One output of an adaptive-bitrate ladder, e.g. "720p" at 1280x720 and 2800 kbps
+public class Rendition {
+    private final String name;
+    private final int width;
+    private final int height;
+    private final int videoBitrate;
+
+    public Rendition(String name, int width, int height, int videoBitrate) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.videoBitrate = videoBitrate;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getVideoBitrate() {
+        return videoBitrate;
+    }
+
+    // Parses "height:kbps" entries such as "1080:5000,720:2800,360:800" into the renditions that fit
+    // a source, keeping its aspect ratio. Nothing is upscaled: when every entry is taller than the
+    // source, the smallest one is used at the source height.
+    public static List<Rendition> ladder(String spec, int sourceWidth, int sourceHeight) {
+        List<Rendition> renditions = new ArrayList<>();
+        int smallestHeight = Integer.MAX_VALUE;
+        int smallestBitrate = 0;
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid rendition '" + entry + "', expected height:kbps");
+            }
+            int height = Integer.parseInt(parts[0].trim());
+            int bitrate = Integer.parseInt(parts[1].trim()) * 1000;
+            if (height < smallestHeight) {
+                smallestHeight = height;
+                smallestBitrate = bitrate;
+            }
+            if (height <= sourceHeight) {
+                renditions.add(scaled(height, bitrate, sourceWidth, sourceHeight));
+            }
+        }
+        if (renditions.isEmpty() && smallestBitrate > 0) {
+            renditions.add(scaled(sourceHeight, smallestBitrate, sourceWidth, sourceHeight));
+        }
+        // Highest quality first, which players take as the default variant
+        Collections.sort(renditions, (a, b) -> Integer.compare(b.height, a.height));
+        return renditions;
+    }
+
+    private static Rendition scaled(int height, int bitrate, int sourceWidth, int sourceHeight) {
+        // H.264 with 4:2:0 chroma needs even dimensions
+        int evenHeight = height & ~1;
+        int width = (int) Math.round((double) sourceWidth * evenHeight / sourceHeight / 2) * 2;
+        return new Rendition(height + "p", width, evenHeight, bitrate);
+    }
+}
@@ -0,0 +1,188 @@
+package th.mfu;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+// DVR recording: keeps the segments of recorded streams on disk, see StreamArchive. A recorded
+// stream's ring hands every completed segment over as it was muxed for the live playlist, so
+// recording costs a disk write per segment and no second encode. The writes happen on one thread
+// of their own; a segment stays retained, and its buffer out of the ring's pool, until it is written.
+@Component
+public class SegmentArchive {
+    private static final Logger logger = Logger.getLogger(SegmentArchive.class.getName());
+    // Beyond this many segments waiting for the disk, new ones are dropped rather than held in memory
+    private static final int MAX_PENDING = 16;
+    private static final Pattern SAFE_NAME = Pattern.compile("[A-Za-z0-9._-]+");
+
+    @Value("${dvr.path:${data.path:./data}/dvr}")
+    private String path;
+
+    // Retention per stream; the oldest chunks are dropped first (0 = no limit)
+    @Value("${dvr.max-bytes-per-stream:10737418240}")
+    private long maxBytesPerStream;
+
+    @Value("${dvr.max-age-hours:72}")
+    private long maxAgeHours;
+
+    @Value("${dvr.chunk-bytes:67108864}")
+    private long chunkBytes;
+
+    private final ConcurrentHashMap<String, StreamArchive> archives = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private ExecutorService writer;
+    private long dropped;
+
+    @PostConstruct
+    public void init() {
+        writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "dvr-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Archives of earlier runs, and of their renditions one level down
+        File root = new File(path);
+        File[] streams = root.listFiles(File::isDirectory);
+        if (streams != null) {
+            for (File stream : streams) {
+                load(stream.getName(), stream);
+                File[] renditions = stream.listFiles(File::isDirectory);
+                if (renditions != null) {
+                    for (File rendition : renditions) {
+                        load(stream.getName() + "/" + rendition.getName(), rendition);
+                    }
+                }
+            }
+        }
+    }
+
+    private void load(String streamName, File directory) {
+        String[] indexes = directory.list((dir, file) -> file.endsWith(".idx"));
+        if (indexes != null && indexes.length > 0) {
+            try {
+                archive(streamName, false);
+            } catch (RuntimeException e) {
+                logger.warning("Skipping archive " + directory + ": " + e.getMessage());
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        writer.shutdown();
+        writer.awaitTermination(5, TimeUnit.SECONDS);
+        for (StreamArchive archive : archives.values()) {
+            archive.close();
+        }
+    }
+
+    // Archives the segments the ring completes from now on; the ring's name, e.g. "cam1" or
+    // "cam1/720p" for a rendition, names the archive
+    public void record(SegmentRing ring) {
+        StreamArchive archive = archive(ring.getStreamName(), true);
+        archive.markDiscontinuity();
+        ring.onSegmentComplete(segment -> {
+            if (pending.get() >= MAX_PENDING) {
+                synchronized (this) {
+                    dropped++;
+                }
+                archive.markDiscontinuity();
+                logger.warning("Archive writer behind, dropped segment " + segment.getSequence() + " of " + archive.getName());
+                return;
+            }
+            if (!segment.retain()) {
+                return;
+            }
+            long endMillis = System.currentTimeMillis();
+            ByteBuffer init = ring.isLowLatency() ? ring.getInitSection(segment.getDiscontinuity()) : null;
+            pending.incrementAndGet();
+            writer.execute(() -> {
+                try {
+                    archive.append(segment, init, endMillis);
+                } catch (IOException | RuntimeException e) {
+                    archive.markDiscontinuity();
+                    logger.warning("Could not archive segment of " + archive.getName() + ": " + e.getMessage());
+                } finally {
+                    segment.release();
+                    pending.decrementAndGet();
+                }
+            });
+        });
+        logger.info("Recording " + ring.getStreamName() + " to " + new File(path, ring.getStreamName()));
+    }
+
+    // Archives that are no longer recorded to age out too
+    @Scheduled(fixedDelayString = "${dvr.retention-interval-ms:60000}")
+    public void applyRetention() {
+        long now = System.currentTimeMillis();
+        for (StreamArchive archive : archives.values()) {
+            writer.execute(() -> archive.applyRetention(now));
+        }
+    }
+
+    // The archive of a stream, also one recorded before a restart; null if there is none
+    StreamArchive get(String streamName) {
+        try {
+            return archive(streamName, false);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Throws IllegalArgumentException unless the stream can be recorded under its name
+    public void checkName(String streamName) {
+        directory(streamName);
+    }
+
+    public Collection<StreamArchive> getArchives() {
+        return new ArrayList<>(archives.values());
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    private StreamArchive archive(String streamName, boolean create) {
+        StreamArchive archive = archives.get(streamName);
+        if (archive != null) {
+            return archive;
+        }
+        File directory = directory(streamName);
+        if (!create && !directory.isDirectory()) {
+            return null;
+        }
+        return archives.computeIfAbsent(streamName, name -> {
+            try {
+                return new StreamArchive(name, directory, maxBytesPerStream, TimeUnit.HOURS.toMillis(maxAgeHours), chunkBytes);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot open archive of " + name, e);
+            }
+        });
+    }
+
+    // Stream and rendition names become directories; anything that could leave dvr.path is refused
+    private File directory(String streamName) {
+        File directory = new File(path);
+        for (String component : streamName.split("/")) {
+            if (!SAFE_NAME.matcher(component).matches() || component.equals(".") || component.equals("..")) {
+                throw new IllegalArgumentException("Stream name cannot be archived: " + streamName);
+            }
+            directory = new File(directory, component);
+        }
+        return directory;
+    }
+}
@@ -0,0 +1,521 @@
+package th.mfu;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+// Bounded in-memory HLS window for one stream, backed by recycled direct buffers
+public class SegmentRing {
+    // Receives media as it is published, for viewers that are pushed to rather than polling playlists.
+    // Called with the ring locked, so implementations must not block; a subscriber that keeps a part
+    // beyond the call retains its segment.
+    interface Subscriber {
+        void onMedia(HLSSegment segment, HLSPart part);
+
+        // The stream ended or the ring was closed; nothing follows
+        void onEnd();
+    }
+
+    private static final int INITIAL_BUFFER_SIZE = 512 * 1024;
+    private static final int INITIAL_PART_BUFFER_SIZE = 64 * 1024;
+
+    private final String streamName;
+    private final int listSize;
+    private final long maxBytes;
+    private final int targetDuration;
+    // Zero for classic MPEG-TS HLS, otherwise the LL-HLS PART-TARGET in seconds
+    private final double partTarget;
+    private final int pooledBuffers;
+
+    private final ArrayDeque<HLSSegment> segments = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private final List<Waiter> waiters = new ArrayList<>();
+    private HLSSegment open;
+    // fMP4 init sections by discontinuity, as a recorder restarted after a reconnect writes a new one
+    private final TreeMap<Integer, ByteBuffer> initSections = new TreeMap<>();
+    private long nextSequence;
+    // Discontinuity of the segments being written, one more after every segmenter hand-over
+    private int discontinuity;
+    private boolean handingOver;
+    private long bytes;
+    // Payload published since the ring was opened, for the output bitrate
+    private volatile long bytesWritten;
+    private int bufferSize;
+    private double longestSegment;
+    private boolean ended;
+    private boolean closed;
+    private volatile byte[] playlist;
+    // RFC 6381 string of the video as encoded, from the init section or the first segment
+    private volatile String videoCodec;
+    // Sees every segment once it is complete, e.g. to archive it; must not block
+    private volatile Consumer<HLSSegment> completionListener;
+    // Copied on write, so a subscriber may unsubscribe from its own callback
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    public SegmentRing(String streamName, int listSize, long maxBytes, int targetDuration) {
+        this(streamName, listSize, maxBytes, targetDuration, 0);
+    }
+
+    public SegmentRing(String streamName, int listSize, long maxBytes, int targetDuration, double partTarget) {
+        this.streamName = streamName;
+        this.listSize = listSize;
+        this.maxBytes = maxBytes;
+        this.targetDuration = targetDuration;
+        this.partTarget = partTarget;
+        // LL-HLS recycles many small part buffers instead of a couple of whole segments
+        this.pooledBuffers = partTarget > 0 ? (int) Math.ceil(targetDuration / partTarget) * 2 : 2;
+        this.bufferSize = partTarget > 0 ? INITIAL_PART_BUFFER_SIZE : INITIAL_BUFFER_SIZE;
+    }
+
+    public String getStreamName() {
+        return streamName;
+    }
+
+    public int getTargetDuration() {
+        return targetDuration;
+    }
+
+    public boolean isLowLatency() {
+        return partTarget > 0;
+    }
+
+    public double getPartTarget() {
+        return partTarget;
+    }
+
+    synchronized ByteBuffer acquireBuffer(int minCapacity) {
+        Iterator<ByteBuffer> it = freeBuffers.iterator();
+        while (it.hasNext()) {
+            ByteBuffer buffer = it.next();
+            if (buffer.capacity() >= minCapacity) {
+                it.remove();
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(Math.max(minCapacity, bufferSize));
+    }
+
+    synchronized void recycle(ByteBuffer buffer) {
+        if (closed || buffer.capacity() < bufferSize) {
+            return;
+        }
+        if (freeBuffers.size() >= pooledBuffers) {
+            freeBuffers.pollFirst();
+        }
+        buffer.clear();
+        freeBuffers.addLast(buffer);
+    }
+
+    // Publishes a complete MPEG-TS segment; data must be flipped, i.e. ready to be read
+    void publish(ByteBuffer data, double duration) {
+        List<Waiter> ready;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (videoCodec == null) {
+                videoCodec = AvcCodec.fromTransportStream(data);
+            }
+            HLSSegment segment = new HLSSegment(this, nextSequence++, ".ts", discontinuity);
+            segment.addPart(new HLSPart(0, duration, true, data));
+            segment.complete(duration);
+            segments.addLast(segment);
+            onPublished(segment, data);
+            notifyComplete(segment);
+            for (Subscriber subscriber : subscribers) {
+                subscriber.onMedia(segment, segment.getParts().get(0));
+            }
+            ready = takeReadyWaiters();
+        }
+        runAll(ready);
+    }
+
+    void setInitSection(ByteBuffer data) {
+        synchronized (this) {
+            initSections.put(discontinuity, data);
+            if (videoCodec == null) {
+                videoCodec = AvcCodec.fromInitSection(data);
+            }
+        }
+    }
+
+    // The segmenter writing to this ring is about to be replaced, e.g. because the source reconnected:
+    // its closing finish() starts a discontinuity for the next segmenter instead of ending the stream
+    synchronized void handOver() {
+        handingOver = true;
+    }
+
+    // Publishes an LL-HLS partial segment; a new segment is opened when asked to or when none is open
+    void publishPart(ByteBuffer data, double duration, boolean independent, boolean startsSegment) {
+        List<Waiter> ready;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (open != null && startsSegment) {
+                completeOpenSegment();
+            }
+            if (open == null) {
+                open = new HLSSegment(this, nextSequence++, ".m4s", discontinuity);
+                segments.addLast(open);
+            }
+            HLSPart part = new HLSPart(open.getParts().size(), duration, independent, data);
+            open.addPart(part);
+            onPublished(open, data);
+            for (Subscriber subscriber : subscribers) {
+                subscriber.onMedia(open, part);
+            }
+            ready = takeReadyWaiters();
+        }
+        runAll(ready);
+    }
+
+    void finish() {
+        List<Waiter> ready;
+        synchronized (this) {
+            if (open != null) {
+                completeOpenSegment();
+            }
+            if (handingOver) {
+                handingOver = false;
+                discontinuity++;
+            } else {
+                ended = true;
+                endSubscribers();
+            }
+            if (!segments.isEmpty()) {
+                playlist = render();
+            }
+            ready = takeReadyWaiters();
+        }
+        runAll(ready);
+    }
+
+    public void close() {
+        List<Waiter> pending;
+        synchronized (this) {
+            closed = true;
+            for (HLSSegment segment : segments) {
+                segment.release();
+            }
+            segments.clear();
+            freeBuffers.clear();
+            open = null;
+            initSections.clear();
+            bytes = 0;
+            playlist = null;
+            pending = new ArrayList<>(waiters);
+            waiters.clear();
+            endSubscribers();
+        }
+        // Let held requests answer instead of waiting for their timeout
+        runAll(pending);
+    }
+
+    private void completeOpenSegment() {
+        open.complete(open.getDuration());
+        longestSegment = Math.max(longestSegment, open.getDuration());
+        notifyComplete(open);
+        open = null;
+    }
+
+    // Starts pushing media to the subscriber. It first gets the newest segment from its last independent
+    // part on, i.e. the group of pictures in progress starting at its keyframe (for MPEG-TS the newest
+    // whole segment), so a new viewer can decode a picture right away instead of waiting for the next
+    // keyframe; every part published afterwards follows without a gap.
+    synchronized void subscribe(Subscriber subscriber) {
+        if (closed || ended) {
+            subscriber.onEnd();
+            return;
+        }
+        HLSSegment newest = segments.peekLast();
+        if (newest != null) {
+            List<HLSPart> parts = newest.getParts();
+            int keyframe = parts.size() - 1;
+            while (keyframe > 0 && !parts.get(keyframe).isIndependent()) {
+                keyframe--;
+            }
+            for (int i = Math.max(0, keyframe); i < parts.size(); i++) {
+                subscriber.onMedia(newest, parts.get(i));
+            }
+        }
+        subscribers.add(subscriber);
+    }
+
+    synchronized void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    private void endSubscribers() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.onEnd();
+        }
+        subscribers.clear();
+    }
+
+    // Called with the ring locked, so the listener sees segments in order and can retain them safely
+    void onSegmentComplete(Consumer<HLSSegment> listener) {
+        completionListener = listener;
+    }
+
+    private void notifyComplete(HLSSegment segment) {
+        Consumer<HLSSegment> listener = completionListener;
+        if (listener != null) {
+            listener.accept(segment);
+        }
+    }
+
+    private void onPublished(HLSSegment segment, ByteBuffer data) {
+        bytes += data.capacity();
+        bytesWritten += data.remaining();
+        if (segment.isComplete()) {
+            longestSegment = Math.max(longestSegment, segment.getDuration());
+        }
+        // Grow new buffers ahead of the largest unit seen so far to avoid copies while filling
+        bufferSize = Math.max(bufferSize, data.remaining() + data.remaining() / 4);
+
+        // Keep one segment beyond the playlist window for clients that fetched the previous playlist
+        int limit = listSize + 1 + (open != null ? 1 : 0);
+        while (segments.size() > limit || (bytes > maxBytes && segments.size() > 1)) {
+            HLSSegment evicted = segments.pollFirst();
+            bytes -= evicted.capacity();
+            evicted.release();
+        }
+        // Init sections are kept as long as a segment of their discontinuity is
+        initSections.headMap(segments.peekFirst().getDiscontinuity()).clear();
+        playlist = render();
+    }
+
+    // Callers must release() the returned segment once it has been written out
+    public synchronized HLSSegment retainSegment(long sequence) {
+        for (HLSSegment segment : segments) {
+            if (segment.getSequence() == sequence) {
+                return segment.isComplete() && segment.retain() ? segment : null;
+            }
+        }
+        return null;
+    }
+
+    // Callers must release() the returned segment once the part has been written out
+    public synchronized HLSSegment retainPart(long sequence, int index) {
+        for (HLSSegment segment : segments) {
+            if (segment.getSequence() == sequence) {
+                return segment.getParts().size() > index && segment.retain() ? segment : null;
+            }
+        }
+        return null;
+    }
+
+    // The newest segment with media, for a snapshot of its keyframe; callers must release() it
+    public synchronized HLSSegment retainNewest() {
+        Iterator<HLSSegment> newestFirst = segments.descendingIterator();
+        while (newestFirst.hasNext()) {
+            HLSSegment segment = newestFirst.next();
+            if (!segment.getParts().isEmpty()) {
+                return segment.retain() ? segment : null;
+            }
+        }
+        return null;
+    }
+
+    public synchronized ByteBuffer getInitSection(int discontinuity) {
+        ByteBuffer init = initSections.get(discontinuity);
+        return init != null ? init.asReadOnlyBuffer() : null;
+    }
+
+    // EXT-X-MAP URI of the init section segments of a discontinuity start with
+    public static String initName(int discontinuity) {
+        return discontinuity == 0 ? "init.mp4" : "init" + discontinuity + ".mp4";
+    }
+
+    // E.g. avc1.42c01f; null until the init section or the first segment shows it
+    public String getVideoCodec() {
+        return videoCodec;
+    }
+
+    // Null until the first segment (or, for LL-HLS, the first part) is complete
+    public byte[] getPlaylist() {
+        return playlist;
+    }
+
+    // A negative msn only asks for the playlist to exist, a negative part for the whole segment
+    public synchronized boolean isAvailable(long msn, int part) {
+        if (closed || ended) {
+            return true;
+        }
+        if (playlist == null) {
+            return false;
+        }
+        if (msn < 0) {
+            return true;
+        }
+        long lastComplete = (open != null ? open.getSequence() : nextSequence) - 1;
+        if (msn <= lastComplete) {
+            return true;
+        }
+        return part >= 0 && open != null && msn == open.getSequence() && open.getParts().size() > part;
+    }
+
+    // Blocking reload requests further ahead than this are rejected instead of held
+    public synchronized boolean isTooFarAhead(long msn) {
+        long last = (open != null ? open.getSequence() : nextSequence - 1);
+        return msn > last + 2;
+    }
+
+    // Runs the callback once the playlist satisfies msn/part, immediately if it already does
+    public Object whenAvailable(long msn, int part, Runnable callback) {
+        Waiter waiter = new Waiter(msn, part, callback);
+        synchronized (this) {
+            if (!isAvailable(msn, part)) {
+                waiters.add(waiter);
+                return waiter;
+            }
+        }
+        callback.run();
+        return waiter;
+    }
+
+    // Runs the callback once a part announced by EXT-X-PRELOAD-HINT has been published, or once it
+    // never will be because its segment completed without it. Only parts of the next segment are
+    // worth waiting for; for anything further ahead, a client error, it runs right away.
+    public Object whenPartAvailable(long sequence, int index, Runnable callback) {
+        Waiter waiter = new Waiter(sequence, index, callback);
+        synchronized (this) {
+            boolean next = (open != null && sequence == open.getSequence()) || (open == null && sequence == nextSequence);
+            if (next && !isAvailable(sequence, index)) {
+                waiters.add(waiter);
+                return waiter;
+            }
+        }
+        callback.run();
+        return waiter;
+    }
+
+    public synchronized void cancel(Object waiter) {
+        waiters.remove(waiter);
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private List<Waiter> takeReadyWaiters() {
+        List<Waiter> ready = null;
+        Iterator<Waiter> it = waiters.iterator();
+        while (it.hasNext()) {
+            Waiter waiter = it.next();
+            if (isAvailable(waiter.msn, waiter.part)) {
+                it.remove();
+                if (ready == null) {
+                    ready = new ArrayList<>();
+                }
+                ready.add(waiter);
+            }
+        }
+        return ready;
+    }
+
+    private static void runAll(List<Waiter> ready) {
+        if (ready != null) {
+            for (Waiter waiter : ready) {
+                waiter.callback.run();
+            }
+        }
+    }
+
+    private byte[] render() {
+        int skip = Math.max(0, segments.size() - listSize - (open != null ? 1 : 0));
+        StringBuilder sb = new StringBuilder(isLowLatency() ? 1024 : 256);
+        sb.append("#EXTM3U\n");
+        sb.append("#EXT-X-VERSION:").append(isLowLatency() ? 9 : 3).append('\n');
+        sb.append("#EXT-X-TARGETDURATION:").append(Math.max(targetDuration, (int) Math.ceil(longestSegment))).append('\n');
+        if (isLowLatency()) {
+            sb.append("#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=").append(decimal(partTarget * 3)).append('\n');
+            sb.append("#EXT-X-PART-INF:PART-TARGET=").append(decimal(partTarget)).append('\n');
+        }
+        boolean first = true;
+        int previous = 0;
+        for (HLSSegment segment : segments) {
+            if (skip-- > 0) {
+                continue;
+            }
+            if (first) {
+                sb.append("#EXT-X-MEDIA-SEQUENCE:").append(segment.getSequence()).append('\n');
+                if (segment.getDiscontinuity() > 0) {
+                    sb.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(segment.getDiscontinuity()).append('\n');
+                }
+                sb.append("#EXT-X-INDEPENDENT-SEGMENTS\n");
+                if (isLowLatency()) {
+                    sb.append("#EXT-X-MAP:URI=\"").append(initName(segment.getDiscontinuity())).append("\"\n");
+                }
+                first = false;
+            } else if (segment.getDiscontinuity() != previous) {
+                // The output was restarted, e.g. after a reconnect: new timestamps and codec parameters
+                sb.append("#EXT-X-DISCONTINUITY\n");
+                if (isLowLatency()) {
+                    sb.append("#EXT-X-MAP:URI=\"").append(initName(segment.getDiscontinuity())).append("\"\n");
+                }
+            }
+            previous = segment.getDiscontinuity();
+            if (isLowLatency()) {
+                for (HLSPart part : segment.getParts()) {
+                    sb.append("#EXT-X-PART:DURATION=").append(decimal(part.getDuration()))
+                            .append(",URI=\"").append(segment.getPartName(part.getIndex())).append('"');
+                    if (part.isIndependent()) {
+                        sb.append(",INDEPENDENT=YES");
+                    }
+                    sb.append('\n');
+                }
+            }
+            if (segment.isComplete()) {
+                sb.append("#EXTINF:").append(decimal(segment.getDuration())).append(",\n");
+                sb.append(segment.getName()).append('\n');
+            }
+        }
+        if (ended) {
+            sb.append("#EXT-X-ENDLIST\n");
+        } else if (isLowLatency()) {
+            String hint = open != null
+                    ? open.getPartName(open.getParts().size())
+                    : "stream" + nextSequence + ".0.m4s";
+            sb.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"").append(hint).append("\"\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String decimal(double value) {
+        return String.format(Locale.ROOT, "%.5f", value);
+    }
+
+    private static class Waiter {
+        final long msn;
+        final int part;
+        final Runnable callback;
+
+        Waiter(long msn, int part, Runnable callback) {
+            this.msn = msn;
+            this.part = part;
+            this.callback = callback;
+        }
+    }
+}
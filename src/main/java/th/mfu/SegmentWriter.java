@@ -0,0 +1,159 @@
+package th.mfu;
+
+import org.apache.catalina.connector.CoyoteOutputStream;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+// Serves media out of the segment rings with servlet non-blocking I/O. The request thread hands the
+// response over and returns; Tomcat calls back whenever the socket takes more, so a viewer on a slow
+// link holds a connection but no thread, and a request for a part that is still being muxed holds
+// nothing but a waiter until the part is published. Buffers go to the socket straight from the direct
+// buffers they were muxed into, a chunk at a time.
+class SegmentWriter implements WriteListener, AsyncListener {
+    private static final Logger logger = Logger.getLogger(SegmentWriter.class.getName());
+    // Bounds what Tomcat holds on to when a write does not go out at once
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final AsyncContext async;
+    private final long writeTimeoutMillis;
+    // Set once, by whoever answers first: write(), fail() or a timeout
+    private final AtomicBoolean answered = new AtomicBoolean();
+    // Run when the response completes, however it completes
+    private final AtomicReference<Runnable> release = new AtomicReference<>();
+    private final AtomicReference<Runnable> cleanup = new AtomicReference<>();
+    private ServletOutputStream out;
+    private ByteBuffer[] buffers;
+    private int current;
+    // Only for containers whose output streams cannot write a ByteBuffer
+    private byte[] chunk;
+
+    // The async context times out after waitTimeoutMillis until write() is called, which then allows
+    // writeTimeoutMillis from the start of the request for the client to take the response
+    SegmentWriter(AsyncContext async, long waitTimeoutMillis, long writeTimeoutMillis) {
+        this.async = async;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        async.setTimeout(waitTimeoutMillis);
+        async.addListener(this);
+    }
+
+    // Writes the buffers from their position to their limit and completes the response; release runs
+    // once they are no longer needed. The status and headers must already be set. May be called from
+    // any thread.
+    void write(ByteBuffer[] buffers, Runnable release) {
+        if (!answered.compareAndSet(false, true)) {
+            release.run();
+            return;
+        }
+        this.buffers = buffers;
+        this.release.set(release);
+        // Tomcat measures the timeout from the start of the request
+        async.setTimeout(writeTimeoutMillis);
+        try {
+            out = async.getResponse().getOutputStream();
+            // Tomcat calls onWritePossible() on one of its own threads
+            out.setWriteListener(this);
+        } catch (IOException | RuntimeException e) {
+            logger.fine("Could not start writing response: " + e.getMessage());
+            complete();
+        }
+    }
+
+    // Answers with an error status and no body, unless the response has been answered already
+    void fail(int status) {
+        if (answered.compareAndSet(false, true)) {
+            ((HttpServletResponse) async.getResponse()).setStatus(status);
+            complete();
+        }
+    }
+
+    // Runs when the response completes, e.g. to stop waiting for a part that never came
+    void onComplete(Runnable cleanup) {
+        this.cleanup.set(cleanup);
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        while (out.isReady()) {
+            if (current == buffers.length) {
+                complete();
+                return;
+            }
+            ByteBuffer buffer = buffers[current];
+            if (!buffer.hasRemaining()) {
+                current++;
+                continue;
+            }
+            int limit = buffer.limit();
+            buffer.limit(Math.min(limit, buffer.position() + CHUNK_SIZE));
+            writeChunk(buffer);
+            buffer.limit(limit);
+        }
+    }
+
+    // Tomcat copies a direct buffer straight into its socket buffer, without a heap byte[] in between
+    private void writeChunk(ByteBuffer buffer) throws IOException {
+        if (out instanceof CoyoteOutputStream) {
+            ((CoyoteOutputStream) out).write(buffer);
+            return;
+        }
+        if (chunk == null) {
+            chunk = new byte[CHUNK_SIZE];
+        }
+        int length = buffer.remaining();
+        buffer.get(chunk, 0, length);
+        out.write(chunk, 0, length);
+    }
+
+    // The client went away or the connection broke
+    @Override
+    public void onError(Throwable t) {
+        logger.fine("Error writing response: " + t.getMessage());
+        complete();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        // Nothing came to answer with in time; a client too slow to take the response is cut off
+        fail(HttpServletResponse.SC_NOT_FOUND);
+        complete();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        complete();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        run(release);
+        run(cleanup);
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    private static void run(AtomicReference<Runnable> task) {
+        Runnable runnable = task.getAndSet(null);
+        if (runnable != null) {
+            runnable.run();
+        }
+    }
+
+    private void complete() {
+        try {
+            async.complete();
+        } catch (IllegalStateException e) {
+            // Completed already
+        }
+    }
+}
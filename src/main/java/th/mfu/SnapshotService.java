@@ -0,0 +1,308 @@
+package th.mfu;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.Java2DFrameConverter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+// JPEG thumbnails of streams, e.g. for a dashboard showing every camera. A running stream's picture is
+// decoded from the keyframe its newest segment starts with, so passthrough streams, which never decode,
+// need no decoder running alongside; a dormant on-demand stream's source is opened just long enough for
+// one picture. A snapshot is kept for snapshot.ttl-ms, and every request meanwhile, including those that
+// arrive while it is being taken, gets the same one: any number of polls cost one decode and encode per
+// stream and interval.
+@Service
+public class SnapshotService {
+    private static final Logger logger = Logger.getLogger(SnapshotService.class.getName());
+
+    @Autowired
+    private HLSSegmentStore segmentStore;
+
+    @Autowired
+    private HLSStreamService hlsStreamService;
+
+    @Autowired
+    private IngestRegistry ingestRegistry;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Failures are kept as long, so polls of a dead camera do not reconnect to it every time
+    @Value("${snapshot.ttl-ms:5000}")
+    private long ttlMillis;
+
+    // Pictures are scaled down to this width, never up
+    @Value("${snapshot.width:320}")
+    private int width;
+
+    @Value("${snapshot.quality:0.75}")
+    private float quality;
+
+    @Value("${snapshot.threads:2}")
+    private int threads;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    // The snapshot threads keep their converter, picture buffer and JPEG writer from one snapshot to the next
+    private final ThreadLocal<JpegEncoder> encoders = ThreadLocal.withInitial(() -> new JpegEncoder(quality));
+    private ExecutorService executor;
+    private Counter cached;
+    private Counter taken;
+    private Counter failed;
+    private Timer fromSegment;
+    private Timer fromSource;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "snapshot-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        cached = requests("cached");
+        taken = requests("taken");
+        failed = requests("failed");
+        fromSegment = Timer.builder("gateway.snapshot.duration").tag("from", "segment")
+                .description("Time to decode, scale and encode a snapshot").register(meterRegistry);
+        fromSource = Timer.builder("gateway.snapshot.duration").tag("from", "source")
+                .description("Time to decode, scale and encode a snapshot").register(meterRegistry);
+    }
+
+    private Counter requests(String result) {
+        return Counter.builder("gateway.snapshot.requests").tag("result", result)
+                .description("Snapshot requests by whether they were served from the cache").register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // Null if there is no such stream, otherwise completes with its snapshot or the reason there is none
+    public CompletableFuture<Snapshot> get(String streamName) {
+        if (segmentStore.get(streamName) == null && segmentStore.getMasterPlaylist(streamName) == null
+                && hlsStreamService.getSourceUrl(streamName) == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        Entry created = new Entry();
+        Entry entry = entries.compute(streamName, (name, current) ->
+                current != null && now < current.expiresMillis ? current : created);
+        if (entry != created) {
+            cached.increment();
+            return entry.future;
+        }
+        executor.execute(() -> {
+            try {
+                Snapshot snapshot = take(streamName);
+                created.expiresMillis = snapshot.getExpiresMillis();
+                taken.increment();
+                created.future.complete(snapshot);
+            } catch (Exception e) {
+                created.expiresMillis = System.currentTimeMillis() + ttlMillis;
+                failed.increment();
+                logger.fine("No snapshot of " + streamName + ": " + e.getMessage());
+                created.future.completeExceptionally(e);
+            }
+        });
+        return created.future;
+    }
+
+    // Snapshots of stopped streams are not asked for again
+    @Scheduled(fixedDelayString = "${snapshot.ttl-ms:5000}")
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> now >= entry.expiresMillis);
+    }
+
+    private Snapshot take(String streamName) throws Exception {
+        SegmentRing ring = snapshotRing(streamName);
+        if (ring != null) {
+            HLSSegment segment = ring.retainNewest();
+            if (segment == null) {
+                throw new IllegalStateException("Stream has no segment yet");
+            }
+            long start = System.nanoTime();
+            try {
+                return fromSegment(ring, segment);
+            } finally {
+                segment.release();
+                fromSegment.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+        String url = hlsStreamService.getSourceUrl(streamName);
+        if (url == null) {
+            throw new IllegalStateException("Stream has stopped");
+        }
+        long start = System.nanoTime();
+        FFmpegFrameGrabber grabber = ingestRegistry.open(url);
+        try {
+            // The first picture a live source decodes to is its next keyframe
+            return picture(grabber);
+        } finally {
+            IngestRegistry.closeQuietly(grabber);
+            fromSource.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // The lowest rendition of an adaptive-bitrate stream decodes fastest and is scaled down anyway
+    private SegmentRing snapshotRing(String streamName) {
+        SegmentRing ring = segmentStore.get(streamName);
+        if (ring != null) {
+            return ring;
+        }
+        for (SegmentRing rendition : segmentStore.getRenditions(streamName)) {
+            if (ring == null || rendition.getBytes() < ring.getBytes()) {
+                ring = rendition;
+            }
+        }
+        return ring;
+    }
+
+    // Segments start with a keyframe; for LL-HLS the newest independent part is decoded, behind the
+    // init section it needs
+    private Snapshot fromSegment(SegmentRing ring, HLSSegment segment) throws Exception {
+        List<HLSPart> parts = segment.getParts();
+        int keyframe = parts.size() - 1;
+        while (keyframe > 0 && !parts.get(keyframe).isIndependent()) {
+            keyframe--;
+        }
+        ByteBuffer part = parts.get(keyframe).data();
+        ByteBuffer init = null;
+        if (ring.isLowLatency()) {
+            init = ring.getInitSection(segment.getDiscontinuity());
+            if (init == null) {
+                throw new IllegalStateException("Init section is gone");
+            }
+        }
+        byte[] data = new byte[(init != null ? init.remaining() : 0) + part.remaining()];
+        ByteBuffer copy = ByteBuffer.wrap(data);
+        if (init != null) {
+            copy.put(init);
+        }
+        copy.put(part);
+
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(new ByteArrayInputStream(data), data.length);
+        grabber.setFormat(ring.isLowLatency() ? "mp4" : "mpegts");
+        grabber.setVideoOption("threads", "1");
+        try {
+            // Not start(), which would wait for sources being opened elsewhere, see IngestRegistry
+            grabber.startUnsafe();
+            return picture(grabber);
+        } finally {
+            IngestRegistry.closeQuietly(grabber);
+        }
+    }
+
+    // Scales while converting the decoded picture, as the grabber converts it anyway
+    private Snapshot picture(FFmpegFrameGrabber grabber) throws Exception {
+        int sourceWidth = grabber.getImageWidth();
+        int sourceHeight = grabber.getImageHeight();
+        if (sourceWidth <= 0 || sourceHeight <= 0) {
+            throw new IllegalStateException("Source has no video");
+        }
+        double aspect = grabber.getAspectRatio() > 0 ? grabber.getAspectRatio() : 1;
+        if (sourceWidth > width) {
+            grabber.setImageWidth(width);
+            grabber.setImageHeight(Math.max(2, (int) Math.round(width * sourceHeight / (sourceWidth * aspect)) & ~1));
+        }
+        Frame frame = grabber.grabImage();
+        if (frame == null) {
+            throw new IllegalStateException("No picture could be decoded");
+        }
+        byte[] jpeg = encoders.get().encode(frame);
+        return new Snapshot(jpeg, frame.imageWidth, frame.imageHeight, System.currentTimeMillis(), ttlMillis);
+    }
+
+    private static class Entry {
+        final CompletableFuture<Snapshot> future = new CompletableFuture<>();
+        // Set once the snapshot is taken or failed; until then requests wait for it
+        volatile long expiresMillis = Long.MAX_VALUE;
+    }
+
+    private static class JpegEncoder {
+        private final Java2DFrameConverter converter = new Java2DFrameConverter();
+        private final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        private final ImageWriteParam param = writer.getDefaultWriteParam();
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+
+        JpegEncoder(float quality) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+        }
+
+        // The converter reuses its picture for frames of the same size, and out its buffer
+        byte[] encode(Frame frame) throws IOException {
+            BufferedImage image = converter.getBufferedImage(frame);
+            out.reset();
+            try (ImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+                writer.setOutput(stream);
+                writer.write(null, new IIOImage(image, null, null), param);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    public static class Snapshot {
+        private final byte[] jpeg;
+        private final int width;
+        private final int height;
+        private final long takenMillis;
+        private final long expiresMillis;
+
+        Snapshot(byte[] jpeg, int width, int height, long takenMillis, long ttlMillis) {
+            this.jpeg = jpeg;
+            this.width = width;
+            this.height = height;
+            this.takenMillis = takenMillis;
+            this.expiresMillis = takenMillis + ttlMillis;
+        }
+
+        public byte[] getJpeg() {
+            return jpeg;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public long getTakenMillis() {
+            return takenMillis;
+        }
+
+        public long getExpiresMillis() {
+            return expiresMillis;
+        }
+    }
+}
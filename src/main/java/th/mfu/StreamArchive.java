@@ -0,0 +1,515 @@
+package th.mfu;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+// On-disk DVR archive of one stream. Segments are appended as they were muxed for the live playlist
+// to chunk files of at most maxChunkBytes; next to every chunk a memory-mapped index holds one
+// fixed-size record per segment, in time order. A time range is found by a binary search over the
+// chunks and one inside the index of the first chunk, so a VOD playlist costs O(log n) plus its own
+// length no matter how much is archived. Retention drops whole chunks, oldest first.
+class StreamArchive {
+    private static final Logger logger = Logger.getLogger(StreamArchive.class.getName());
+    private static final int MAGIC = 0x44565231;                // "DVR1"
+    private static final int HEADER_SIZE = 16;                  // magic, record count
+    // start millis, duration micros, offset, length, init offset, init length, flags
+    private static final int RECORD_SIZE = 32;
+    private static final int RECORDS_PER_CHUNK = 8192;
+    // A chunk spans at most this long, so age retention frees space in steps of this size
+    private static final long CHUNK_SPAN_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    // Record flags
+    static final int DISCONTINUITY = 1;
+    static final int FMP4 = 2;
+
+    private final String name;
+    private final File directory;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final long maxChunkBytes;
+    // Oldest first; only the last one is written to
+    private final List<Chunk> chunks = new ArrayList<>();
+    private long bytes;
+    private boolean nextDiscontinuous = true;
+    private int lastDiscontinuity = -1;
+    private long lastEndMillis;
+
+    StreamArchive(String name, File directory, long maxBytes, long maxAgeMillis, long maxChunkBytes) throws IOException {
+        this.name = name;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxChunkBytes = Math.min(maxChunkBytes, Integer.MAX_VALUE);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create archive directory " + directory);
+        }
+        // Chunks left by an earlier run stay playable; new segments go to a fresh chunk
+        File[] indexes = directory.listFiles((dir, file) -> file.endsWith(".idx"));
+        if (indexes != null) {
+            List<Long> ids = new ArrayList<>();
+            for (File index : indexes) {
+                try {
+                    ids.add(Long.parseLong(index.getName().substring(0, index.getName().length() - 4)));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+            ids.sort(null);
+            for (long id : ids) {
+                Chunk chunk = Chunk.open(directory, id);
+                if (chunk == null || chunk.count() == 0) {
+                    if (chunk != null) {
+                        chunk.delete();
+                    }
+                    continue;
+                }
+                chunks.add(chunk);
+                bytes += chunk.dataBytes();
+            }
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    // The stream starts over, e.g. a new recording session; its next segment follows a discontinuity
+    synchronized void markDiscontinuity() {
+        nextDiscontinuous = true;
+    }
+
+    // Appends a segment that ended at endMillis; init is its fMP4 init section, null for MPEG-TS.
+    // Runs on the archive writer thread.
+    synchronized void append(HLSSegment segment, ByteBuffer init, long endMillis) throws IOException {
+        int length = segment.size();
+        long durationMicros = Math.round(segment.getDuration() * 1_000_000);
+        long startMillis = endMillis - durationMicros / 1000;
+        int flags = init != null ? FMP4 : 0;
+        // A gap of more than a segment also counts, e.g. after segments were dropped
+        if (nextDiscontinuous || segment.getDiscontinuity() != lastDiscontinuity
+                || startMillis - lastEndMillis > durationMicros / 1000 + 1000) {
+            flags |= DISCONTINUITY;
+        }
+
+        Chunk chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        int initLength = init != null ? init.remaining() : 0;
+        if (chunk == null || !chunk.isWritable() || chunk.count() >= RECORDS_PER_CHUNK
+                || chunk.dataBytes() + length + initLength > maxChunkBytes
+                || (chunk.count() > 0 && startMillis - chunk.startMillis(0) > CHUNK_SPAN_MILLIS)) {
+            if (chunk != null) {
+                chunk.seal();
+            }
+            chunk = Chunk.create(directory, chunk != null ? chunk.id + 1 : nextId());
+            chunks.add(chunk);
+        }
+
+        long before = chunk.dataBytes();
+        // fMP4 segments need their init section; it is stored again at the start of a chunk and
+        // whenever it changes, so every chunk can be played on its own
+        long initOffset = -1;
+        if (init != null) {
+            int previous = chunk.count() - 1;
+            if ((flags & DISCONTINUITY) != 0 || previous < 0) {
+                initOffset = chunk.write(new ByteBuffer[] {init.duplicate()});
+            } else {
+                initOffset = chunk.initOffset(previous);
+                initLength = chunk.initLength(previous);
+            }
+        }
+        List<HLSPart> parts = segment.getParts();
+        ByteBuffer[] buffers = new ByteBuffer[parts.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = parts.get(i).buffer().duplicate();
+        }
+        long offset = chunk.write(buffers);
+        chunk.add(startMillis, (int) durationMicros, offset, length, initOffset, initLength, flags);
+        bytes += chunk.dataBytes() - before;
+
+        nextDiscontinuous = false;
+        lastDiscontinuity = segment.getDiscontinuity();
+        lastEndMillis = endMillis;
+        applyRetention(endMillis);
+    }
+
+    // Drops the oldest chunks while the archive is too big or they are too old; the chunk being
+    // written is kept, unless nothing is written to the archive anymore
+    synchronized void applyRetention(long now) {
+        while (!chunks.isEmpty() && (chunks.size() > 1 || !chunks.get(0).isWritable())) {
+            Chunk oldest = chunks.get(0);
+            boolean tooBig = maxBytes > 0 && bytes > maxBytes;
+            boolean tooOld = maxAgeMillis > 0 && oldest.endMillis() < now - maxAgeMillis;
+            if (!tooBig && !tooOld) {
+                return;
+            }
+            chunks.remove(0);
+            bytes -= oldest.dataBytes();
+            oldest.delete();
+            logger.fine("Archive " + name + ": dropped chunk " + oldest.id);
+        }
+    }
+
+    // VOD playlist of the segments overlapping [fromMillis, toMillis), null when there are none.
+    // Segment URIs are relative: seg-<chunk>-<record>.ts|m4s and init-<chunk>-<record>.mp4.
+    synchronized byte[] playlist(long fromMillis, long toMillis) {
+        int chunkIndex = findChunk(fromMillis);
+        if (chunkIndex < 0) {
+            return null;
+        }
+        StringBuilder body = new StringBuilder();
+        double longest = 0;
+        boolean fmp4 = false;
+        boolean first = true;
+        long lastInit = -1;
+        for (int c = chunkIndex; c < chunks.size(); c++) {
+            Chunk chunk = chunks.get(c);
+            int count = chunk.count();
+            int record = c == chunkIndex ? chunk.search(fromMillis) : 0;
+            for (; record < count; record++) {
+                long start = chunk.startMillis(record);
+                if (start >= toMillis) {
+                    c = chunks.size();
+                    break;
+                }
+                int flags = chunk.flags(record);
+                double duration = chunk.durationMicros(record) / 1_000_000.0;
+                boolean isFmp4 = (flags & FMP4) != 0;
+                if (first || (flags & DISCONTINUITY) != 0) {
+                    if (!first) {
+                        body.append("#EXT-X-DISCONTINUITY\n");
+                    }
+                    body.append("#EXT-X-PROGRAM-DATE-TIME:").append(Instant.ofEpochMilli(start)).append('\n');
+                }
+                if (isFmp4) {
+                    long init = (chunk.id << 32) | chunk.initOffset(record);
+                    if (init != lastInit) {
+                        body.append("#EXT-X-MAP:URI=\"init-").append(chunk.id).append('-').append(record).append(".mp4\"\n");
+                        lastInit = init;
+                    }
+                }
+                body.append("#EXTINF:").append(String.format(Locale.ROOT, "%.5f", duration)).append(",\n")
+                        .append("seg-").append(chunk.id).append('-').append(record).append(isFmp4 ? ".m4s" : ".ts").append('\n');
+                longest = Math.max(longest, duration);
+                fmp4 |= isFmp4;
+                first = false;
+            }
+        }
+        if (first) {
+            return null;
+        }
+        String header = "#EXTM3U\n#EXT-X-VERSION:" + (fmp4 ? 6 : 3) + "\n"
+                + "#EXT-X-TARGETDURATION:" + (int) Math.ceil(longest) + "\n"
+                + "#EXT-X-MEDIA-SEQUENCE:0\n#EXT-X-PLAYLIST-TYPE:VOD\n#EXT-X-INDEPENDENT-SEGMENTS\n";
+        return (header + body + "#EXT-X-ENDLIST\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // The archived bytes of a segment, or of its init section; null once retention has dropped them.
+    // A sealed chunk is mapped once and every read is a slice of that mapping, so serving a long
+    // recording does not pile up a mapping per request. The chunk still written to is read to the heap.
+    ByteBuffer read(long chunkId, int record, boolean init) throws IOException {
+        Chunk chunk;
+        long offset;
+        int length;
+        ByteBuffer mapped;
+        synchronized (this) {
+            chunk = findChunkById(chunkId);
+            if (chunk == null || record < 0 || record >= chunk.count()) {
+                return null;
+            }
+            offset = init ? chunk.initOffset(record) : chunk.offset(record);
+            length = init ? chunk.initLength(record) : chunk.length(record);
+            if (offset < 0 || length <= 0) {
+                return null;
+            }
+            try {
+                mapped = chunk.mapped();
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+        if (mapped != null) {
+            ByteBuffer slice = mapped.duplicate();
+            slice.limit((int) (offset + length));
+            slice.position((int) offset);
+            return slice.slice();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try (FileChannel channel = FileChannel.open(chunk.dataFile.toPath())) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("Archive chunk " + chunk.dataFile + " ends before segment " + record);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    synchronized long getStartMillis() {
+        return chunks.isEmpty() ? -1 : chunks.get(0).startMillis(0);
+    }
+
+    synchronized long getEndMillis() {
+        return chunks.isEmpty() ? -1 : chunks.get(chunks.size() - 1).endMillis();
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    synchronized int getSegmentCount() {
+        int count = 0;
+        for (Chunk chunk : chunks) {
+            count += chunk.count();
+        }
+        return count;
+    }
+
+    synchronized void close() {
+        for (Chunk chunk : chunks) {
+            chunk.seal();
+        }
+    }
+
+    // The chunk holding the first segment that ends after fromMillis, -1 if there is none
+    private int findChunk(long fromMillis) {
+        int low = 0;
+        int high = chunks.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (chunks.get(mid).endMillis() > fromMillis) {
+                found = mid;
+                high = mid - 1;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return found;
+    }
+
+    private Chunk findChunkById(long id) {
+        int low = 0;
+        int high = chunks.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = chunks.get(mid).id;
+            if (midId == id) {
+                return chunks.get(mid);
+            } else if (midId < id) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return null;
+    }
+
+    private long nextId() {
+        return chunks.isEmpty() ? 1 : chunks.get(chunks.size() - 1).id + 1;
+    }
+
+    // A data file of concatenated segments and its memory-mapped index
+    private static class Chunk {
+        final long id;
+        final File dataFile;
+        final File indexFile;
+        private final MappedByteBuffer index;
+        private FileChannel data;
+        private long dataBytes;
+        // Data of the sealed chunk, mapped by the first read
+        private MappedByteBuffer mapped;
+        // Records of a chunk from an earlier run that are complete on disk
+        private int recovered = -1;
+
+        private Chunk(long id, File dataFile, File indexFile, MappedByteBuffer index, FileChannel data, long dataBytes) {
+            this.id = id;
+            this.dataFile = dataFile;
+            this.indexFile = indexFile;
+            this.index = index;
+            this.data = data;
+            this.dataBytes = dataBytes;
+        }
+
+        static Chunk create(File directory, long id) throws IOException {
+            File dataFile = new File(directory, String.format(Locale.ROOT, "%010d.dat", id));
+            File indexFile = new File(directory, String.format(Locale.ROOT, "%010d.idx", id));
+            MappedByteBuffer index;
+            try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+                index = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        HEADER_SIZE + (long) RECORDS_PER_CHUNK * RECORD_SIZE);
+            }
+            index.putInt(0, MAGIC);
+            index.putInt(4, 0);
+            FileChannel data = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            return new Chunk(id, dataFile, indexFile, index, data, 0);
+        }
+
+        // Read-only view of a chunk written by an earlier run, null if it is unusable
+        static Chunk open(File directory, long id) {
+            File dataFile = new File(directory, String.format(Locale.ROOT, "%010d.dat", id));
+            File indexFile = new File(directory, String.format(Locale.ROOT, "%010d.idx", id));
+            try (RandomAccessFile file = new RandomAccessFile(indexFile, "r")) {
+                if (file.length() < HEADER_SIZE || !dataFile.isFile()) {
+                    return null;
+                }
+                MappedByteBuffer index = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                int count = index.getInt(4);
+                if (index.getInt(0) != MAGIC || count < 0 || HEADER_SIZE + (long) count * RECORD_SIZE > file.length()) {
+                    return null;
+                }
+                Chunk chunk = new Chunk(id, dataFile, indexFile, index, null, dataFile.length());
+                // Records past the end of the data were never completely written
+                int complete = count;
+                while (complete > 0 && chunk.offset(complete - 1) + chunk.length(complete - 1) > chunk.dataBytes) {
+                    complete--;
+                }
+                chunk.recovered = complete;
+                return chunk;
+            } catch (IOException e) {
+                logger.warning("Skipping unreadable archive chunk " + indexFile + ": " + e.getMessage());
+                return null;
+            }
+        }
+
+        boolean isWritable() {
+            return data != null;
+        }
+
+        // Appends to the data file, returning the offset the buffers were written at
+        long write(ByteBuffer[] buffers) throws IOException {
+            long offset = dataBytes;
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= data.write(buffers);
+            }
+            dataBytes = data.position();
+            return offset;
+        }
+
+        // The record count is written last, so a reader never sees a half-written record
+        void add(long startMillis, int durationMicros, long offset, int length, long initOffset, int initLength, int flags) {
+            int count = count();
+            int at = HEADER_SIZE + count * RECORD_SIZE;
+            index.putLong(at, startMillis);
+            index.putInt(at + 8, durationMicros);
+            index.putInt(at + 12, (int) offset);
+            index.putInt(at + 16, length);
+            index.putInt(at + 20, (int) initOffset);
+            index.putInt(at + 24, initLength);
+            index.putInt(at + 28, flags);
+            index.putInt(4, count + 1);
+        }
+
+        // No more segments go to this chunk
+        void seal() {
+            if (data == null) {
+                return;
+            }
+            try {
+                index.force();
+                data.force(false);
+                data.close();
+            } catch (IOException e) {
+                logger.warning("Error closing archive chunk " + dataFile + ": " + e.getMessage());
+            }
+            data = null;
+        }
+
+        // Read-only mapping of the whole data file, null while segments are still appended
+        MappedByteBuffer mapped() throws IOException {
+            if (data != null) {
+                return null;
+            }
+            if (mapped == null) {
+                try (FileChannel channel = FileChannel.open(dataFile.toPath())) {
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, dataBytes);
+                }
+            }
+            return mapped;
+        }
+
+        void delete() {
+            seal();
+            if (!dataFile.delete() || !indexFile.delete()) {
+                logger.warning("Could not delete archive chunk " + dataFile);
+            }
+        }
+
+        int count() {
+            return recovered >= 0 ? recovered : index.getInt(4);
+        }
+
+        long dataBytes() {
+            return dataBytes;
+        }
+
+        long startMillis(int record) {
+            return index.getLong(HEADER_SIZE + record * RECORD_SIZE);
+        }
+
+        int durationMicros(int record) {
+            return index.getInt(HEADER_SIZE + record * RECORD_SIZE + 8);
+        }
+
+        long offset(int record) {
+            return index.getInt(HEADER_SIZE + record * RECORD_SIZE + 12);
+        }
+
+        int length(int record) {
+            return index.getInt(HEADER_SIZE + record * RECORD_SIZE + 16);
+        }
+
+        long initOffset(int record) {
+            return index.getInt(HEADER_SIZE + record * RECORD_SIZE + 20);
+        }
+
+        int initLength(int record) {
+            return index.getInt(HEADER_SIZE + record * RECORD_SIZE + 24);
+        }
+
+        int flags(int record) {
+            return index.getInt(HEADER_SIZE + record * RECORD_SIZE + 28);
+        }
+
+        long endMillis() {
+            int last = count() - 1;
+            return last < 0 ? -1 : startMillis(last) + durationMicros(last) / 1000;
+        }
+
+        // The first record that ends after millis; count() if there is none
+        int search(long millis) {
+            int low = 0;
+            int high = count() - 1;
+            int found = count();
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (startMillis(mid) + durationMicros(mid) / 1000 > millis) {
+                    found = mid;
+                    high = mid - 1;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return found;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package th.mfu;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+// Starts and stops many streams in one request, e.g. every camera of a site after a restart. Opening
+// a source blocks in FFmpeg while it connects and analyses the streams, so the items of a batch run
+// on a pool of stream.batch.parallelism threads; the scheduler still admits each transcode on its
+// own. Jobs are kept for stream.batch.retention-ms after they finish, for clients to collect results.
+@Service
+public class StreamBatchService {
+    private static final Logger logger = Logger.getLogger(StreamBatchService.class.getName());
+
+    @Autowired
+    private HLSStreamService hlsStreamService;
+
+    @Autowired
+    private IngestRegistry ingestRegistry;
+
+    @Autowired
+    private ClusterService clusterService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${stream.batch.parallelism:8}")
+    private int parallelism;
+
+    @Value("${stream.batch.max-streams:1000}")
+    private int maxStreams;
+
+    @Value("${stream.batch.retention-ms:3600000}")
+    private long retentionMillis;
+
+    private final ConcurrentHashMap<String, BatchJob> jobs = new ConcurrentHashMap<>();
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(1, parallelism), r -> {
+            Thread thread = new Thread(r, "stream-batch-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // Requests must have their stream name and source URL set. With probe, on-demand streams whose
+    // source has no cached probe are connected to once, which reports unreachable sources now rather
+    // than to their first viewer and lets that viewer's start skip the long stream analysis.
+    public BatchJob start(List<StreamRequest> requests, boolean probe) {
+        List<String> names = new ArrayList<>();
+        for (StreamRequest request : requests) {
+            names.add(request.getStreamName());
+        }
+        BatchJob job = submit("start", names);
+        for (int i = 0; i < requests.size(); i++) {
+            StreamRequest request = requests.get(i);
+            BatchJob.Item item = job.getItems().get(i);
+            executor.execute(() -> start(request, item, probe));
+        }
+        return job;
+    }
+
+    public BatchJob stop(List<String> streamNames) {
+        BatchJob job = submit("stop", streamNames);
+        for (BatchJob.Item item : job.getItems()) {
+            executor.execute(() -> stop(item));
+        }
+        return job;
+    }
+
+    public BatchJob get(String id) {
+        return jobs.get(id);
+    }
+
+    public int getMaxStreams() {
+        return maxStreams;
+    }
+
+    private BatchJob submit(String action, List<String> streamNames) {
+        if (streamNames.size() > maxStreams) {
+            throw new IllegalArgumentException("A batch takes at most " + maxStreams + " streams");
+        }
+        // Finished jobs are dropped once they have been kept long enough
+        long now = System.currentTimeMillis();
+        jobs.values().removeIf(job -> job.getFinishedMillis() >= 0 && now - job.getFinishedMillis() > retentionMillis);
+        BatchJob job = new BatchJob(UUID.randomUUID().toString(), action, streamNames);
+        jobs.put(job.getId(), job);
+        logger.info("Batch " + job.getId() + ": " + action + " " + streamNames.size() + " streams, "
+                + parallelism + " at a time");
+        return job;
+    }
+
+    private void start(StreamRequest request, BatchJob.Item item, boolean probe) {
+        item.running();
+        String streamName = request.getStreamName();
+        NodeStatus owner = null;
+        try {
+            owner = clusterService.place(streamName);
+            if (owner != null && !clusterService.isLocal(owner)) {
+                item.setNode(owner.getId());
+                ResponseEntity<String> response = clusterService.forward(owner, "/api/stream/hls/start",
+                        objectMapper.writeValueAsString(request)).join();
+                boolean ok = response.getStatusCode().is2xxSuccessful();
+                item.finish(ok ? BatchJob.State.STARTED : BatchJob.State.FAILED, ok ? response.getBody() : null,
+                        ok ? null : response.getStatusCodeValue() + " " + response.getBody());
+                return;
+            }
+            String url = hlsStreamService.registerHLSStream(request);
+            if (hlsStreamService.isDormant(streamName) && probe) {
+                try {
+                    item.setProbe(ingestRegistry.probe(request.getRtspUrl()));
+                } catch (Exception e) {
+                    // Stays registered, the camera may come online before anybody watches
+                    item.finish(BatchJob.State.UNREACHABLE, url, "Source could not be probed: " + e.getMessage());
+                    return;
+                }
+            }
+            item.finish(BatchJob.State.STARTED, url, null);
+        } catch (Exception e) {
+            if (owner != null && clusterService.isLocal(owner)) {
+                clusterService.release(streamName);
+            }
+            item.finish(BatchJob.State.FAILED, null,
+                    e.getCause() != null ? e.getMessage() + ": " + e.getCause().getMessage() : e.getMessage());
+        }
+    }
+
+    private void stop(BatchJob.Item item) {
+        item.running();
+        String streamName = item.getStreamName();
+        try {
+            NodeStatus owner = clusterService.locate(streamName);
+            if (owner != null) {
+                item.setNode(owner.getId());
+                ResponseEntity<String> response = clusterService.forward(owner,
+                        "/api/stream/hls/stop?streamName=" + URLEncoder.encode(streamName, "UTF-8"), null).join();
+                boolean ok = response.getStatusCode().is2xxSuccessful();
+                item.finish(ok ? BatchJob.State.STOPPED : BatchJob.State.FAILED, null,
+                        ok ? null : response.getStatusCodeValue() + " " + response.getBody());
+                return;
+            }
+            hlsStreamService.stopHLSStream(streamName);
+            clusterService.release(streamName);
+            item.finish(BatchJob.State.STOPPED, null, null);
+        } catch (UnsupportedEncodingException | RuntimeException e) {
+            item.finish(BatchJob.State.FAILED, null, e.getMessage());
+        }
+    }
+}
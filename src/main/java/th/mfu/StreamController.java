@@ -1,32 +1,122 @@
 package th.mfu;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bytedeco.javacpp.Pointer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.DigestUtils;
 import org.springframework.web.bind.annotation.*;
-import java.io.File;
+import org.springframework.web.context.request.async.DeferredResult;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @RestController
 @RequestMapping("/api/stream")
 public class StreamController {
+    private static final Pattern SEGMENT_NAME = Pattern.compile("stream(\\d+)(?:\\.(\\d+))?\\.(ts|m4s)");
+    private static final Pattern INIT_NAME = Pattern.compile("init(\\d{1,9})\\.mp4");
+    // Single byte ranges only; a multipart response is not worth it for segments this size
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d{0,18})-(\\d{0,18})");
+    private static final long[] UNSATISFIABLE = new long[0];
+    // Archived segments and init sections, see StreamArchive.playlist()
+    private static final Pattern ARCHIVE_NAME = Pattern.compile("(seg|init)-(\\d{1,18})-(\\d{1,9})\\.(ts|m4s|mp4)");
+    
+    @Value("${hls.playlist.wait-timeout-ms:10000}")
+    private long playlistWaitMillis;
+
+    // How long /hls/start waits for the first segment before it answers anyway
+    @Value("${hls.start.wait-timeout-ms:15000}")
+    private long startWaitMillis;
+
+    @Value("${cluster.forward-timeout-ms:30000}")
+    private long forwardTimeoutMillis;
+
+    // How long a snapshot request waits for a picture, e.g. from a slow dormant source
+    @Value("${snapshot.wait-timeout-ms:10000}")
+    private long snapshotWaitMillis;
+
+    // How long a client gets to take a segment before it is cut off
+    @Value("${hls.serve.write-timeout-ms:30000}")
+    private long writeTimeoutMillis;
     
     @Autowired
     private RTSPStreamService rtspStreamService;
     
     @Autowired
     private HLSStreamService hlsStreamService;
+    
+    @Autowired
+    private HLSSegmentStore segmentStore;
+    
+    @Autowired
+    private StreamScheduler scheduler;
+    
+    @Autowired
+    private IngestRegistry ingestRegistry;
+    
+    @Autowired
+    private EncodingProfiles encodingProfiles;
+    
+    @Autowired
+    private SegmentArchive segmentArchive;
+
+    @Autowired
+    private ClusterService clusterService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private StreamBatchService batchService;
+
+    @Autowired
+    private ProbeCache probeCache;
+
+    @Autowired
+    private SnapshotService snapshotService;
+
+    @Autowired
+    private NativeMemoryTracker nativeMemory;
 
     @PostMapping("/rtsp/start")
     public ResponseEntity<String> startRTSPStream(
             @RequestParam(defaultValue = "8554") int port,
-            @RequestParam String streamName) {
+            @RequestParam String streamName,
+            @RequestParam(required = false) String profile) {
         String inputUrl = "/tmp/videoplayback.mp4"; 
         //String inputUrl = "C:/tmp/videoplayback.mp4"; 
-        String rtspUrl = rtspStreamService.startStream(inputUrl, port, streamName);
-        return ResponseEntity.ok(rtspUrl);
+        try {
+            String rtspUrl = rtspStreamService.startStream(inputUrl, port, streamName, profile);
+            return ResponseEntity.ok(rtspUrl);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (StreamRejectedException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(e.getMessage());
+        }
     }
 
     @PostMapping("/rtsp/stop")
@@ -35,123 +125,873 @@ public class StreamController {
         return ResponseEntity.ok().build();
     }
 
+    // Answers once the stream's first segment is ready, so the player can load the playlist right away
+    // instead of polling the status; an on-demand stream is only registered and answers at once
     @PostMapping("/hls/start")
-    public ResponseEntity<String> startHLSStream(
+    public DeferredResult<ResponseEntity<String>> startHLSStream(
             @RequestParam(required = false, defaultValue = "8554") int rtspPort,
             @RequestParam(required = false) String streamName,
-            @RequestBody(required = false) StreamRequest request) {
-        
-        String finalStreamName;
-        String rtspUrl;
+            @RequestParam(required = false) Boolean passthrough,
+            @RequestParam(required = false) Boolean lowLatency,
+            @RequestParam(required = false) Boolean abr,
+            @RequestParam(required = false) String profile,
+            @RequestParam(required = false) Boolean onDemand,
+            @RequestParam(required = false) Boolean record,
+            @RequestParam(required = false) Boolean motion,
+            @RequestHeader(value = ClusterService.FORWARDED_HEADER, required = false) String forwardedBy,
+            @RequestBody(required = false) StreamRequest request,
+            HttpServletRequest httpRequest) {
         
-        // Handle JSON request body
+        // The JSON body's settings win over the query parameters
+        StreamRequest options;
         if (request != null) {
-            finalStreamName = request.getStreamName();
-            if (finalStreamName == null || finalStreamName.trim().isEmpty()) {
-                return ResponseEntity.badRequest().body("Stream name is required");
-            }
-            
-            // Check if custom RTSP URL is provided
-            if (request.getRtspUrl() != null && !request.getRtspUrl().trim().isEmpty()) {
-                rtspUrl = request.getRtspUrl();
-                System.out.println("Using custom RTSP URL: " + rtspUrl);
-            } else {
-                // Use default RTSP URL construction
-                String mediamtxHost = System.getenv("MEDIAMTX_HOST");
-                if (mediamtxHost == null) {
-                    mediamtxHost = "localhost"; // fallback for local development
-                }
-                int port = (request.getRtspPort() != null) ? request.getRtspPort() : rtspPort;
-                rtspUrl = "rtsp://" + mediamtxHost + ":" + port + "/" + finalStreamName;
-                System.out.println("Using MediaMTX host: " + mediamtxHost);
-                System.out.println("RTSP URL: " + rtspUrl);
-            }
+            options = request;
         } else {
             // Handle query parameters (backward compatibility)
-            if (streamName == null || streamName.trim().isEmpty()) {
-                return ResponseEntity.badRequest().body("Stream name is required");
-            }
-            finalStreamName = streamName;
-            
-            // Use default RTSP URL construction
-            String mediamtxHost = System.getenv("MEDIAMTX_HOST");
-            if (mediamtxHost == null) {
-                mediamtxHost = "localhost"; // fallback for local development
-            }
-            rtspUrl = "rtsp://" + mediamtxHost + ":" + rtspPort + "/" + finalStreamName;
-            System.out.println("Using MediaMTX host: " + mediamtxHost);
-            System.out.println("RTSP URL: " + rtspUrl);
+            options = new StreamRequest(streamName, null, rtspPort, null);
+        }
+        String finalStreamName = options.getStreamName();
+        if (finalStreamName == null || finalStreamName.trim().isEmpty()) {
+            return completed(ResponseEntity.badRequest().body("Stream name is required"));
+        }
+        if (options.getPassthrough() == null) {
+            options.setPassthrough(passthrough);
+        }
+        if (options.getLowLatency() == null) {
+            options.setLowLatency(lowLatency);
+        }
+        if (options.getAbr() == null) {
+            options.setAbr(abr);
+        }
+        if (options.getProfile() == null) {
+            options.setProfile(profile);
+        }
+        if (options.getOnDemand() == null) {
+            options.setOnDemand(onDemand);
+        }
+        if (options.getRecord() == null) {
+            options.setRecord(record);
+        }
+        if (options.getMotion() == null) {
+            options.setMotion(motion);
         }
         
+        // In cluster mode the stream runs on the node with the most headroom; a request forwarded by the
+        // node that placed it is started here
+        if (forwardedBy == null) {
+            NodeStatus owner = clusterService.place(finalStreamName);
+            if (owner != null && !clusterService.isLocal(owner)) {
+                return forwardStart(owner, httpRequest, request);
+            }
+        }
+        options.setRtspUrl(rtspUrl(options, rtspPort));
         try {
             // Convert RTSP to HLS
-            String hlsUrl = hlsStreamService.startHLSStream(rtspUrl, finalStreamName);
-            return ResponseEntity.ok(hlsUrl);
+            String hlsUrl = hlsStreamService.registerHLSStream(options);
+            if (hlsStreamService.isDormant(finalStreamName)) {
+                return completed(ResponseEntity.ok(hlsUrl));
+            }
+            // A source that is slow to produce its first keyframe still gets its URL, the player waits on
+            // the playlist from there
+            DeferredResult<ResponseEntity<String>> result = new DeferredResult<>(startWaitMillis);
+            result.onTimeout(() -> result.setResult(ResponseEntity.ok(hlsUrl)));
+            hlsStreamService.whenReady(finalStreamName).thenAccept(ready -> result.setResult(ready
+                    ? ResponseEntity.ok(hlsUrl)
+                    : ResponseEntity.status(HttpStatus.BAD_GATEWAY).body("HLS stream ended before its first segment")));
+            return result;
+        } catch (IllegalArgumentException e) {
+            // Unknown encoding profile, or a name that cannot be recorded
+            clusterService.release(finalStreamName);
+            return completed(ResponseEntity.badRequest().body(e.getMessage()));
+        } catch (StreamRejectedException e) {
+            // The host is at capacity; the client may retry later
+            clusterService.release(finalStreamName);
+            return completed(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(e.getMessage()));
         } catch (Exception e) {
+            clusterService.release(finalStreamName);
             System.err.println("Error starting HLS stream: " + e.getMessage());
             e.printStackTrace();
-            return ResponseEntity.status(500).body("Failed to start HLS stream: " + e.getMessage());
+            return completed(ResponseEntity.status(500).body("Failed to start HLS stream: " + e.getMessage()));
+        }
+    }
+
+    // The request's custom RTSP URL, or the stream's path on MediaMTX
+    private static String rtspUrl(StreamRequest request, int defaultPort) {
+        if (request.getRtspUrl() != null && !request.getRtspUrl().trim().isEmpty()) {
+            System.out.println("Using custom RTSP URL: " + IngestRegistry.displayName(request.getRtspUrl()));
+            return request.getRtspUrl();
+        }
+        String mediamtxHost = System.getenv("MEDIAMTX_HOST");
+        if (mediamtxHost == null) {
+            mediamtxHost = "localhost"; // fallback for local development
         }
+        int port = (request.getRtspPort() != null) ? request.getRtspPort() : defaultPort;
+        String rtspUrl = "rtsp://" + mediamtxHost + ":" + port + "/" + request.getStreamName();
+        System.out.println("Using MediaMTX host: " + mediamtxHost);
+        System.out.println("RTSP URL: " + rtspUrl);
+        return rtspUrl;
+    }
+
+    // Starts every stream of the list like /hls/start, several at a time; answers 202 with a job to poll
+    // at /hls/batch/{jobId}. probe=false skips probing the sources of on-demand streams.
+    @PostMapping("/hls/batch/start")
+    public ResponseEntity<Object> startHLSStreams(
+            @RequestParam(required = false, defaultValue = "8554") int rtspPort,
+            @RequestParam(required = false, defaultValue = "true") boolean probe,
+            @RequestBody List<StreamRequest> requests) {
+        if (requests.isEmpty()) {
+            return ResponseEntity.badRequest().body("No streams to start");
+        }
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < requests.size(); i++) {
+            StreamRequest request = requests.get(i);
+            String name = request != null ? request.getStreamName() : null;
+            if (name == null || name.trim().isEmpty()) {
+                return ResponseEntity.badRequest().body("Stream name is required (entry " + i + ")");
+            }
+            if (!names.add(name)) {
+                return ResponseEntity.badRequest().body("Stream " + name + " is listed twice");
+            }
+            request.setRtspUrl(rtspUrl(request, rtspPort));
+        }
+        try {
+            return batchAccepted(batchService.start(requests, probe));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @PostMapping("/hls/batch/stop")
+    public ResponseEntity<Object> stopHLSStreams(@RequestBody List<String> streamNames) {
+        if (streamNames.isEmpty()) {
+            return ResponseEntity.badRequest().body("No streams to stop");
+        }
+        try {
+            return batchAccepted(batchService.stop(streamNames));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // Progress of a batch: every stream's state, URL or error, and the source probe where there is one
+    @GetMapping("/hls/batch/{jobId}")
+    public ResponseEntity<Map<String, Object>> getBatch(@PathVariable String jobId) {
+        BatchJob job = batchService.get(jobId);
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(batchInfo(job));
+    }
+
+    private ResponseEntity<Object> batchAccepted(BatchJob job) {
+        return ResponseEntity.accepted()
+                .header(HttpHeaders.LOCATION, "/api/stream/hls/batch/" + job.getId())
+                .body(batchInfo(job));
+    }
+
+    private static Map<String, Object> batchInfo(BatchJob job) {
+        Map<BatchJob.State, Integer> counts = new EnumMap<>(BatchJob.State.class);
+        List<Map<String, Object>> streams = new ArrayList<>();
+        for (BatchJob.Item item : job.getItems()) {
+            BatchJob.State state = item.getState();
+            counts.merge(state, 1, Integer::sum);
+            Map<String, Object> info = new LinkedHashMap<>();
+            info.put("streamName", item.getStreamName());
+            info.put("state", state.name().toLowerCase(Locale.ROOT));
+            if (item.getUrl() != null) {
+                info.put("url", item.getUrl());
+            }
+            if (item.getNode() != null) {
+                info.put("node", item.getNode());
+            }
+            if (item.getError() != null) {
+                info.put("error", item.getError());
+            }
+            if (item.getProbe() != null) {
+                info.put("probe", probeInfo(item.getProbe()));
+            }
+            if (item.getFinishedMillis() >= 0) {
+                info.put("durationMs", item.getFinishedMillis() - item.getStartedMillis());
+            }
+            streams.add(info);
+        }
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("id", job.getId());
+        body.put("action", job.getAction());
+        body.put("done", job.isDone());
+        body.put("created", Instant.ofEpochMilli(job.getCreatedMillis()).toString());
+        Map<String, Integer> summary = new LinkedHashMap<>();
+        for (Map.Entry<BatchJob.State, Integer> entry : counts.entrySet()) {
+            summary.put(entry.getKey().name().toLowerCase(Locale.ROOT), entry.getValue());
+        }
+        body.put("summary", summary);
+        body.put("streams", streams);
+        return body;
+    }
+
+    private static Map<String, Object> probeInfo(ProbeCache.Probe probe) {
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("videoCodec", probe.getVideoCodec());
+        info.put("width", probe.getWidth());
+        info.put("height", probe.getHeight());
+        info.put("frameRate", probe.getFrameRate());
+        info.put("audioCodec", probe.getAudioCodec());
+        info.put("audioChannels", probe.getAudioChannels());
+        info.put("sampleRate", probe.getSampleRate());
+        info.put("probed", Instant.ofEpochMilli(probe.getProbedAt()).toString());
+        return info;
+    }
+
+    // Cached probes of the sources opened so far, keyed by URL without credentials
+    @GetMapping("/probes")
+    public ResponseEntity<Map<String, Object>> getProbes() {
+        Map<String, Object> probes = new TreeMap<>();
+        for (Map.Entry<String, ProbeCache.Probe> entry : probeCache.getAll().entrySet()) {
+            probes.put(entry.getKey(), probeInfo(entry.getValue()));
+        }
+        return ResponseEntity.ok(probes);
+    }
+
+    private DeferredResult<ResponseEntity<String>> forwardStart(NodeStatus owner, HttpServletRequest httpRequest,
+                                                                StreamRequest request) {
+        String body;
+        try {
+            body = request != null ? objectMapper.writeValueAsString(request) : null;
+        } catch (JsonProcessingException e) {
+            return completed(ResponseEntity.badRequest().body(e.getMessage()));
+        }
+        String query = httpRequest.getQueryString();
+        DeferredResult<ResponseEntity<String>> result = new DeferredResult<>(startWaitMillis + forwardTimeoutMillis);
+        result.onTimeout(() -> result.setResult(ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT)
+                .body("Node " + owner.getId() + " did not answer")));
+        clusterService.forward(owner, httpRequest.getRequestURI() + (query != null ? "?" + query : ""), body)
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                        System.err.println("Error forwarding stream start to " + owner.getId() + ": " + cause);
+                        result.setResult(ResponseEntity.status(HttpStatus.BAD_GATEWAY)
+                                .body("Could not forward to node " + owner.getId()));
+                    } else {
+                        result.setResult(response);
+                    }
+                });
+        return result;
     }
 
     @PostMapping("/hls/stop")
     public ResponseEntity<Void> stopHLSStream(@RequestParam String streamName) {
         hlsStreamService.stopHLSStream(streamName);
+        clusterService.release(streamName);
         return ResponseEntity.ok().build();
     }
 
-    // Serve HLS playlist and segments
-    @GetMapping("/hls/{streamName}/stream.m3u8")
-    public ResponseEntity<Resource> getHLSPlaylist(@PathVariable String streamName) {
-        File playlistFile = new File("/tmp/hls/" + streamName + "/stream.m3u8");
-        if (!playlistFile.exists()) {
+    // Master playlist of an adaptive-bitrate stream; its stream.m3u8 serves the same list
+    @GetMapping("/hls/{streamName}/master.m3u8")
+    public ResponseEntity<byte[]> getHLSMasterPlaylist(
+            @PathVariable String streamName,
+            @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        byte[] master = segmentStore.getMasterPlaylist(streamName);
+        if (master == null) {
             return ResponseEntity.notFound().build();
         }
+        return playlistResponse(master, ifNoneMatch);
+    }
+
+    // Serve HLS playlist and segments from memory.
+    // Without _HLS_msn the request is held until the first playlist exists, with it (LL-HLS
+    // blocking playlist reload) until the requested segment or part has been published.
+    // A poll with the ETag of the current playlist gets 304 without a body. A dormant on-demand
+    // stream is started by the request, which then waits for its first playlist.
+    @GetMapping("/hls/{streamName}/stream.m3u8")
+    public DeferredResult<ResponseEntity<byte[]>> getHLSPlaylist(
+            @PathVariable String streamName,
+            @RequestParam(name = "_HLS_msn", required = false) Long msn,
+            @RequestParam(name = "_HLS_part", required = false) Integer part,
+            @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        byte[] master = segmentStore.getMasterPlaylist(streamName);
+        if (master != null) {
+            return completed(playlistResponse(master, ifNoneMatch));
+        }
+        if (segmentStore.get(streamName) == null && hlsStreamService.isDormant(streamName)) {
+            return activate(streamName, streamName, msn, part, ifNoneMatch);
+        }
+        return awaitPlaylist(streamName, msn, part, ifNoneMatch);
+    }
+
+    // Media playlist of one rendition of an adaptive-bitrate stream
+    @GetMapping("/hls/{streamName}/{rendition}/stream.m3u8")
+    public DeferredResult<ResponseEntity<byte[]>> getHLSRenditionPlaylist(
+            @PathVariable String streamName,
+            @PathVariable String rendition,
+            @RequestParam(name = "_HLS_msn", required = false) Long msn,
+            @RequestParam(name = "_HLS_part", required = false) Integer part,
+            @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        if (hlsStreamService.isDormant(streamName)) {
+            return activate(streamName, streamName + "/" + rendition, msn, part, ifNoneMatch);
+        }
+        return awaitPlaylist(streamName + "/" + rendition, msn, part, ifNoneMatch);
+    }
+
+    // Starts a dormant on-demand stream and then waits for the playlist like awaitPlaylist(); the wait
+    // for the first playlist includes the time it takes to open the source
+    private DeferredResult<ResponseEntity<byte[]>> activate(String streamName, String playlistName, Long msn,
+                                                            Integer part, String ifNoneMatch) {
+        CompletableFuture<Void> activation = hlsStreamService.activate(streamName);
+        if (activation == null) {
+            return completed(ResponseEntity.notFound().build());
+        }
+        DeferredResult<ResponseEntity<byte[]>> result = new DeferredResult<>(playlistWaitMillis);
+        result.onTimeout(() -> result.setResult(ResponseEntity.notFound().build()));
+        activation.whenComplete((started, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                // The host is at capacity, or the source could not be opened
+                result.setResult(ResponseEntity.status(cause instanceof StreamRejectedException
+                        ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.NOT_FOUND).build());
+                return;
+            }
+            if (playlistName.equals(streamName) && segmentStore.getMasterPlaylist(streamName) != null) {
+                // The master playlist lists the renditions' codecs once each has its first segment
+                hlsStreamService.whenReady(streamName).thenRun(() -> {
+                    byte[] master = segmentStore.getMasterPlaylist(streamName);
+                    result.setResult(master != null ? playlistResponse(master, ifNoneMatch)
+                            : ResponseEntity.notFound().build());
+                });
+                return;
+            }
+            SegmentRing ring = segmentStore.get(playlistName);
+            if (ring == null) {
+                result.setResult(ResponseEntity.notFound().build());
+                return;
+            }
+            if (msn != null && ring.isTooFarAhead(msn)) {
+                result.setResult(ResponseEntity.badRequest().build());
+                return;
+            }
+            Object waiter = ring.whenAvailable(msn != null ? msn : -1, part != null ? part : -1,
+                    () -> result.setResult(playlistResponse(ring, ifNoneMatch)));
+            // Stop waiting once the request has timed out
+            result.onCompletion(() -> ring.cancel(waiter));
+        });
+        return result;
+    }
+
+    private DeferredResult<ResponseEntity<byte[]>> awaitPlaylist(String streamName, Long msn, Integer part,
+                                                                 String ifNoneMatch) {
+        SegmentRing ring = segmentStore.get(streamName);
+        if (ring == null) {
+            return completed(ResponseEntity.notFound().build());
+        }
+        if (msn != null && ring.isTooFarAhead(msn)) {
+            return completed(ResponseEntity.badRequest().build());
+        }
         
-        Resource resource = new FileSystemResource(playlistFile);
+        long timeout = msn != null ? ring.getTargetDuration() * 3000L : playlistWaitMillis;
+        DeferredResult<ResponseEntity<byte[]>> result = new DeferredResult<>(timeout);
+        Object waiter = ring.whenAvailable(msn != null ? msn : -1, part != null ? part : -1,
+                () -> result.setResult(playlistResponse(ring, ifNoneMatch)));
+        result.onTimeout(() -> {
+            ring.cancel(waiter);
+            result.setResult(ResponseEntity.status(msn != null ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.NOT_FOUND).build());
+        });
+        return result;
+    }
+
+    private ResponseEntity<byte[]> playlistResponse(SegmentRing ring, String ifNoneMatch) {
+        byte[] playlist = ring.getPlaylist();
+        if (playlist == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return playlistResponse(playlist, ifNoneMatch);
+    }
+
+    private ResponseEntity<byte[]> playlistResponse(byte[] playlist, String ifNoneMatch) {
+        String etag = etag(playlist);
+        if (matches(ifNoneMatch, etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(etag)
+                    .header(HttpHeaders.CACHE_CONTROL, "no-cache")
+                    .build();
+        }
         return ResponseEntity.ok()
                 .contentType(MediaType.valueOf("application/vnd.apple.mpegurl"))
+                .eTag(etag)
                 .header(HttpHeaders.CACHE_CONTROL, "no-cache")
-                .body(resource);
+                .body(playlist);
+    }
+
+    // Playlists are rendered anew for every change, so their content is their version. An MD5 digest, as
+    // Spring's ShallowEtagHeaderFilter uses: a colliding hash would leave the player on a stale playlist.
+    private static String etag(byte[] playlist) {
+        return "\"" + DigestUtils.md5DigestAsHex(playlist) + "\"";
+    }
+
+    // If-None-Match holds "*" or a list of entity tags, possibly weak
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(etag) || candidate.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <T> DeferredResult<T> completed(T value) {
+        DeferredResult<T> result = new DeferredResult<>();
+        result.setResult(value);
+        return result;
+    }
+
+    // JPEG thumbnail of a running or registered stream, at most snapshot.ttl-ms old. Polls with the
+    // ETag of the current snapshot get 304; 502 if no picture could be taken, e.g. the camera is down.
+    @GetMapping("/{streamName}/snapshot")
+    public DeferredResult<ResponseEntity<byte[]>> getSnapshot(
+            @PathVariable String streamName,
+            @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        CompletableFuture<SnapshotService.Snapshot> snapshot = snapshotService.get(streamName);
+        if (snapshot == null) {
+            return completed(ResponseEntity.notFound().build());
+        }
+        DeferredResult<ResponseEntity<byte[]>> result = new DeferredResult<>(snapshotWaitMillis);
+        result.onTimeout(() -> result.setResult(ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT).build()));
+        snapshot.whenComplete((taken, error) -> result.setResult(error != null
+                ? ResponseEntity.status(HttpStatus.BAD_GATEWAY).build()
+                : snapshotResponse(taken, ifNoneMatch)));
+        return result;
+    }
+
+    // Cacheable until the next snapshot is due, so browsers and proxies absorb polls too
+    private static ResponseEntity<byte[]> snapshotResponse(SnapshotService.Snapshot snapshot, String ifNoneMatch) {
+        String etag = "\"" + Long.toHexString(snapshot.getTakenMillis()) + "\"";
+        long maxAge = Math.max(0, (snapshot.getExpiresMillis() - System.currentTimeMillis()) / 1000);
+        if (matches(ifNoneMatch, etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(etag)
+                    .header(HttpHeaders.CACHE_CONTROL, "max-age=" + maxAge)
+                    .build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.IMAGE_JPEG)
+                .eTag(etag)
+                .header(HttpHeaders.CACHE_CONTROL, "max-age=" + maxAge)
+                .body(snapshot.getJpeg());
+    }
+
+    // fMP4 initialization section referenced by EXT-X-MAP in low-latency mode
+    @GetMapping("/hls/{streamName}/init.mp4")
+    public void getHLSInitSection(@PathVariable String streamName, HttpServletRequest request,
+                                  HttpServletResponse response) throws IOException {
+        hlsStreamService.touch(streamName);
+        writeInitSection(streamName, 0, request, response);
+    }
+
+    @GetMapping("/hls/{streamName}/{rendition}/init.mp4")
+    public void getHLSRenditionInitSection(@PathVariable String streamName, @PathVariable String rendition,
+                                           HttpServletRequest request, HttpServletResponse response) throws IOException {
+        hlsStreamService.touch(streamName);
+        writeInitSection(streamName + "/" + rendition, 0, request, response);
+    }
+
+    // initN.mp4 is the init section after the Nth discontinuity, see SegmentRing.initName()
+    private void writeInitSection(String streamName, int discontinuity, HttpServletRequest request,
+                                  HttpServletResponse response) throws IOException {
+        SegmentRing ring = segmentStore.get(streamName);
+        ByteBuffer init = ring != null ? ring.getInitSection(discontinuity) : null;
+        if (init == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        
+        response.setContentType("video/mp4");
+        writeMedia(newWriter(request, 0), new ByteBuffer[] {init}, () -> { }, request, response);
     }
 
+    // Segments are streamN.ts / streamN.m4s, LL-HLS parts streamN.P.m4s
     @GetMapping("/hls/{streamName}/{segment}")
-    public ResponseEntity<Resource> getHLSSegment(@PathVariable String streamName, @PathVariable String segment) {
-        File segmentFile = new File("/tmp/hls/" + streamName + "/" + segment);
-        if (!segmentFile.exists()) {
-            return ResponseEntity.notFound().build();
+    public void getHLSSegment(@PathVariable String streamName, @PathVariable String segment,
+                              HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // Segment fetches keep an on-demand stream running
+        hlsStreamService.touch(streamName);
+        writeSegment(streamName, segment, request, response);
+    }
+
+    @GetMapping("/hls/{streamName}/{rendition}/{segment}")
+    public void getHLSRenditionSegment(@PathVariable String streamName, @PathVariable String rendition,
+                                       @PathVariable String segment, HttpServletRequest request,
+                                       HttpServletResponse response) throws IOException {
+        hlsStreamService.touch(streamName);
+        writeSegment(streamName + "/" + rendition, segment, request, response);
+    }
+
+    private void writeSegment(String streamName, String segment, HttpServletRequest request,
+                              HttpServletResponse response) throws IOException {
+        Matcher init = INIT_NAME.matcher(segment);
+        if (init.matches()) {
+            writeInitSection(streamName, Integer.parseInt(init.group(1)), request, response);
+            return;
+        }
+        SegmentRing ring = segmentStore.get(streamName);
+        Matcher name = SEGMENT_NAME.matcher(segment);
+        if (ring == null || !name.matches()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
         }
         
-        Resource resource = new FileSystemResource(segmentFile);
-        String contentType = segment.endsWith(".ts") ? "video/mp2t" : "application/octet-stream";
+        long sequence = Long.parseLong(name.group(1));
+        int partIndex = name.group(2) != null ? Integer.parseInt(name.group(2)) : -1;
+        response.setContentType("ts".equals(name.group(3)) ? "video/mp2t" : "video/mp4");
+        if (partIndex < 0) {
+            HLSSegment hlsSegment = ring.retainSegment(sequence);
+            if (hlsSegment == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            writeMedia(newWriter(request, 0), buffers(hlsSegment.getParts()), hlsSegment::release, request, response);
+            return;
+        }
         
-        return ResponseEntity.ok()
-                .contentType(MediaType.valueOf(contentType))
-                .header(HttpHeaders.CACHE_CONTROL, "no-cache")
-                .body(resource);
+        // A part announced by EXT-X-PRELOAD-HINT is held open until it has been published, without
+        // holding a thread meanwhile
+        SegmentWriter writer = newWriter(request, (long) (ring.getPartTarget() * 3000));
+        Object waiter = ring.whenPartAvailable(sequence, partIndex, () -> {
+            HLSSegment hlsSegment = ring.retainPart(sequence, partIndex);
+            if (hlsSegment == null) {
+                writer.fail(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            ByteBuffer[] part = {hlsSegment.getParts().get(partIndex).data()};
+            writeMedia(writer, part, hlsSegment::release, request, response);
+        });
+        writer.onComplete(() -> ring.cancel(waiter));
+    }
+
+    // Hands the response over to a non-blocking writer; waitMillis is how long it may wait for
+    // something to write before answering 404
+    private SegmentWriter newWriter(HttpServletRequest request, long waitMillis) {
+        return new SegmentWriter(request.startAsync(), waitMillis > 0 ? waitMillis : writeTimeoutMillis,
+                writeTimeoutMillis);
+    }
+
+    private static ByteBuffer[] buffers(List<HLSPart> parts) {
+        ByteBuffer[] buffers = new ByteBuffer[parts.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = parts.get(i).data();
+        }
+        return buffers;
+    }
+
+    // Writes media with the status and headers for a single-range Range header, which some players
+    // send to fetch a segment in pieces; anything else gets the whole body
+    private void writeMedia(SegmentWriter writer, ByteBuffer[] buffers, Runnable release,
+                            HttpServletRequest request, HttpServletResponse response) {
+        long size = 0;
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        // Without validators for segments, a conditional range cannot be honoured
+        long[] range = request.getHeader(HttpHeaders.IF_RANGE) == null
+                ? parseRange(request.getHeader(HttpHeaders.RANGE), size) : null;
+        if (range == UNSATISFIABLE) {
+            release.run();
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+            writer.fail(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            return;
+        }
+        if (range != null) {
+            slice(buffers, range[0], range[1] + 1);
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + range[0] + "-" + range[1] + "/" + size);
+            size = range[1] - range[0] + 1;
+        }
+        response.setContentLengthLong(size);
+        writer.write(buffers, release);
+    }
+
+    // First and last byte of "bytes=first-last", "bytes=first-" or "bytes=-suffix"; null when there is
+    // no Range header or it is not one this can answer with a single part
+    private static long[] parseRange(String header, long size) {
+        Matcher range = header != null ? RANGE.matcher(header.trim()) : null;
+        if (range == null || !range.matches() || range.group(1).isEmpty() && range.group(2).isEmpty()) {
+            return null;
+        }
+        String first = range.group(1);
+        String last = range.group(2);
+        try {
+            if (first.isEmpty()) {
+                long suffix = Long.parseLong(last);
+                return suffix > 0 && size > 0 ? new long[] {Math.max(0, size - suffix), size - 1} : UNSATISFIABLE;
+            }
+            long from = Long.parseLong(first);
+            long to = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (to < from) {
+                return null;
+            }
+            return from < size ? new long[] {from, Math.min(to, size - 1)} : UNSATISFIABLE;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Narrows the buffers, which together hold a body, down to its bytes [from, to)
+    private static void slice(ByteBuffer[] buffers, long from, long to) {
+        long offset = 0;
+        for (ByteBuffer buffer : buffers) {
+            int start = buffer.position();
+            int length = buffer.remaining();
+            buffer.limit(start + (int) Math.min(length, Math.max(0, to - offset)));
+            buffer.position(start + (int) Math.min(length, Math.max(0, from - offset)));
+            offset += length;
+        }
     }
 
     // Check HLS stream status
     @GetMapping("/hls/{streamName}/status")
     public ResponseEntity<String> getHLSStreamStatus(@PathVariable String streamName) {
-        File playlistFile = new File("/tmp/hls/" + streamName + "/stream.m3u8");
-        File streamDir = new File("/tmp/hls/" + streamName);
+        SegmentRing ring = segmentStore.get(streamName);
+        
+        if (ring == null && segmentStore.getMasterPlaylist(streamName) != null) {
+            // Adaptive-bitrate stream: it is active once every rendition has a playlist
+            List<SegmentRing> renditions = segmentStore.getRenditions(streamName);
+            int segmentCount = Integer.MAX_VALUE;
+            for (SegmentRing rendition : renditions) {
+                if (rendition.getPlaylist() == null) {
+                    return ResponseEntity.ok("Playlist does not exist yet");
+                }
+                segmentCount = Math.min(segmentCount, rendition.getSegmentCount());
+            }
+            return ResponseEntity.ok("Stream active - " + renditions.size() + " renditions, "
+                    + segmentCount + " segments found");
+        }
         
-        if (!streamDir.exists()) {
-            return ResponseEntity.ok("Stream directory does not exist");
+        if (ring == null && hlsStreamService.isDormant(streamName)) {
+            return ResponseEntity.ok("Stream dormant - starts on the first playlist request");
         }
         
-        if (!playlistFile.exists()) {
-            return ResponseEntity.ok("Playlist file does not exist yet");
+        if (ring == null) {
+            return ResponseEntity.ok("Stream does not exist");
         }
         
-        // Check if there are any segment files
-        File[] segmentFiles = streamDir.listFiles((dir, name) -> name.endsWith(".ts"));
-        int segmentCount = segmentFiles != null ? segmentFiles.length : 0;
+        if (ring.getPlaylist() == null) {
+            return ResponseEntity.ok("Playlist does not exist yet");
+        }
         
+        int segmentCount = ring.getSegmentCount();
         return ResponseEntity.ok("Stream active - " + segmentCount + " segments found");
     }
 
+    // Scheduler load and the running grab/record workers
+    @GetMapping("/workers")
+    public ResponseEntity<Map<String, Object>> getWorkers() {
+        long now = System.currentTimeMillis();
+        List<Map<String, Object>> workers = new ArrayList<>();
+        for (StreamWorker worker : scheduler.getWorkers()) {
+            Map<String, Object> info = new LinkedHashMap<>();
+            info.put("name", worker.getName());
+            info.put("cost", worker.getCost());
+            info.put("running", worker.isRunning());
+            info.put("frames", worker.getFrames());
+            info.put("droppedFrames", worker.getDroppedFrames());
+            info.put("uptimeMs", now - worker.getAdmittedAt());
+            info.put("idleMs", now - worker.getLastProgress());
+            workers.add(info);
+        }
+        
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("capacity", scheduler.getCapacity());
+        body.put("load", scheduler.getLoad());
+        body.put("queued", scheduler.getQueued());
+        body.put("workers", workers);
+        return ResponseEntity.ok(body);
+    }
+
+    // Open sources and how many outputs share each of them
+    @GetMapping("/ingests")
+    public ResponseEntity<List<Map<String, Object>>> getIngests() {
+        List<Map<String, Object>> ingests = new ArrayList<>();
+        for (Ingest ingest : ingestRegistry.getIngests()) {
+            Map<String, Object> info = new LinkedHashMap<>();
+            info.put("url", IngestRegistry.displayName(ingest.getUrl()));
+            info.put("mode", ingest.isPacketIngest() ? "passthrough" : "transcode");
+            info.put("live", ingest.isLive());
+            info.put("realTime", ingest.isRealTime());
+            info.put("looping", ingest.isLooping());
+            info.put("reconnecting", ingest.isReconnecting());
+            info.put("sinks", ingest.getSinkCount());
+            info.put("worker", ingest.getWorker().getName());
+            ingests.add(info);
+        }
+        return ResponseEntity.ok(ingests);
+    }
+
+    // Native memory held per stream and source; codec memory is estimated, buffers are exact
+    @GetMapping("/native")
+    public ResponseEntity<Map<String, Object>> getNativeMemory() {
+        long now = System.currentTimeMillis();
+        Map<String, List<Map<String, Object>>> owners = new TreeMap<>();
+        for (NativeMemoryTracker.Resource resource : nativeMemory.getResources()) {
+            Map<String, Object> info = new LinkedHashMap<>();
+            info.put("kind", resource.getKind());
+            info.put("description", resource.getDescription());
+            info.put("estimatedBytes", resource.getEstimatedBytes());
+            info.put("bufferBytes", resource.getBufferBytes());
+            info.put("ageMs", now - resource.getCreatedMillis());
+            info.put("ended", resource.getEndedMillis() >= 0);
+            owners.computeIfAbsent(resource.getOwner(), owner -> new ArrayList<>()).add(info);
+        }
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("trackedBytes", nativeMemory.getTrackedBytes());
+        body.put("budgetBytes", nativeMemory.getBudgetBytes());
+        body.put("javacppBytes", nativeMemory.getJavaCppBytes());
+        body.put("physicalBytes", nativeMemory.getPhysicalBytes());
+        body.put("maxPhysicalBytes", Pointer.maxPhysicalBytes());
+        body.put("orphansReleased", nativeMemory.getOrphansReleased());
+        body.put("owners", owners);
+        return ResponseEntity.ok(body);
+    }
+
+    // Cluster nodes, whether they are live, and the streams each of them runs
+    @GetMapping("/cluster")
+    public ResponseEntity<Map<String, Object>> getCluster() {
+        Map<String, NodeStatus> live = clusterService.isEnabled() ? clusterService.liveNodes() : new LinkedHashMap<>();
+        Map<String, List<String>> streams = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : clusterService.getOwners().entrySet()) {
+            streams.computeIfAbsent(entry.getValue(), node -> new ArrayList<>()).add(entry.getKey());
+        }
+        List<Map<String, Object>> nodes = new ArrayList<>();
+        for (NodeStatus node : clusterService.getNodes()) {
+            Map<String, Object> info = new LinkedHashMap<>();
+            info.put("id", node.getId());
+            info.put("url", node.getUrl());
+            info.put("live", live.containsKey(node.getId()));
+            info.put("capacity", node.getCapacity());
+            info.put("load", node.getLoad());
+            info.put("lastSeen", Instant.ofEpochMilli(node.getUpdatedMillis()).toString());
+            info.put("streams", streams.getOrDefault(node.getId(), new ArrayList<>()));
+            nodes.add(info);
+        }
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("enabled", clusterService.isEnabled());
+        body.put("node", clusterService.getNodeId());
+        body.put("nodes", nodes);
+        return ResponseEntity.ok(body);
+    }
+
+    // DVR archives and the time ranges they cover
+    @GetMapping("/dvr")
+    public ResponseEntity<List<Map<String, Object>>> getArchives() {
+        List<Map<String, Object>> archives = new ArrayList<>();
+        for (StreamArchive archive : segmentArchive.getArchives()) {
+            Map<String, Object> info = new LinkedHashMap<>();
+            info.put("name", archive.getName());
+            info.put("start", archive.getStartMillis() >= 0 ? Instant.ofEpochMilli(archive.getStartMillis()).toString() : null);
+            info.put("end", archive.getEndMillis() >= 0 ? Instant.ofEpochMilli(archive.getEndMillis()).toString() : null);
+            info.put("segments", archive.getSegmentCount());
+            info.put("bytes", archive.getBytes());
+            archives.add(info);
+        }
+        return ResponseEntity.ok(archives);
+    }
+
+    // VOD playlist of a recorded stream between from and to (ISO-8601 instants or epoch milliseconds),
+    // by default everything that is archived
+    @GetMapping("/dvr/{streamName}/playlist.m3u8")
+    public ResponseEntity<byte[]> getArchivePlaylist(@PathVariable String streamName,
+                                                     @RequestParam(required = false) String from,
+                                                     @RequestParam(required = false) String to) {
+        return archivePlaylist(streamName, from, to);
+    }
+
+    @GetMapping("/dvr/{streamName}/{rendition}/playlist.m3u8")
+    public ResponseEntity<byte[]> getArchiveRenditionPlaylist(@PathVariable String streamName,
+                                                              @PathVariable String rendition,
+                                                              @RequestParam(required = false) String from,
+                                                              @RequestParam(required = false) String to) {
+        return archivePlaylist(streamName + "/" + rendition, from, to);
+    }
+
+    @GetMapping("/dvr/{streamName}/{segment}")
+    public void getArchiveSegment(@PathVariable String streamName, @PathVariable String segment,
+                                  HttpServletRequest request, HttpServletResponse response) throws IOException {
+        writeArchived(streamName, segment, request, response);
+    }
+
+    @GetMapping("/dvr/{streamName}/{rendition}/{segment}")
+    public void getArchiveRenditionSegment(@PathVariable String streamName, @PathVariable String rendition,
+                                           @PathVariable String segment, HttpServletRequest request,
+                                           HttpServletResponse response) throws IOException {
+        writeArchived(streamName + "/" + rendition, segment, request, response);
+    }
+
+    private ResponseEntity<byte[]> archivePlaylist(String streamName, String from, String to) {
+        StreamArchive archive = segmentArchive.get(streamName);
+        if (archive == null) {
+            return ResponseEntity.notFound().build();
+        }
+        long fromMillis;
+        long toMillis;
+        try {
+            fromMillis = from != null ? parseTime(from) : Long.MIN_VALUE;
+            toMillis = to != null ? parseTime(to) : Long.MAX_VALUE;
+        } catch (DateTimeParseException | NumberFormatException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        byte[] playlist = archive.playlist(fromMillis, toMillis);
+        if (playlist == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.valueOf("application/vnd.apple.mpegurl"))
+                .header(HttpHeaders.CACHE_CONTROL, "no-cache")
+                .body(playlist);
+    }
+
+    private static long parseTime(String value) {
+        return value.chars().allMatch(Character::isDigit) ? Long.parseLong(value) : Instant.parse(value).toEpochMilli();
+    }
+
+    // Archived media is read from its chunk file and written like a live segment
+    private void writeArchived(String streamName, String segment, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+        StreamArchive archive = segmentArchive.get(streamName);
+        Matcher name = ARCHIVE_NAME.matcher(segment);
+        ByteBuffer data = archive != null && name.matches()
+                ? archive.read(Long.parseLong(name.group(2)), Integer.parseInt(name.group(3)), name.group(1).equals("init"))
+                : null;
+        if (data == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        response.setContentType(name.group(4).equals("ts") ? "video/mp2t" : "video/mp4");
+        writeMedia(newWriter(request, 0), new ByteBuffer[] {data}, () -> { }, request, response);
+    }
+
+    // Encoding profiles a transcode can be started with
+    @GetMapping("/profiles")
+    public ResponseEntity<List<Map<String, Object>>> getProfiles() {
+        List<Map<String, Object>> profiles = new ArrayList<>();
+        for (EncodingProfile profile : encodingProfiles.getAll()) {
+            Map<String, Object> info = new LinkedHashMap<>();
+            info.put("name", profile.getName());
+            info.put("default", profile == encodingProfiles.getDefault());
+            info.put("encoder", profile.getEncoder());
+            info.put("threads", profile.getThreads());
+            info.put("slices", profile.getSlices());
+            info.put("cost", profile.getCost());
+            profiles.add(info);
+        }
+        return ResponseEntity.ok(profiles);
+    }
+
     // Serve the HLS player HTML
     @GetMapping("/player")
     public ResponseEntity<Resource> getHLSPlayer() {
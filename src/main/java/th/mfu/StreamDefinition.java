@@ -0,0 +1,72 @@
+package th.mfu;
+
+import java.util.concurrent.CompletableFuture;
+
+// What /hls/start registered under a stream name. An on-demand stream keeps only this while nobody
+// watches: it is started by the first playlist request and stopped again once its segments have not
+// been fetched for the idle timeout, so a registered camera costs no decoding, encoding or native memory.
+class StreamDefinition {
+    private final StreamRequest request;
+    private final boolean onDemand;
+    private final boolean motion;
+    // Last segment fetch, or the last activation
+    private volatile long lastAccess;
+    // Set while the stream is being started, guarded by this
+    private CompletableFuture<Void> activation;
+    private long activations;
+
+    StreamDefinition(StreamRequest request, boolean onDemand, boolean motion) {
+        this.request = request;
+        this.onDemand = onDemand;
+        this.motion = motion;
+        this.lastAccess = System.currentTimeMillis();
+    }
+
+    StreamRequest getRequest() {
+        return request;
+    }
+
+    String getUrl() {
+        return request.getRtspUrl();
+    }
+
+    boolean isOnDemand() {
+        return onDemand;
+    }
+
+    boolean isMotion() {
+        return motion;
+    }
+
+    void touch() {
+        lastAccess = System.currentTimeMillis();
+    }
+
+    long getLastAccess() {
+        return lastAccess;
+    }
+
+    // The running activation, or null after claiming a new one for the caller to run
+    synchronized CompletableFuture<Void> claimActivation(CompletableFuture<Void> next) {
+        if (activation != null) {
+            return activation;
+        }
+        activation = next;
+        activations++;
+        touch();
+        return null;
+    }
+
+    synchronized void activationDone() {
+        activation = null;
+        touch();
+    }
+
+    synchronized boolean isActivating() {
+        return activation != null;
+    }
+
+    synchronized long getActivations() {
+        return activations;
+    }
+}
@@ -0,0 +1,216 @@
+package th.mfu;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.bytedeco.javacpp.Pointer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Micrometer meters for sources, outputs and the host, exported by the actuator at /actuator/prometheus.
+// Rates (fps, bitrate) come from the counters, e.g. rate(gateway_output_frames_total[1m]).
+@Component
+public class StreamMetrics {
+    @Autowired
+    private MeterRegistry registry;
+
+    @Autowired
+    private StreamScheduler scheduler;
+
+    @Autowired
+    private IngestRegistry ingestRegistry;
+
+    @Autowired
+    private HLSSegmentStore segmentStore;
+
+    // Meters of a restarted stream share their ids with the old ones, so only the newest owner removes them
+    private final ConcurrentHashMap<String, Meters> owners = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void bindHostMeters() {
+        Gauge.builder("gateway.scheduler.capacity", scheduler, StreamScheduler::getCapacity)
+                .description("Cores available to streams").baseUnit("cores").register(registry);
+        Gauge.builder("gateway.scheduler.load", scheduler, StreamScheduler::getLoad)
+                .description("Estimated cores reserved by admitted streams").baseUnit("cores").register(registry);
+        Gauge.builder("gateway.scheduler.queued", scheduler, StreamScheduler::getQueued)
+                .description("Streams waiting for capacity").register(registry);
+        Gauge.builder("gateway.workers", scheduler, s -> s.getWorkers().size())
+                .description("Admitted stream workers, one thread each while running").register(registry);
+        Gauge.builder("gateway.streams.active", owners, m -> countOutputs())
+                .description("Running outputs (HLS streams, ABR renditions and RTSP republishes)").register(registry);
+        Gauge.builder("gateway.ingests.active", ingestRegistry, r -> r.getIngests().size())
+                .description("Open sources").register(registry);
+        Gauge.builder("gateway.hls.memory", segmentStore, HLSSegmentStore::getTotalBytes)
+                .description("Segment bytes held in memory by all HLS streams").baseUnit("bytes").register(registry);
+        // Native allocations made through JavaCPP (frames, packets, codec buffers) and the process RSS
+        Gauge.builder("gateway.native.memory", Pointer::totalBytes)
+                .tag("area", "javacpp").description("Native memory allocated through JavaCPP").baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("gateway.native.memory", Pointer::physicalBytes)
+                .tag("area", "physical").description("Resident memory of the process").baseUnit("bytes")
+                .register(registry);
+    }
+
+    public SourceMeters source(Ingest ingest) {
+        SourceMeters meters = new SourceMeters(ingest);
+        owners.put(meters.key, meters);
+        return meters;
+    }
+
+    // worker is null for passthrough outputs, which run on their ingest's thread
+    public OutputMeters output(String stream, String type, StreamWorker worker) {
+        OutputMeters meters = new OutputMeters(stream, type, worker);
+        owners.put(meters.key, meters);
+        return meters;
+    }
+
+    public MotionMeters motion(MotionDetector detector) {
+        MotionMeters meters = new MotionMeters(detector);
+        owners.put(meters.key, meters);
+        return meters;
+    }
+
+    private int countOutputs() {
+        int count = 0;
+        for (Meters meters : owners.values()) {
+            if (meters instanceof OutputMeters) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Timer latency(String name, String description, Tags tags) {
+        return Timer.builder(name).description(description).tags(tags)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofSeconds(10))
+                .register(registry);
+    }
+
+    private abstract class Meters {
+        final String key;
+        final List<Meter> meters = new ArrayList<>();
+        private boolean closed;
+
+        Meters(String key) {
+            this.key = key;
+        }
+
+        synchronized <T extends Meter> T add(T meter) {
+            meters.add(meter);
+            return meter;
+        }
+
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (owners.remove(key, this)) {
+                for (Meter meter : meters) {
+                    registry.remove(meter);
+                }
+            }
+        }
+    }
+
+    // Per source: read rate, time spent waiting for and decoding the next frame or packet, reconnects
+    public class SourceMeters extends Meters {
+        private final Counter frames;
+        private final Timer grabLatency;
+        private final Counter reconnects;
+
+        SourceMeters(Ingest ingest) {
+            super("source|" + ingest.getKey());
+            Tags tags = Tags.of("source", IngestRegistry.displayName(ingest.getUrl()),
+                    "mode", ingest.isPacketIngest() ? "passthrough" : "transcode");
+            frames = add(Counter.builder("gateway.ingest.frames").tags(tags)
+                    .description("Frames (transcode) or packets (passthrough) read from the source").register(registry));
+            grabLatency = add(latency("gateway.ingest.grab.latency", "Time to read and decode one frame or packet", tags));
+            reconnects = add(Counter.builder("gateway.ingest.reconnects").tags(tags)
+                    .description("Times the source connection was reopened").register(registry));
+            add(Gauge.builder("gateway.ingest.sinks", ingest, Ingest::getSinkCount).tags(tags)
+                    .description("Outputs attached to the source").register(registry));
+        }
+
+        public void grabbed(long startNanos) {
+            grabLatency.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            frames.increment();
+        }
+
+        public void reconnected() {
+            reconnects.increment();
+        }
+    }
+
+    // Per output: write rate, encode time and latency from the start of the source read to the muxer
+    public class OutputMeters extends Meters {
+        private final Tags tags;
+        private final Counter frames;
+        private final Timer encodeLatency;
+        private final Timer frameLatency;
+
+        OutputMeters(String stream, String type, StreamWorker worker) {
+            super("output|" + type + "|" + stream);
+            tags = Tags.of("stream", stream, "type", type);
+            frames = add(Counter.builder("gateway.output.frames").tags(tags)
+                    .description("Frames or packets written to the output").register(registry));
+            encodeLatency = add(latency("gateway.output.encode.latency", "Time to encode and mux one frame or packet", tags));
+            frameLatency = add(latency("gateway.output.frame.latency",
+                    "Time from the start of reading a frame from the source until it is muxed", tags));
+            if (worker != null) {
+                add(FunctionCounter.builder("gateway.output.dropped", worker, StreamWorker::getDroppedFrames).tags(tags)
+                        .description("Frames dropped because the encoder fell behind").register(registry));
+            }
+        }
+
+        public synchronized void bindQueue(FramePipeline pipeline) {
+            add(Gauge.builder("gateway.output.queue", pipeline, FramePipeline::size).tags(tags)
+                    .description("Decoded frames waiting for the encoder").register(registry));
+        }
+
+        // HLS outputs: bitrate from the bytes published and the memory their segments hold
+        public synchronized void bindRing(SegmentRing ring) {
+            add(FunctionCounter.builder("gateway.output.bytes", ring, SegmentRing::getBytesWritten).tags(tags)
+                    .baseUnit("bytes").description("Bytes written by the muxer").register(registry));
+            add(Gauge.builder("gateway.hls.stream.memory", ring, SegmentRing::getBytes).tags(tags)
+                    .baseUnit("bytes").description("Segment bytes held in memory").register(registry));
+        }
+
+        // startNanos is when the source read of the frame began, encodeStartNanos when encoding began
+        public void recorded(long startNanos, long encodeStartNanos) {
+            long now = System.nanoTime();
+            encodeLatency.record(now - encodeStartNanos, TimeUnit.NANOSECONDS);
+            frameLatency.record(now - startNanos, TimeUnit.NANOSECONDS);
+            frames.increment();
+        }
+    }
+
+    // Per transcode with motion detection: whether the scene moves, and the frames repeated while it did not
+    public class MotionMeters extends Meters {
+        MotionMeters(MotionDetector detector) {
+            super("motion|" + detector.getStreamName());
+            Tags tags = Tags.of("stream", detector.getStreamName());
+            add(Gauge.builder("gateway.motion.active", detector, d -> d.isMotion() ? 1 : 0).tags(tags)
+                    .description("1 while the scene is moving, 0 while it is still").register(registry));
+            add(Gauge.builder("gateway.motion.activity", detector, MotionDetector::getActivity).tags(tags)
+                    .description("Fraction of the picture that changed at the last analysis").register(registry));
+            add(FunctionCounter.builder("gateway.motion.events", detector, MotionDetector::getMotionEvents).tags(tags)
+                    .description("Times the scene started moving after being still").register(registry));
+            add(FunctionCounter.builder("gateway.motion.repeated", detector, MotionDetector::getRepeatedFrames).tags(tags)
+                    .description("Frames encoded as a repeat of the last picture while the scene was still")
+                    .register(registry));
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package th.mfu;
+
+// Thrown when the host has no capacity left for another stream and the admission queue is full
+public class StreamRejectedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public StreamRejectedException(String message) {
+        super(message);
+    }
+}
@@ -15,6 +15,27 @@ public class StreamRequest {
     @JsonProperty("inputType")
     private String inputType; // "file" or "rtsp"
     
+    @JsonProperty("passthrough")
+    private Boolean passthrough; // copy H.264/AAC packets without re-encoding, null = server default
+    
+    @JsonProperty("lowLatency")
+    private Boolean lowLatency; // LL-HLS with fMP4 partial segments
+    
+    @JsonProperty("abr")
+    private Boolean abr; // adaptive-bitrate ladder with a master playlist, always transcoded
+    
+    @JsonProperty("profile")
+    private String profile; // encoding profile of a transcode, null = server default
+    
+    @JsonProperty("onDemand")
+    private Boolean onDemand; // start on the first playlist request, stop when idle, null = server default
+    
+    @JsonProperty("record")
+    private Boolean record; // append segments to the DVR archive, null = server default
+    
+    @JsonProperty("motion")
+    private Boolean motion; // throttle encoding while the scene is still, null = server default
+    
     // Default constructor
     public StreamRequest() {}
     
@@ -59,6 +80,62 @@ public class StreamRequest {
         this.inputType = inputType;
     }
     
+    public Boolean getPassthrough() {
+        return passthrough;
+    }
+    
+    public void setPassthrough(Boolean passthrough) {
+        this.passthrough = passthrough;
+    }
+    
+    public Boolean getLowLatency() {
+        return lowLatency;
+    }
+    
+    public void setLowLatency(Boolean lowLatency) {
+        this.lowLatency = lowLatency;
+    }
+    
+    public Boolean getAbr() {
+        return abr;
+    }
+    
+    public void setAbr(Boolean abr) {
+        this.abr = abr;
+    }
+    
+    public String getProfile() {
+        return profile;
+    }
+    
+    public void setProfile(String profile) {
+        this.profile = profile;
+    }
+    
+    public Boolean getOnDemand() {
+        return onDemand;
+    }
+    
+    public void setOnDemand(Boolean onDemand) {
+        this.onDemand = onDemand;
+    }
+    
+    public Boolean getRecord() {
+        return record;
+    }
+    
+    public void setRecord(Boolean record) {
+        this.record = record;
+    }
+    
+    public Boolean getMotion() {
+        return motion;
+    }
+    
+    public void setMotion(Boolean motion) {
+        this.motion = motion;
+    }
+    
     @Override
     public String toString() {
         return "StreamRequest{" +
@@ -66,6 +143,13 @@ public class StreamRequest {
                 ", rtspUrl='" + rtspUrl + '\'' +
                 ", rtspPort=" + rtspPort +
                 ", inputType='" + inputType + '\'' +
+                ", passthrough=" + passthrough +
+                ", lowLatency=" + lowLatency +
+                ", abr=" + abr +
+                ", profile='" + profile + '\'' +
+                ", onDemand=" + onDemand +
+                ", record=" + record +
+                ", motion=" + motion +
                 '}';
     }
 }
@@ -0,0 +1,211 @@
+package th.mfu;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+// Admission control for grab/record loops. Every stream reserves an estimated share of the
+// host's CPU before it starts; streams that do not fit wait in a short FIFO queue or are rejected.
+@Component
+public class StreamScheduler {
+    private static final Logger logger = Logger.getLogger(StreamScheduler.class.getName());
+    private static final double PIXELS_720P = 1280 * 720;
+
+    // Total cost the host can carry, in cores; 0 uses the number of available processors
+    @Value("${stream.scheduler.capacity:0}")
+    private double configuredCapacity;
+
+    // Cores used by one 720p transcode, scaled by pixel count for other resolutions
+    @Value("${stream.scheduler.cost-per-720p:1.0}")
+    private double costPer720p;
+
+    @Value("${stream.scheduler.passthrough-cost:0.05}")
+    private double passthroughCost;
+
+    @Value("${stream.scheduler.queue-size:4}")
+    private int queueSize;
+
+    @Value("${stream.scheduler.queue-timeout-ms:10000}")
+    private long queueTimeoutMillis;
+
+    // A running loop that has not handled a frame or packet for this long is reclaimed
+    @Value("${stream.scheduler.stall-timeout-ms:15000}")
+    private long stallTimeoutMillis;
+
+    // Decoded frames buffered between an ingest and each of its transcoding outputs
+    @Value("${stream.pipeline.queue-frames:32}")
+    private int pipelineFrames;
+
+    private final Map<String, StreamWorker> workers = new LinkedHashMap<>();
+    private final ArrayDeque<Object> queue = new ArrayDeque<>();
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private ExecutorService executor;
+    private double capacity;
+    private double load;
+
+    @PostConstruct
+    public void init() {
+        capacity = configuredCapacity > 0 ? configuredCapacity : Runtime.getRuntime().availableProcessors();
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "stream-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.info("Stream scheduler capacity: " + capacity + " cores, queue size: " + queueSize);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (StreamWorker worker : getWorkers()) {
+            worker.cancel();
+        }
+        executor.shutdownNow();
+    }
+
+    public double estimateCost(int width, int height, boolean passthrough) {
+        if (passthrough) {
+            return passthroughCost;
+        }
+        double pixels = width > 0 && height > 0 ? (double) width * height : PIXELS_720P;
+        return Math.max(0.25, pixels / PIXELS_720P) * costPer720p;
+    }
+
+    // A transcode with the given encoding profile, whose cost factor scales the 720p estimate
+    public double estimateCost(int width, int height, EncodingProfile profile) {
+        return estimateCost(width, height, false) * profile.getCost();
+    }
+
+    // Reserves capacity for a stream, waiting in the queue if needed; a running worker with the
+    // same name is cancelled first since a restart replaces it
+    public StreamWorker admit(String name, double cost) {
+        StreamWorker previous = getWorker(name);
+        if (previous != null) {
+            logger.info("Replacing running worker: " + name);
+            previous.cancel();
+        }
+
+        synchronized (this) {
+            // A stream costlier than the whole host may still run, but only on its own
+            double needed = Math.min(cost, capacity);
+            if (queue.isEmpty() && load + needed <= capacity) {
+                return reserve(name, needed);
+            }
+            if (queue.size() >= queueSize) {
+                throw new StreamRejectedException("At capacity (" + format(load) + " of " + format(capacity)
+                        + " cores in use), cannot start " + name);
+            }
+
+            Object ticket = new Object();
+            queue.addLast(ticket);
+            logger.info("Queued " + name + " (cost " + format(needed) + "), " + queue.size() + " waiting");
+            long deadline = System.currentTimeMillis() + queueTimeoutMillis;
+            try {
+                while (queue.peekFirst() != ticket || load + needed > capacity) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new StreamRejectedException("Timed out waiting for capacity to start " + name);
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StreamRejectedException("Interrupted while waiting for capacity to start " + name);
+            } finally {
+                queue.remove(ticket);
+                notifyAll();
+            }
+            return reserve(name, needed);
+        }
+    }
+
+    private StreamWorker reserve(String name, double cost) {
+        StreamWorker worker = new StreamWorker(this, name, cost);
+        workers.put(name, worker);
+        load += cost;
+        logger.info("Admitted " + name + " (cost " + format(cost) + "), load " + format(load) + "/" + format(capacity));
+        return worker;
+    }
+
+    synchronized void release(StreamWorker worker) {
+        if (workers.remove(worker.getName(), worker)) {
+            load = Math.max(0, load - worker.getCost());
+            notifyAll();
+        }
+    }
+
+    void execute(StreamWorker worker, Runnable loop) {
+        executor.execute(() -> {
+            Thread thread = Thread.currentThread();
+            String poolName = thread.getName();
+            thread.setName(worker.getName());
+            worker.attach(thread);
+            try {
+                if (!worker.isCancelled()) {
+                    loop.run();
+                }
+            } catch (Throwable e) {
+                logger.severe("Worker " + worker.getName() + " failed: " + e);
+            } finally {
+                worker.detach();
+                release(worker);
+                thread.setName(poolName);
+                // Do not carry a cancellation interrupt over to the next stream on this thread
+                Thread.interrupted();
+            }
+        });
+    }
+
+    // Live sources may drop frames when the encoder falls behind, files are never dropped
+    public FramePipeline pipeline(StreamWorker worker, boolean live) {
+        return new FramePipeline(worker, pipelineFrames, live);
+    }
+
+    // Loops blocked inside FFmpeg do not see the interrupt, but their capacity is freed regardless
+    @Scheduled(fixedDelayString = "${stream.scheduler.watchdog-interval-ms:5000}")
+    public void reclaimStalledWorkers() {
+        long now = System.currentTimeMillis();
+        for (StreamWorker worker : getWorkers()) {
+            if (worker.isRunning() && now - worker.getLastProgress() > stallTimeoutMillis) {
+                logger.warning("Reclaiming stalled worker " + worker.getName() + ": no progress for "
+                        + (now - worker.getLastProgress()) + " ms");
+                worker.reclaim();
+            }
+        }
+    }
+
+    public synchronized StreamWorker getWorker(String name) {
+        return workers.get(name);
+    }
+
+    public synchronized List<StreamWorker> getWorkers() {
+        return new ArrayList<>(workers.values());
+    }
+
+    public double getCapacity() {
+        return capacity;
+    }
+
+    public synchronized double getLoad() {
+        return load;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+}
@@ -0,0 +1,108 @@
+package th.mfu;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+import org.springframework.web.socket.handler.BinaryWebSocketHandler;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Logger;
+
+// ws://host/api/stream/ws/{streamName}, or .../ws/{streamName}/{rendition} for an adaptive-bitrate
+// stream: pushes the stream to the viewer as it is published, see WebSocketViewer. Unlike a playlist
+// the viewer needs no segment to complete first, so playback starts one keyframe after connecting.
+@Component
+public class StreamWebSocketHandler extends BinaryWebSocketHandler {
+    private static final Logger logger = Logger.getLogger(StreamWebSocketHandler.class.getName());
+    static final String PATH = "/api/stream/ws/";
+    private static final String VIEWER = "viewer";
+
+    @Autowired
+    private HLSSegmentStore segmentStore;
+
+    @Autowired
+    private HLSStreamService hlsStreamService;
+
+    @Autowired
+    private ClusterService clusterService;
+
+    // A viewer this far behind the live edge is disconnected
+    @Value("${hls.ws.max-queued-bytes:8388608}")
+    private long maxQueuedBytes;
+
+    @Value("${hls.serve.write-timeout-ms:30000}")
+    private long writeTimeoutMillis;
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+        String path = session.getUri().getPath();
+        String streamName = path.substring(path.indexOf(PATH) + PATH.length());
+        int slash = streamName.indexOf('/');
+        String baseName = slash < 0 ? streamName : streamName.substring(0, slash);
+        // WebSocket clients do not follow redirects, so the viewer is told where to connect instead
+        NodeStatus owner = clusterService.locate(baseName);
+        if (owner != null) {
+            close(session, CloseStatus.NOT_ACCEPTABLE.withReason("Served by " + owner.getUrl()));
+            return;
+        }
+        // A dormant on-demand stream starts for a WebSocket viewer as it would for a playlist request
+        CompletableFuture<Void> activation = hlsStreamService.activate(baseName);
+        if (activation == null) {
+            subscribe(session, streamName, baseName);
+            return;
+        }
+        activation.whenComplete((started, error) -> {
+            if (error == null) {
+                subscribe(session, streamName, baseName);
+                return;
+            }
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            close(session, cause instanceof StreamRejectedException
+                    ? CloseStatus.SERVICE_OVERLOAD.withReason("At capacity")
+                    : CloseStatus.SERVER_ERROR.withReason("Stream could not be started"));
+        });
+    }
+
+    private void subscribe(WebSocketSession session, String streamName, String baseName) {
+        SegmentRing ring = segmentStore.get(streamName);
+        if (ring == null) {
+            close(session, CloseStatus.NOT_ACCEPTABLE.withReason(segmentStore.getMasterPlaylist(streamName) != null
+                    ? "Adaptive-bitrate stream, connect to one of its renditions" : "No such stream"));
+            return;
+        }
+        RemoteEndpoint.Async remote = ((NativeWebSocketSession) session).getNativeSession(Session.class).getAsyncRemote();
+        remote.setSendTimeout(writeTimeoutMillis);
+        WebSocketViewer viewer = new WebSocketViewer(ring, session, remote, maxQueuedBytes,
+                () -> hlsStreamService.touch(baseName));
+        session.getAttributes().put(VIEWER, viewer);
+        ring.subscribe(viewer);
+        if (!session.isOpen()) {
+            // Closed while the stream was being started
+            viewer.close();
+            return;
+        }
+        logger.info("WebSocket viewer of " + streamName + " connected from " + session.getRemoteAddress());
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        WebSocketViewer viewer = (WebSocketViewer) session.getAttributes().get(VIEWER);
+        if (viewer != null) {
+            viewer.close();
+        }
+    }
+
+    private static void close(WebSocketSession session, CloseStatus status) {
+        try {
+            session.close(status);
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package th.mfu;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Handle for one admitted grab/record loop. The loop reports progress and checks isCancelled()
+// on every frame or packet so the scheduler can stop it and reclaim its capacity.
+public class StreamWorker {
+    private final StreamScheduler scheduler;
+    private final String name;
+    private final double cost;
+    private final long admittedAt = System.currentTimeMillis();
+    private volatile long lastProgress = admittedAt;
+    private volatile long frames;
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private volatile boolean cancelled;
+    private volatile Thread thread;
+    private volatile Runnable reclaimHandler;
+
+    StreamWorker(StreamScheduler scheduler, String name, double cost) {
+        this.scheduler = scheduler;
+        this.name = name;
+        this.cost = cost;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getCost() {
+        return cost;
+    }
+
+    public long getAdmittedAt() {
+        return admittedAt;
+    }
+
+    public long getLastProgress() {
+        return lastProgress;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isRunning() {
+        return thread != null;
+    }
+
+    // Called by the loop for every frame or packet it handles
+    public void progress() {
+        lastProgress = System.currentTimeMillis();
+        frames++;
+    }
+
+    // Called by a loop that waits on purpose, e.g. for its source to reconnect, so it is not taken for stalled
+    public void keepAlive() {
+        lastProgress = System.currentTimeMillis();
+    }
+
+    // Called by a pipeline for every frame it drops; returns the total so far
+    public long dropped() {
+        return droppedFrames.incrementAndGet();
+    }
+
+    // Runs the loop on a pooled worker thread named after the stream
+    public void start(Runnable loop) {
+        scheduler.execute(this, loop);
+    }
+
+    // Stops the loop at its next iteration; the capacity is returned right away
+    public void cancel() {
+        cancelled = true;
+        scheduler.release(this);
+        Thread running = thread;
+        if (running != null && running != Thread.currentThread()) {
+            running.interrupt();
+        }
+    }
+
+    // Cleanup to run when the watchdog gives up on a stalled loop, e.g. dropping its segments
+    public void onReclaim(Runnable handler) {
+        this.reclaimHandler = handler;
+    }
+
+    void reclaim() {
+        cancel();
+        Runnable handler = reclaimHandler;
+        if (handler != null) {
+            handler.run();
+        }
+    }
+
+    // Gives the capacity back when the loop could not be started
+    public void abort() {
+        cancelled = true;
+        scheduler.release(this);
+    }
+
+    void attach(Thread thread) {
+        this.thread = thread;
+    }
+
+    void detach() {
+        this.thread = null;
+    }
+}
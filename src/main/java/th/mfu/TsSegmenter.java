@@ -0,0 +1,232 @@
+package th.mfu;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// Receives the MPEG-TS byte stream from the recorder's AVIO write callback and cuts it
+// into HLS segments at video random access points, straight into the stream's SegmentRing.
+public class TsSegmenter extends OutputStream {
+    private static final int PACKET_SIZE = 188;
+    private static final long PTS_MASK = (1L << 33) - 1;
+    private static final int PTS_CLOCK = 90000;
+
+    private final SegmentRing ring;
+    private final long targetTicks;
+
+    private final byte[] packet = new byte[PACKET_SIZE];
+    private int filled;
+
+    // Latest PAT/PMT, repeated at the start of every segment so each one decodes on its own
+    private final byte[] pat = new byte[PACKET_SIZE];
+    private final byte[] pmt = new byte[PACKET_SIZE];
+    private boolean havePat;
+    private boolean havePmt;
+    private int pmtPid = -1;
+    private int videoPid = -1;
+
+    private ByteBuffer current;
+    private long segmentStartPts = -1;
+    private long lastPts = -1;
+    private long frameTicks;
+    private boolean closed;
+
+    public TsSegmenter(SegmentRing ring, double targetDuration) {
+        this.ring = ring;
+        this.targetTicks = (long) (targetDuration * PTS_CLOCK);
+    }
+
+    @Override
+    public void write(int b) {
+        packet[filled++] = (byte) b;
+        if (filled == PACKET_SIZE) {
+            onPacket();
+            filled = 0;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            int n = Math.min(len, PACKET_SIZE - filled);
+            System.arraycopy(b, off, packet, filled, n);
+            filled += n;
+            off += n;
+            len -= n;
+            if (filled == PACKET_SIZE) {
+                onPacket();
+                filled = 0;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (current != null && segmentStartPts >= 0 && lastPts >= 0) {
+            publish(((lastPts - segmentStartPts) & PTS_MASK) + frameTicks);
+        }
+        ring.finish();
+    }
+
+    private void onPacket() {
+        int pid = ((packet[1] & 0x1F) << 8) | (packet[2] & 0xFF);
+        boolean unitStart = (packet[1] & 0x40) != 0;
+
+        if (pid == 0) {
+            System.arraycopy(packet, 0, pat, 0, PACKET_SIZE);
+            havePat = true;
+            parsePat();
+        } else if (pid == pmtPid) {
+            System.arraycopy(packet, 0, pmt, 0, PACKET_SIZE);
+            havePmt = true;
+            parsePmt();
+        } else if (unitStart && (pid == videoPid || (videoPid < 0 && havePmt))) {
+            long pts = readPts();
+            if (pts >= 0) {
+                onAccessUnit(pts, isRandomAccess());
+            }
+        }
+
+        if (current != null) {
+            append(packet);
+        }
+    }
+
+    private void onAccessUnit(long pts, boolean randomAccess) {
+        if (lastPts >= 0) {
+            long delta = (pts - lastPts) & PTS_MASK;
+            if (delta > 0 && delta < PTS_CLOCK) {
+                frameTicks = delta;
+            }
+        }
+        lastPts = pts;
+        if (!randomAccess) {
+            return;
+        }
+        if (current == null) {
+            startSegment(pts);
+            return;
+        }
+        long elapsed = (pts - segmentStartPts) & PTS_MASK;
+        if (elapsed >= targetTicks) {
+            publish(elapsed);
+            startSegment(pts);
+        }
+    }
+
+    private void startSegment(long pts) {
+        current = ring.acquireBuffer(PACKET_SIZE * 2);
+        segmentStartPts = pts;
+        if (havePat && havePmt) {
+            append(pat);
+            append(pmt);
+        }
+    }
+
+    private void publish(long ticks) {
+        current.flip();
+        ring.publish(current, ticks / (double) PTS_CLOCK);
+        current = null;
+    }
+
+    private void append(byte[] data) {
+        if (current.remaining() < data.length) {
+            ByteBuffer larger = ring.acquireBuffer(current.capacity() * 2);
+            current.flip();
+            larger.put(current);
+            ring.recycle(current);
+            current = larger;
+        }
+        current.put(data);
+    }
+
+    private int payloadOffset() {
+        int adaptation = (packet[3] >> 4) & 0x3;
+        int offset = 4;
+        if ((adaptation & 0x2) != 0) {
+            offset += 1 + (packet[4] & 0xFF);
+        }
+        return (adaptation & 0x1) != 0 ? offset : PACKET_SIZE;
+    }
+
+    private boolean isRandomAccess() {
+        if (videoPid < 0) {
+            // Audio-only streams: every access unit is independent
+            return true;
+        }
+        int adaptation = (packet[3] >> 4) & 0x3;
+        return (adaptation & 0x2) != 0 && (packet[4] & 0xFF) > 0 && (packet[5] & 0x40) != 0;
+    }
+
+    private long readPts() {
+        int p = payloadOffset();
+        if (p + 14 > PACKET_SIZE || packet[p] != 0 || packet[p + 1] != 0 || packet[p + 2] != 1) {
+            return -1;
+        }
+        if ((packet[p + 7] & 0x80) == 0) {
+            return -1;
+        }
+        p += 9;
+        return ((long) (packet[p] & 0x0E) << 29)
+                | ((packet[p + 1] & 0xFF) << 22)
+                | ((packet[p + 2] & 0xFE) << 14)
+                | ((packet[p + 3] & 0xFF) << 7)
+                | ((packet[p + 4] & 0xFE) >> 1);
+    }
+
+    // Offset of table_id when a PSI section starts in this packet, or -1
+    private int sectionStart() {
+        if ((packet[1] & 0x40) == 0) {
+            return -1;
+        }
+        int p = payloadOffset();
+        if (p >= PACKET_SIZE) {
+            return -1;
+        }
+        p += 1 + (packet[p] & 0xFF); // pointer_field
+        return p + 8 <= PACKET_SIZE ? p : -1;
+    }
+
+    private void parsePat() {
+        int p = sectionStart();
+        if (p < 0) {
+            return;
+        }
+        int end = Math.min(PACKET_SIZE - 4, p + 3 + (((packet[p + 1] & 0x0F) << 8) | (packet[p + 2] & 0xFF)) - 4);
+        for (int i = p + 8; i + 4 <= end; i += 4) {
+            int program = ((packet[i] & 0xFF) << 8) | (packet[i + 1] & 0xFF);
+            if (program != 0) {
+                pmtPid = ((packet[i + 2] & 0x1F) << 8) | (packet[i + 3] & 0xFF);
+                return;
+            }
+        }
+    }
+
+    private void parsePmt() {
+        int p = sectionStart();
+        if (p < 0 || p + 12 > PACKET_SIZE) {
+            return;
+        }
+        int end = Math.min(PACKET_SIZE - 4, p + 3 + (((packet[p + 1] & 0x0F) << 8) | (packet[p + 2] & 0xFF)) - 4);
+        int i = p + 12 + (((packet[p + 10] & 0x0F) << 8) | (packet[p + 11] & 0xFF));
+        while (i + 5 <= end) {
+            int streamType = packet[i] & 0xFF;
+            int pid = ((packet[i + 1] & 0x1F) << 8) | (packet[i + 2] & 0xFF);
+            if (isVideo(streamType)) {
+                videoPid = pid;
+                return;
+            }
+            i += 5 + (((packet[i + 3] & 0x0F) << 8) | (packet[i + 4] & 0xFF));
+        }
+        videoPid = -1;
+    }
+
+    private static boolean isVideo(int streamType) {
+        // MPEG-1/2, MPEG-4 part 2, H.264, HEVC
+        return streamType == 0x01 || streamType == 0x02 || streamType == 0x10
+                || streamType == 0x1B || streamType == 0x24;
+    }
+}
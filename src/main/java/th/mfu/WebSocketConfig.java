@@ -0,0 +1,33 @@
+package th.mfu;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.task.TaskSchedulerBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+
+@Configuration
+@EnableWebSocket
+public class WebSocketConfig implements WebSocketConfigurer {
+    @Autowired
+    private StreamWebSocketHandler streamWebSocketHandler;
+
+    @Autowired
+    private MotionWebSocketHandler motionWebSocketHandler;
+
+    @Override
+    public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        registry.addHandler(streamWebSocketHandler, StreamWebSocketHandler.PATH + "**");
+        registry.addHandler(motionWebSocketHandler, MotionWebSocketHandler.PATH);
+    }
+
+    // @EnableWebSocket declares a task scheduler of its own, null without SockJS, which makes Spring Boot
+    // back off from the one @Scheduled methods run on; this is that one, spring.task.scheduling.* applies
+    @Bean
+    public ThreadPoolTaskScheduler taskScheduler(TaskSchedulerBuilder builder) {
+        return builder.build();
+    }
+}
@@ -0,0 +1,232 @@
+package th.mfu;
+
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+// One WebSocket viewer of a stream. It gets a text message with the MIME type, for fMP4 (LL-HLS)
+// streams the init section, and then every part as a binary message: exactly what a Media Source
+// Extensions SourceBuffer takes. MPEG-TS streams send whole segments instead. The ring replays the
+// current group of pictures on subscribe, so the first media message starts at a keyframe.
+// Messages are sent asynchronously, one at a time, so the publishing thread never waits for a viewer;
+// one that falls more than maxQueuedBytes behind is disconnected rather than buffered without bound.
+class WebSocketViewer implements SegmentRing.Subscriber, SendHandler {
+    private static final Logger logger = Logger.getLogger(WebSocketViewer.class.getName());
+
+    private final SegmentRing ring;
+    private final WebSocketSession session;
+    private final RemoteEndpoint.Async remote;
+    private final long maxQueuedBytes;
+    // Keeps an on-demand stream running while it is watched
+    private final Runnable onMedia;
+    // Only used with the ring locked
+    private int discontinuity = -1;
+    // Guarded by this
+    private final ArrayDeque<Message> queue = new ArrayDeque<>();
+    private Message inFlight;
+    private long queuedBytes;
+    private boolean closed;
+    private boolean ended;
+    private CloseStatus closeStatus;
+
+    WebSocketViewer(SegmentRing ring, WebSocketSession session, RemoteEndpoint.Async remote, long maxQueuedBytes,
+                    Runnable onMedia) {
+        this.ring = ring;
+        this.session = session;
+        this.remote = remote;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.onMedia = onMedia;
+    }
+
+    @Override
+    public void onMedia(HLSSegment segment, HLSPart part) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+        }
+        if (segment.getDiscontinuity() != discontinuity) {
+            // New codec parameters may follow a discontinuity, the client resets its decoder on the MIME type
+            discontinuity = segment.getDiscontinuity();
+            ByteBuffer init = ring.isLowLatency() ? ring.getInitSection(discontinuity) : null;
+            enqueue(new Message(init != null ? mimeType(init) : "video/mp2t", null, null));
+            if (init != null) {
+                enqueue(new Message(null, init, null));
+            }
+        }
+        // The part stays in the ring's buffer until it has been sent
+        if (segment.retain()) {
+            enqueue(new Message(null, part.data(), segment));
+        }
+        onMedia.run();
+    }
+
+    @Override
+    public void onEnd() {
+        boolean idle;
+        synchronized (this) {
+            ended = true;
+            idle = inFlight == null && !closed;
+        }
+        if (idle) {
+            closeSession(CloseStatus.NORMAL);
+        }
+    }
+
+    // The connection went away
+    void close() {
+        List<Message> dropped;
+        synchronized (this) {
+            closed = true;
+            dropped = drain();
+        }
+        releaseAll(dropped);
+        ring.unsubscribe(this);
+    }
+
+    private void enqueue(Message message) {
+        List<Message> dropped = null;
+        Message next = null;
+        synchronized (this) {
+            if (closed) {
+                dropped = new ArrayList<>();
+                dropped.add(message);
+            } else if (inFlight != null && queuedBytes + message.size() > maxQueuedBytes) {
+                // The send in flight closes the session once it completes or times out
+                logger.warning("WebSocket viewer of " + ring.getStreamName() + " is more than " + maxQueuedBytes
+                        + " bytes behind, disconnecting it");
+                closed = true;
+                closeStatus = CloseStatus.POLICY_VIOLATION.withReason("Viewer too slow");
+                dropped = drain();
+                dropped.add(message);
+            } else if (inFlight == null) {
+                next = inFlight = message;
+            } else {
+                queue.addLast(message);
+                queuedBytes += message.size();
+            }
+        }
+        releaseAll(dropped);
+        if (next != null) {
+            send(next);
+        }
+    }
+
+    private void send(Message message) {
+        try {
+            if (message.text != null) {
+                remote.sendText(message.text, this);
+            } else {
+                remote.sendBinary(message.data, this);
+            }
+        } catch (RuntimeException e) {
+            // The session closed under us
+            onResult(new SendResult(e));
+        }
+    }
+
+    @Override
+    public void onResult(SendResult result) {
+        Message done;
+        Message next = null;
+        List<Message> dropped = null;
+        CloseStatus status = null;
+        synchronized (this) {
+            done = inFlight;
+            inFlight = null;
+            if (!result.isOK() && !closed) {
+                closed = true;
+                closeStatus = CloseStatus.SESSION_NOT_RELIABLE;
+                dropped = drain();
+            }
+            if (closed) {
+                status = closeStatus;
+                closeStatus = null;
+            } else if (!queue.isEmpty()) {
+                next = inFlight = queue.pollFirst();
+                queuedBytes -= next.size();
+            } else if (ended) {
+                closed = true;
+                status = CloseStatus.NORMAL;
+            }
+        }
+        if (done != null) {
+            done.release();
+        }
+        releaseAll(dropped);
+        if (next != null) {
+            send(next);
+        } else if (status != null) {
+            closeSession(status);
+        }
+    }
+
+    // Guarded by this; the caller releases the returned messages outside the lock, since releasing a
+    // segment may return its buffer to the ring
+    private List<Message> drain() {
+        List<Message> dropped = new ArrayList<>(queue);
+        queue.clear();
+        queuedBytes = 0;
+        return dropped;
+    }
+
+    private static void releaseAll(List<Message> messages) {
+        if (messages != null) {
+            for (Message message : messages) {
+                message.release();
+            }
+        }
+    }
+
+    private void closeSession(CloseStatus status) {
+        try {
+            session.close(status);
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    // MIME type with RFC 6381 codecs of an fMP4 init section, e.g. video/mp4; codecs="avc1.42c01f,mp4a.40.2"
+    static String mimeType(ByteBuffer init) {
+        List<String> codecs = new ArrayList<>();
+        String video = AvcCodec.fromInitSection(init);
+        if (video != null) {
+            codecs.add(video);
+        }
+        if (AvcCodec.indexOf(init, "mp4a") >= 0) {
+            codecs.add("mp4a.40.2");
+        }
+        return codecs.isEmpty() ? "video/mp4" : "video/mp4; codecs=\"" + String.join(",", codecs) + "\"";
+    }
+
+    private static class Message {
+        final String text;
+        final ByteBuffer data;
+        // Retained for data in the ring's buffers, null otherwise
+        final HLSSegment segment;
+
+        Message(String text, ByteBuffer data, HLSSegment segment) {
+            this.text = text;
+            this.data = data;
+            this.segment = segment;
+        }
+
+        int size() {
+            return text != null ? text.length() : data.remaining();
+        }
+
+        void release() {
+            if (segment != null) {
+                segment.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package th.mfu;
+
+import org.bytedeco.javacv.Frame;
+import org.junit.jupiter.api.Test;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FrameRingTest {
+
+    @Test
+    public void interleavedAudioAndVideoReuseSlotBuffers() {
+        FrameRing ring = new FrameRing(4);
+        Frame video = new Frame(64, 36, Frame.DEPTH_UBYTE, 3);
+        Frame audio = audioFrame();
+        Set<Buffer> images = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Buffer> samples = Collections.newSetFromMap(new IdentityHashMap<>());
+        // Two audio frames per picture, close to 30 fps video with 48 kHz AAC; with four slots every
+        // slot takes pictures and audio in turn
+        for (int i = 0; i < 300; i++) {
+            Frame source = i % 3 == 0 ? video : audio;
+            source.timestamp = i * 1000L;
+            assertTrue(ring.offer(source, 0));
+            FrameRing.Slot slot = ring.peek();
+            Frame frame = slot.getFrame();
+            assertEquals(source.timestamp, frame.timestamp);
+            if (source == video) {
+                assertNotNull(frame.image);
+                assertNull(frame.samples);
+                images.add(frame.image[0]);
+            } else {
+                assertNull(frame.image);
+                assertNotNull(frame.samples);
+                samples.add(frame.samples[0]);
+            }
+            ring.release();
+        }
+        // At most one buffer of each kind per slot, however many frames went through
+        assertTrue(images.size() <= ring.capacity(), images.size() + " image buffers");
+        assertTrue(samples.size() <= ring.capacity(), samples.size() + " sample buffers");
+    }
+
+    @Test
+    public void copiesThePicture() {
+        FrameRing ring = new FrameRing(2);
+        Frame video = new Frame(8, 2, Frame.DEPTH_UBYTE, 3);
+        ByteBuffer pixels = (ByteBuffer) video.image[0];
+        for (int i = 0; i < pixels.capacity(); i++) {
+            pixels.put(i, (byte) i);
+        }
+        pixels.position(0);
+        ring.offer(video, 0);
+        // Other sinks of the ingest copy the same frame next
+        assertEquals(0, pixels.position());
+        pixels.put(0, (byte) 99);
+        ByteBuffer copy = (ByteBuffer) ring.peek().getFrame().image[0];
+        assertEquals(pixels.capacity(), copy.remaining());
+        assertEquals(0, copy.get(0));
+        assertEquals(47, copy.get(47));
+    }
+
+    private static Frame audioFrame() {
+        Frame audio = new Frame();
+        audio.sampleRate = 48000;
+        audio.audioChannels = 2;
+        audio.samples = new Buffer[] {ShortBuffer.allocate(2048)};
+        return audio;
+    }
+}